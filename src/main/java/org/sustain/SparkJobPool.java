@@ -0,0 +1,74 @@
+package org.sustain;
+
+/**
+ * Queue classes used by SparkManager to schedule tasks. Each class has its own
+ * bounded set of driver threads, its own admission limit, and maps onto a Spark
+ * FAIR scheduler pool of the same name, so cheap jobs are not stuck behind
+ * long-running ensemble cross-validations.
+ *
+ * Limits can be overridden with the SPARK_POOL_<NAME>_CONCURRENCY and
+ * SPARK_POOL_<NAME>_QUEUE_DEPTH environment variables.
+ */
+public enum SparkJobPool {
+    DEFAULT("default", 4, 64),
+    COUNT("count", 8, 64),
+    REGRESSION("regression", 8, 128),
+    CLUSTERING("clustering", 4, 32),
+    ENSEMBLE("ensemble", 4, 128);
+
+    private final String poolName;
+    private final int concurrency;
+    private final int maxQueueDepth;
+
+    SparkJobPool(String poolName, int concurrency, int maxQueueDepth) {
+        this.poolName = poolName;
+        this.concurrency = Integer.parseInt(System.getenv().getOrDefault(
+            "SPARK_POOL_" + name() + "_CONCURRENCY", String.valueOf(concurrency)));
+        this.maxQueueDepth = Integer.parseInt(System.getenv().getOrDefault(
+            "SPARK_POOL_" + name() + "_QUEUE_DEPTH", String.valueOf(maxQueueDepth)));
+    }
+
+    /**
+     * @return Name of the Spark FAIR scheduler pool (spark.scheduler.pool) for this queue class.
+     */
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * @return Maximum number of tasks from this queue class executing at once.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return Maximum number of tasks waiting in this queue class before new submissions are rejected.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Maps a ModelType onto the queue class its tasks are scheduled in.
+     * @param type The ModelType of the incoming request.
+     * @return The SparkJobPool for that model type.
+     */
+    public static SparkJobPool forModelType(ModelType type) {
+        switch (type) {
+            case LINEAR_REGRESSION:
+                return REGRESSION;
+            case K_MEANS_CLUSTERING:
+            case BISECTING_K_MEANS:
+            case GAUSSIAN_MIXTURE:
+            case POWER_ITERATION_CLUSTERING:
+            case LATENT_DIRICHLET_ALLOCATION:
+                return CLUSTERING;
+            case R_FOREST_REGRESSION:
+            case G_BOOST_REGRESSION:
+                return ENSEMBLE;
+            default:
+                return DEFAULT;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.sustain;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -8,85 +10,201 @@ import org.apache.spark.sql.SparkSession;
 import org.sustain.util.Constants;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SparkManager {
-    protected ExecutorService executorService; 
+    private static final Logger log = LogManager.getLogger(SparkManager.class);
+
+    protected Map<SparkJobPool, ThreadPoolExecutor> executors;
     protected List<String> jars;
     private String sparkMaster;
 
+    // long-lived session shared by every submitted task
+    private volatile SparkSession sparkSession;
+    private volatile JavaSparkContext sparkContext;
+
     public SparkManager(String sparkMaster) {
         this.sparkMaster = sparkMaster;
         this.jars = new ArrayList();
-        this.executorService = Executors.newCachedThreadPool();
+
+        // one bounded, priority-ordered executor per queue class
+        this.executors = new EnumMap<>(SparkJobPool.class);
+        for (SparkJobPool pool : SparkJobPool.values()) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                pool.getConcurrency(), pool.getConcurrency(),
+                60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new PoolThreadFactory(pool));
+            executor.allowCoreThreadTimeOut(true);
+            this.executors.put(pool, executor);
+        }
     }
 
     public void addJar(String jar) {
         this.jars.add(jar);
     }
 
-    protected void cancel(String jobGroup) throws Exception {
-        // initialize spark session
-        SparkSession sparkSession = getOrCreateSparkSession();
-        JavaSparkContext sparkContext = 
-            new JavaSparkContext(sparkSession.sparkContext());
+    /**
+     * Creates the shared SparkSession, registers dependency JARs and runs a
+     * trivial job so executors are allocated before the first request arrives.
+     */
+    public void initialize() throws Exception {
+        JavaSparkContext sparkContext = getOrCreateSparkContext();
 
+        long startTime = System.currentTimeMillis();
+        sparkContext.setJobGroup("spark-manager-warmup", "", true);
+        try {
+            sparkContext.parallelize(Arrays.asList(1, 2, 3, 4)).count();
+        } finally {
+            sparkContext.clearJobGroup();
+        }
+
+        log.info("SparkManager warmed up in {} ms (master: {}, application id: {})",
+            System.currentTimeMillis() - startTime, this.sparkMaster,
+            sparkContext.sc().applicationId());
+    }
+
+    /**
+     * @return true if the shared SparkContext has been created and has not been stopped.
+     */
+    public boolean isHealthy() {
+        JavaSparkContext sparkContext = this.sparkContext;
+        return sparkContext != null && !sparkContext.sc().isStopped();
+    }
+
+    /**
+     * Stops the shared SparkSession, if one exists.
+     */
+    public synchronized void shutdown() {
+        for (ThreadPoolExecutor executor : this.executors.values()) {
+            executor.shutdownNow();
+        }
+        if (this.sparkSession != null) {
+            this.sparkSession.stop();
+            this.sparkSession = null;
+            this.sparkContext = null;
+        }
+    }
+
+    public void cancel(String jobGroup) throws Exception {
         // cancel job group
-        sparkContext.cancelJobGroup(jobGroup);
+        getOrCreateSparkContext().cancelJobGroup(jobGroup);
+
+        // drop cancelled tasks that are still waiting so they free queue capacity
+        for (ThreadPoolExecutor executor : this.executors.values()) {
+            executor.purge();
+        }
     }
 
     protected SparkSession getOrCreateSparkSession() throws Exception {
-        // get or create SparkSession
-        SparkSession sparkSession = SparkSession.builder()
-            .master(this.sparkMaster)
-            .appName("sustain-query-service-" + Constants.Server.HOST)
-            .config("spark.executor.cores",
-                Constants.Spark.EXECUTOR_CORES)
-            .config("spark.executor.memory",
-                Constants.Spark.EXECUTOR_MEMORY)
-            .config("spark.dynamicAllocation.enabled", "true")
-            .config("spark.dynamicAllocation.shuffleTracking.enabled", "true")
-            .config("spark.dynamicAllocation.initialExecutors",
-                Constants.Spark.INITIAL_EXECUTORS)
-            .config("spark.dynamicAllocation.minExecutors",
-                Constants.Spark.MIN_EXECUTORS)
-            .config("spark.dynamicAllocation.maxExecutors",
-                Constants.Spark.MAX_EXECUTORS)
-            .config("spark.dynamicAllocation.schedulerBacklogTimeout",
-                Constants.Spark.BACKLOG_TIMEOUT)
-            .config("spark.dynamicAllocation.executorIdleTimeout",
-                Constants.Spark.IDLE_TIMEOUT)
-            .config("mongodb.keep_alive_ms", "100000")
-            .getOrCreate();
-
-        // if they don't exist - add JARs to SparkContext
-        JavaSparkContext sparkContext =
-            new JavaSparkContext(sparkSession.sparkContext());
-        for (String jar : this.jars) {
-            if (!sparkContext.jars().contains(jar)) {
-                sparkContext.addJar(jar);
-            }
+        getOrCreateSparkContext();
+        return this.sparkSession;
+    }
+
+    /**
+     * Returns the shared JavaSparkContext, (re)building the SparkSession only when
+     * it has not been created yet or has been stopped.
+     */
+    protected JavaSparkContext getOrCreateSparkContext() throws Exception {
+        JavaSparkContext sparkContext = this.sparkContext;
+        if (sparkContext != null && !sparkContext.sc().isStopped()) {
+            return sparkContext;
         }
 
-        return sparkSession;
+        synchronized (this) {
+            if (this.sparkContext != null && !this.sparkContext.sc().isStopped()) {
+                return this.sparkContext;
+            }
+
+            if (this.sparkContext != null) {
+                log.warn("Shared SparkContext was stopped, recreating it");
+            }
+
+            // get or create SparkSession
+            SparkSession.Builder builder = SparkSession.builder()
+                .master(this.sparkMaster)
+                .appName("sustain-query-service-" + Constants.Server.HOST)
+                .config("spark.executor.cores",
+                    Constants.Spark.EXECUTOR_CORES)
+                .config("spark.executor.memory",
+                    Constants.Spark.EXECUTOR_MEMORY)
+                .config("spark.dynamicAllocation.enabled", "true")
+                .config("spark.dynamicAllocation.shuffleTracking.enabled", "true")
+                .config("spark.dynamicAllocation.initialExecutors",
+                    Constants.Spark.INITIAL_EXECUTORS)
+                .config("spark.dynamicAllocation.minExecutors",
+                    Constants.Spark.MIN_EXECUTORS)
+                .config("spark.dynamicAllocation.maxExecutors",
+                    Constants.Spark.MAX_EXECUTORS)
+                .config("spark.dynamicAllocation.schedulerBacklogTimeout",
+                    Constants.Spark.BACKLOG_TIMEOUT)
+                .config("spark.dynamicAllocation.executorIdleTimeout",
+                    Constants.Spark.IDLE_TIMEOUT)
+                .config("mongodb.keep_alive_ms", "100000")
+                .config("spark.scheduler.mode", "FAIR");
+
+            // pool weights and minimum shares, otherwise every pool gets the defaults
+            if (Constants.Spark.SCHEDULER_ALLOCATION_FILE != null) {
+                builder.config("spark.scheduler.allocation.file",
+                    Constants.Spark.SCHEDULER_ALLOCATION_FILE);
+            }
+
+            SparkSession sparkSession = builder.getOrCreate();
+
+            // if they don't exist - add JARs to SparkContext
+            sparkContext = new JavaSparkContext(sparkSession.sparkContext());
+            for (String jar : this.jars) {
+                if (!sparkContext.jars().contains(jar)) {
+                    sparkContext.addJar(jar);
+                }
+            }
+
+            this.sparkSession = sparkSession;
+            this.sparkContext = sparkContext;
+            return sparkContext;
+        }
     }
 
     public <T> Future<T> submit(SparkTask<T> sparkTask,
             String jobGroup) throws Exception {
-        Future<T> future = this.executorService.submit(() -> {
-            // initialize spark session
-            SparkSession sparkSession = getOrCreateSparkSession();
-            JavaSparkContext sparkContext = 
-                new JavaSparkContext(sparkSession.sparkContext());
+        return submit(sparkTask, jobGroup, SparkJobPool.DEFAULT, 0);
+    }
 
+    /**
+     * Queues a SparkTask in the given queue class. Tasks with a higher priority
+     * run first, tasks with equal priority run in submission order.
+     * @param sparkTask The task to execute.
+     * @param jobGroup The Spark job group all jobs of this task are tagged with.
+     * @param pool The queue class (and Spark FAIR scheduler pool) to run the task in.
+     * @param priority The priority of the task within its queue class.
+     * @return A Future for the result of the task.
+     * @throws RejectedExecutionException if the queue class is at its maximum depth.
+     */
+    public <T> Future<T> submit(SparkTask<T> sparkTask, String jobGroup,
+            SparkJobPool pool, int priority) throws Exception {
+        // resolve the shared context on the caller's thread so session
+        // creation failures surface at submission time
+        JavaSparkContext sparkContext = getOrCreateSparkContext();
+
+        PrioritizedTask<T> task = new PrioritizedTask<>(() -> {
             // set job group so all jobs submitted from this thread
             // share a common id, also set interruptOnCancel
             sparkContext.setJobGroup(jobGroup, "", true);
+            sparkContext.setLocalProperty("spark.scheduler.pool", pool.getPoolName());
 
             try {
                 // execute spark task
@@ -96,9 +214,72 @@ public class SparkManager {
                 // -> cancel spark jobs for this group
                 sparkContext.cancelJobGroup(jobGroup);
                 throw e;
+            } finally {
+                // pooled threads are reused, don't leak the group or pool
+                sparkContext.clearJobGroup();
+                sparkContext.setLocalProperty("spark.scheduler.pool", null);
+            }
+        }, priority);
+
+        // admission policy: reject once the queue class is full
+        ThreadPoolExecutor executor = this.executors.get(pool);
+        synchronized (executor) {
+            int queued = executor.getQueue().size();
+            if (queued >= pool.getMaxQueueDepth()) {
+                log.warn("Rejecting job group {}: {} queue is full ({} pending tasks)",
+                    jobGroup, pool.getPoolName(), queued);
+                throw new RejectedExecutionException(String.format(
+                    "The %s queue is full (%d pending tasks), try again later",
+                    pool.getPoolName(), queued));
+            }
+            executor.execute(task);
+        }
+
+        return task;
+    }
+
+    /**
+     * FutureTask ordered by descending priority, then by submission order.
+     */
+    private static class PrioritizedTask<T> extends FutureTask<T>
+            implements Comparable<PrioritizedTask<?>> {
+        private static final AtomicLong sequencer = new AtomicLong();
+
+        private final int priority;
+        private final long sequence;
+
+        PrioritizedTask(Callable<T> callable, int priority) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequencer.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask<?> other) {
+            if (this.priority != other.priority) {
+                return Integer.compare(other.priority, this.priority);
             }
-        });
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Names driver threads after the queue class they serve.
+     */
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final SparkJobPool pool;
 
-        return future;
+        PoolThreadFactory(SparkJobPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "spark-" + this.pool.getPoolName() + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,227 @@
+package org.sustain.handlers;
+
+import com.mongodb.spark.MongoSpark;
+import com.mongodb.spark.config.ReadConfig;
+import com.mongodb.spark.config.WriteConfig;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.storage.StorageLevel;
+import org.sustain.BatchPredictRequest;
+import org.sustain.BatchPredictResponse;
+import org.sustain.Collection;
+import org.sustain.ModelRequest;
+import org.sustain.ModelResponse;
+import org.sustain.ModelType;
+import org.sustain.SparkJobPool;
+import org.sustain.SparkManager;
+import org.sustain.SparkTask;
+import org.sustain.modeling.ModelCache;
+import org.sustain.mongodb.PushdownPipeline;
+import org.sustain.util.Constants;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.apache.spark.sql.functions.col;
+
+/**
+ * Applies stored per-GISJoin models to every document of their GISJoins in one Spark job, and writes the
+ * predictions to another collection. The models are loaded through the driver's ModelCache, so they are compact
+ * TreeEnsembles or coefficient arrays, and broadcast to the executors once. Documents are partitioned by GISJoin
+ * and scored in batches of one GISJoin's rows, then saved with unordered bulk writes. Every prediction document
+ * keeps the _id of the document it scored, so running the same request again replaces its predictions.
+ */
+public class BatchPredictQueryHandler extends GrpcSparkHandler<ModelRequest, ModelResponse> {
+
+    private static final Logger log = LogManager.getLogger(BatchPredictQueryHandler.class);
+    private static final String DEFAULT_PREDICTION_FIELD = "prediction";
+    private static final int    BATCH_SIZE = 1024;
+
+    public BatchPredictQueryHandler(ModelRequest request, StreamObserver<ModelResponse> responseObserver,
+                                    SparkManager sparkManager) {
+        super(request, responseObserver, sparkManager);
+    }
+
+    @Override
+    public void handleRequest() {
+        if (isValid(this.request)) {
+            logRequest(this.request);
+            try {
+                BatchPredictResponse response = submit(new BatchPredictTask(),
+                    SparkJobPool.forModelType(this.request.getType()), this.request.getPriority()).get();
+                this.responseObserver.onNext(ModelResponse.newBuilder()
+                    .setBatchPredictResponse(response)
+                    .build());
+            } catch (Exception e) {
+                log.error("Failed to evaluate query", e);
+                onError(e);
+            }
+        } else {
+            log.warn("Invalid Model Request!");
+        }
+    }
+
+    protected class BatchPredictTask implements SparkTask<BatchPredictResponse> {
+
+        @Override
+        public BatchPredictResponse execute(JavaSparkContext sparkContext) throws Exception {
+            BatchPredictRequest bpRequest = request.getBatchPredictRequest();
+            Collection requestCollection = request.getCollections(0);
+            List<String> features = requestCollection.getFeaturesList();
+            String[] featureColumns = features.toArray(new String[0]);
+            String outputCollection = bpRequest.getOutputCollection().isEmpty()
+                ? requestCollection.getName() + "_predictions" : bpRequest.getOutputCollection();
+            String predictionField = bpRequest.getPredictionField().isEmpty()
+                ? DEFAULT_PREDICTION_FIELD : bpRequest.getPredictionField();
+
+            // Load every model on the driver, keyed by the GISJoin it was trained on
+            BatchPredictResponse.Builder response = BatchPredictResponse.newBuilder()
+                .setOutputCollection(outputCollection);
+            HashMap<String, ModelCache.Predictor> predictors = new HashMap<>();
+            for (String modelKey: bpRequest.getModelKeysList()) {
+                ModelCache.Predictor predictor = ModelCache.getInstance().get(modelKey);
+                // A model trained on the request's features in another order reads them in its own order
+                if (predictor == null || predictor.columnsOf(features) == null) {
+                    log.warn("No stored model with key {} for features {}, skipping", modelKey, features);
+                    response.addMissingModelKeys(modelKey);
+                } else if (predictors.containsKey(predictor.getGisJoin())) {
+                    // One model per GISJoin: the first key wins, so a later one doesn't silently replace it
+                    log.warn("Model {} is for GISJoin {}, which an earlier model key covers, skipping", modelKey,
+                        predictor.getGisJoin());
+                    response.addMissingModelKeys(modelKey);
+                } else {
+                    predictors.put(predictor.getGisJoin(), predictor);
+                }
+            }
+            if (predictors.isEmpty()) {
+                return response.build();
+            }
+
+            // Lazy-load only the models' documents and the features
+            Map<String, String> readOverrides = new HashMap<>();
+            String mongoUri = String.format("mongodb://%s:%s", Constants.DB.HOST, Constants.DB.PORT);
+            readOverrides.put("uri", mongoUri);
+            readOverrides.put("database", Constants.DB.NAME);
+            readOverrides.put("collection", requestCollection.getName());
+            ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
+            Dataset<Row> documents = PushdownPipeline.load(sparkContext, readConfig, "gis_join",
+                    new ArrayList<>(predictors.keySet()), features)
+                .na().drop(featureColumns)
+                .repartition(col("gis_join"))
+                .sortWithinPartitions(col("gis_join"));
+
+            StructType schema = new StructType()
+                .add("_id", documents.schema().apply("_id").dataType())
+                .add("gis_join", DataTypes.StringType)
+                .add(predictionField, DataTypes.DoubleType);
+            Broadcast<HashMap<String, ModelCache.Predictor>> broadcastPredictors = sparkContext.broadcast(predictors);
+            Dataset<Row> predictions = documents.mapPartitions(
+                (MapPartitionsFunction<Row, Row>) rows -> new PredictionIterator(rows, broadcastPredictors.value(),
+                    featureColumns.length),
+                RowEncoder.apply(schema));
+            try {
+                // Persisted, so the predictions are counted exactly once and the write doesn't score them again
+                predictions.persist(StorageLevel.MEMORY_AND_DISK());
+                long predictionCount = predictions.count();
+
+                Map<String, String> writeOverrides = new HashMap<>();
+                writeOverrides.put("uri", mongoUri);
+                writeOverrides.put("database", Constants.DB.NAME);
+                writeOverrides.put("collection", outputCollection);
+                writeOverrides.put("ordered", "false");
+                MongoSpark.save(predictions, WriteConfig.create(sparkContext.getConf(), writeOverrides));
+
+                log.info("Wrote {} predictions of {} models to collection {}", predictionCount,
+                    predictors.size(), outputCollection);
+                return response.setPredictionCount(predictionCount).build();
+            } finally {
+                // Failed and cancelled jobs must not leave the predictors on the executors
+                predictions.unpersist();
+                broadcastPredictors.destroy();
+            }
+        }
+    }
+
+    /**
+     * Scores a partition sorted by GISJoin lazily, up to BATCH_SIZE rows of one GISJoin at a time.
+     */
+    private static class PredictionIterator implements Iterator<Row> {
+
+        private final Iterator<Row>                     rows;
+        private final Map<String, ModelCache.Predictor> predictors;
+        private final ArrayDeque<Row>                   scored = new ArrayDeque<>();
+        private final Object[]                          ids = new Object[BATCH_SIZE];
+        private final double[]                          batch, predictions = new double[BATCH_SIZE];
+        private Row                                     next;
+
+        PredictionIterator(Iterator<Row> rows, Map<String, ModelCache.Predictor> predictors, int numFeatures) {
+            this.rows = rows;
+            this.predictors = predictors;
+            this.batch = new double[BATCH_SIZE * numFeatures];
+            this.next = rows.hasNext() ? rows.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (scored.isEmpty()) {
+                scoreBatch();
+            }
+            return !scored.isEmpty();
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return scored.poll();
+        }
+
+        private void scoreBatch() {
+            if (next == null) {
+                return;
+            }
+            String gisJoin = next.getAs("gis_join");
+            ModelCache.Predictor predictor = predictors.get(gisJoin);
+            List<String> features = predictor.getFeatures();
+            int numRows = 0;
+            while (next != null && numRows < BATCH_SIZE && gisJoin.equals(next.getAs("gis_join"))) {
+                ids[numRows] = next.getAs("_id");
+                for (int i = 0; i < features.size(); i++) {
+                    batch[numRows * features.size() + i] = ((Number) next.getAs(features.get(i))).doubleValue();
+                }
+                numRows++;
+                next = rows.hasNext() ? rows.next() : null;
+            }
+
+            predictor.predict(batch, numRows, predictions);
+            for (int r = 0; r < numRows; r++) {
+                scored.add(RowFactory.create(ids[r], gisJoin, predictions[r]));
+            }
+        }
+    }
+
+    @Override
+    public boolean isValid(ModelRequest modelRequest) {
+        return modelRequest.getType().equals(ModelType.BATCH_PREDICT)
+            && modelRequest.getCollectionsCount() == 1
+            && modelRequest.getCollections(0).getFeaturesCount() > 0
+            && modelRequest.hasBatchPredictRequest();
+    }
+}
@@ -1,14 +1,11 @@
 package org.sustain.handlers;
 
-import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
-import com.google.gson.reflect.TypeToken;
-import com.mongodb.spark.MongoSpark;
-import com.mongodb.spark.config.ReadConfig;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.ml.Estimator;
+import org.apache.spark.ml.Model;
 import org.apache.spark.ml.clustering.BisectingKMeans;
 import org.apache.spark.ml.clustering.BisectingKMeansModel;
 import org.apache.spark.ml.clustering.GaussianMixture;
@@ -17,38 +14,59 @@ import org.apache.spark.ml.clustering.KMeans;
 import org.apache.spark.ml.clustering.KMeansModel;
 import org.apache.spark.ml.clustering.LDA;
 import org.apache.spark.ml.clustering.LDAModel;
-import org.apache.spark.ml.feature.MinMaxScaler;
-import org.apache.spark.ml.feature.MinMaxScalerModel;
-import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.evaluation.ClusteringEvaluator;
 import org.apache.spark.ml.linalg.Vector;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.sustain.BisectingKMeansResponse;
+import org.sustain.ClusterCountSweep;
+import org.sustain.ClusterCountSweepResponse;
 import org.sustain.GaussianMixtureResponse;
 import org.sustain.KMeansClusteringResponse;
 import org.sustain.LatentDirichletAllocationResponse;
+import org.sustain.MiniBatch;
+import org.sustain.MiniBatchCenter;
+import org.sustain.MiniBatchIterationResponse;
 import org.sustain.ModelRequest;
 import org.sustain.ModelResponse;
 import org.sustain.ModelType;
+import org.sustain.SparkJobPool;
 import org.sustain.SparkManager;
 import org.sustain.SparkTask;
+import org.sustain.modeling.FeatureMatrixStore;
+import org.sustain.modeling.MiniBatchKMeans;
+import org.sustain.modeling.local.LocalKMeans;
 import org.sustain.util.Constants;
 import scala.collection.JavaConverters;
 import scala.collection.Seq;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+
+import static org.apache.spark.ml.functions.vector_to_array;
+import static org.apache.spark.sql.functions.array_max;
+import static org.apache.spark.sql.functions.array_position;
 
 public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, ModelResponse> implements SparkTask<Boolean> {
 
     private static final Logger log = LogManager.getFormatterLogger(ClusteringQueryHandler.class);
 
+    // K-means on feature matrices of at most this many rows runs on the driver, with this many restarts
+    private static final long LOCAL_KMEANS_MAX_ROWS = Long.parseLong(
+            System.getenv().getOrDefault("LOCAL_KMEANS_MAX_ROWS", "20000"));
+    private static final int LOCAL_KMEANS_RESTARTS = Integer.parseInt(
+            System.getenv().getOrDefault("LOCAL_KMEANS_RESTARTS", "4"));
+
     public ClusteringQueryHandler(ModelRequest request, StreamObserver<ModelResponse> responseObserver, SparkManager sparkManager) {
         super(request, responseObserver, sparkManager);
     }
@@ -66,18 +84,18 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         try {
             // Submit task to Spark Manager
             Future<Boolean> future =
-				this.sparkManager.submit(this, "clustering-query");
+				submit(this, SparkJobPool.forModelType(request.getType()), request.getPriority());
 
             // Wait for task to complete
             future.get();
         } catch (Exception e) {
             log.error("Failed to evaluate query", e);
-            responseObserver.onError(e);
+            onError(e);
         }
     }
 
     @Override
-    public Boolean execute(JavaSparkContext sparkContext) {
+    public Boolean execute(JavaSparkContext sparkContext) throws Exception {
         switch (request.getType()) {
             case K_MEANS_CLUSTERING:
                 buildKMeansModel(sparkContext);
@@ -96,7 +114,7 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         return true;
     }
 
-    private void buildLatentDirichletAllocationModel(JavaSparkContext sparkContext) {
+    private void buildLatentDirichletAllocationModel(JavaSparkContext sparkContext) throws IOException {
         int k = request.getLatentDirichletAllocationRequest().getClusterCount();
         int maxIterations = request.getLatentDirichletAllocationRequest().getMaxIterations();
         Dataset<Row> featureDF = preprocessAndGetFeatureDF(sparkContext);
@@ -110,36 +128,56 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         log.info("LDA: Lower bound on the log likelihood of the entire corpus: " + ll);
         log.info("LDA: Upper bound on perplexity: " + lp);
 
-        // results
+        // results, each GISJoin's cluster is its most likely topic
         Dataset<Row> predictDF = model.transform(featureDF);
+        Column topics = vector_to_array(predictDF.col("topicDistribution"), "float64");
+        predictDF = predictDF.withColumn("prediction",
+                array_position(topics, array_max(topics)).minus(1).cast("int"));
         log.info("Predictions...");
         predictDF.show(10);
 
-        Dataset<String> jsonResults = predictDF.toJSON();
-        String jsonString = jsonResults.collectAsList().toString();
-
-        Gson gson = new Gson();
-        Type type = new TypeToken<List<ClusteringResult>>() {
-        }.getType();
-        List<ClusteringResult> results = gson.fromJson(jsonString, type);
-        log.info("results.size(): " + results.size());
-
         log.info("Writing LatentDirichletAllocationResponse to stream");
-        for (ClusteringResult result : results) {
-            responseObserver.onNext(ModelResponse.newBuilder()
-                    .setLatentDirichletAllocationResponse(
-                            LatentDirichletAllocationResponse.newBuilder()
-                                    .setGisJoin(result.getGisJoin())
-                                    .setPrediction(result.getPrediction())
-                                    .build()
-                    ).build()
-            );
-        }
+        streamPredictions(predictDF, (gisJoin, prediction) -> ModelResponse.newBuilder()
+                .setLatentDirichletAllocationResponse(
+                        LatentDirichletAllocationResponse.newBuilder()
+                                .setGisJoin(gisJoin)
+                                .setPrediction(prediction)
+                                .build()
+                ).build()
+        );
     }
 
-    private void buildKMeansModel(JavaSparkContext sparkContext) {
+    private void buildKMeansModel(JavaSparkContext sparkContext) throws Exception {
         int k = request.getKMeansClusteringRequest().getClusterCount();
-        Dataset<Row> featureDF = preprocessAndGetFeatureDF(sparkContext);
+        FeatureMatrixStore.FeatureMatrix featureMatrix = getFeatureMatrix(sparkContext);
+        Dataset<Row> featureDF = featureMatrix.getVectors();
+        if (request.getKMeansClusteringRequest().hasClusterCountSweep()) {
+            sweepClusterCounts(featureDF, request.getKMeansClusteringRequest().getClusterCountSweep(),
+                    clusterCount -> new KMeans().setK(clusterCount).setSeed(1L),
+                    (gisJoin, prediction) -> ModelResponse.newBuilder()
+                            .setKMeansClusteringResponse(
+                                    KMeansClusteringResponse.newBuilder()
+                                            .setGisJoin(gisJoin)
+                                            .setPrediction(prediction)
+                                            .build()
+                            ).build()
+            );
+            return;
+        }
+
+        if (request.getKMeansClusteringRequest().hasMiniBatch()) {
+            buildMiniBatchKMeansModel(featureMatrix, k);
+            return;
+        }
+
+        // Small matrices, e.g. counties, are clustered on the driver without Spark jobs
+        FeatureMatrixStore.LocalFeatures local = featureMatrix.toLocal(LOCAL_KMEANS_MAX_ROWS);
+        if (local != null) {
+            buildLocalKMeansModel(local, k);
+            return;
+        }
+        featureDF.show(10);
+
         // KMeans Clustering
         KMeans kmeans = new KMeans().setK(k).setSeed(1L);
         KMeansModel model = kmeans.fit(featureDF);
@@ -153,32 +191,109 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         Dataset<Row> predictDF = model.transform(featureDF).select(Constants.GIS_JOIN, "prediction");
         predictDF.show(10);
 
-        Dataset<String> jsonResults = predictDF.toJSON();
-        String jsonString = jsonResults.collectAsList().toString();
+        log.info("Writing KMeansClusteringResponses to stream");
+        streamPredictions(predictDF, (gisJoin, prediction) -> ModelResponse.newBuilder()
+                .setKMeansClusteringResponse(
+                        KMeansClusteringResponse.newBuilder()
+                                .setGisJoin(gisJoin)
+                                .setPrediction(prediction)
+                                .build()
+                ).build()
+        );
+    }
+
+    private void buildMiniBatchKMeansModel(FeatureMatrixStore.FeatureMatrix featureMatrix, int k) {
+        MiniBatch miniBatch = request.getKMeansClusteringRequest().getMiniBatch();
+        int maxIterations = request.getKMeansClusteringRequest().getMaxIterations();
+        MiniBatchKMeans miniBatchKMeans = new MiniBatchKMeans(k,
+                maxIterations > 0 ? maxIterations : 100,
+                miniBatch.getBatchFraction() > 0 ? Math.min(miniBatch.getBatchFraction(), 1.0) : 0.1,
+                miniBatch.getDriftTolerance() > 0 ? miniBatch.getDriftTolerance() : 1e-3,
+                1L);
+
+        // Each iteration's centers are streamed while fitting, in the original feature units and the request's
+        // feature order; the matrix' dimensions are in sorted feature order
+        Vector originalMin = featureMatrix.getOriginalMin();
+        Vector originalMax = featureMatrix.getOriginalMax();
+        List<String> requestFeatures = request.getCollections(0).getFeaturesList();
+        int[] dimensions = new int[requestFeatures.size()];
+        for (int f = 0; f < dimensions.length; f++) {
+            dimensions[f] = featureMatrix.getFeatures().indexOf(requestFeatures.get(f));
+        }
+        MiniBatchKMeans.InterimListener listener = !miniBatch.getStreamInterim() ? null
+                : (iteration, centers, batchCounts, totalCounts, drift) -> {
+                    int dims = originalMin.size();
+                    MiniBatchIterationResponse.Builder iterationResponse = MiniBatchIterationResponse.newBuilder()
+                            .setIteration(iteration)
+                            .setDrift(drift);
+                    for (int c = 0; c < batchCounts.length; c++) {
+                        MiniBatchCenter.Builder center = MiniBatchCenter.newBuilder()
+                                .setBatchCount(batchCounts[c])
+                                .setTotalCount(totalCounts[c]);
+                        for (int d: dimensions) {
+                            double min = originalMin.apply(d);
+                            center.addCenter(min + centers[c * dims + d] * (originalMax.apply(d) - min));
+                        }
+                        iterationResponse.addCenters(center);
+                    }
+                    responseObserver.onNext(ModelResponse.newBuilder()
+                            .setMiniBatchIterationResponse(iterationResponse)
+                            .build());
+                };
+        KMeansModel model = miniBatchKMeans.fit(featureMatrix.getVectors(), featureMatrix.getFeatures().size(),
+                listener);
+
+        log.info("Writing KMeansClusteringResponses to stream");
+        Dataset<Row> predictDF = model.transform(featureMatrix.getVectors());
+        streamPredictions(predictDF, (gisJoin, prediction) -> ModelResponse.newBuilder()
+                .setKMeansClusteringResponse(
+                        KMeansClusteringResponse.newBuilder()
+                                .setGisJoin(gisJoin)
+                                .setPrediction(prediction)
+                                .build()
+                ).build()
+        );
+    }
 
-        Gson gson = new Gson();
-        Type type = new TypeToken<List<ClusteringResult>>() {
-        }.getType();
-        List<ClusteringResult> results = gson.fromJson(jsonString, type);
-        log.info("results.size(): " + results.size());
+    private void buildLocalKMeansModel(FeatureMatrixStore.LocalFeatures local, int k) {
+        int maxIterations = request.getKMeansClusteringRequest().getMaxIterations();
+        long startTime = System.currentTimeMillis();
+        LocalKMeans.Result result = new LocalKMeans(k, maxIterations > 0 ? maxIterations : 20, 1e-4,
+                LOCAL_KMEANS_RESTARTS).fit(local.getRows(), local.getNumRows(), local.getNumFeatures(), 1L);
+        log.info("Clustered %d rows locally in %d ms, %d iterations, cost %f", local.getNumRows(),
+                System.currentTimeMillis() - startTime, result.getIterations(), result.getCost());
 
         log.info("Writing KMeansClusteringResponses to stream");
-        for (ClusteringResult result : results) {
+        int[] assignments = result.getAssignments();
+        for (int i = 0; i < assignments.length && !isCancelled(); i++) {
             responseObserver.onNext(ModelResponse.newBuilder()
                     .setKMeansClusteringResponse(
                             KMeansClusteringResponse.newBuilder()
-                                    .setGisJoin(result.getGisJoin())
-                                    .setPrediction(result.getPrediction())
+                                    .setGisJoin(local.getGisJoins()[i])
+                                    .setPrediction(assignments[i])
                                     .build()
                     ).build()
             );
         }
     }
 
-    private void buildBisectingKMeansModel(JavaSparkContext sparkContext) {
+    private void buildBisectingKMeansModel(JavaSparkContext sparkContext) throws Exception {
         Dataset<Row> featureDF = preprocessAndGetFeatureDF(sparkContext);
         int k = request.getBisectingKMeansRequest().getClusterCount();
         int maxIterations = request.getBisectingKMeansRequest().getMaxIterations();
+        if (request.getBisectingKMeansRequest().hasClusterCountSweep()) {
+            sweepClusterCounts(featureDF, request.getBisectingKMeansRequest().getClusterCountSweep(),
+                    clusterCount -> new BisectingKMeans().setK(clusterCount).setMaxIter(maxIterations),
+                    (gisJoin, prediction) -> ModelResponse.newBuilder()
+                            .setBisectingKMeansResponse(
+                                    BisectingKMeansResponse.newBuilder()
+                                            .setGisJoin(gisJoin)
+                                            .setPrediction(prediction)
+                                            .build()
+                            ).build()
+            );
+            return;
+        }
 
         BisectingKMeans bisectingKMeans = new BisectingKMeans().setK(k).setMaxIter(maxIterations);
         BisectingKMeansModel model = bisectingKMeans.fit(featureDF);
@@ -188,29 +303,18 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         log.info("Predictions ...");
         predictDF.show(10);
 
-        Dataset<String> jsonResults = predictDF.toJSON();
-        String jsonString = jsonResults.collectAsList().toString();
-
-        Gson gson = new Gson();
-        Type type = new TypeToken<List<ClusteringResult>>() {
-        }.getType();
-        List<ClusteringResult> results = gson.fromJson(jsonString, type);
-        log.info("results.size(): " + results.size());
-
         log.info("Writing BisectingKMeansResponses to stream");
-        for (ClusteringResult result : results) {
-            responseObserver.onNext(ModelResponse.newBuilder()
-                    .setBisectingKMeansResponse(
-                            BisectingKMeansResponse.newBuilder()
-                                    .setGisJoin(result.getGisJoin())
-                                    .setPrediction(result.getPrediction())
-                                    .build()
-                    ).build()
-            );
-        }
+        streamPredictions(predictDF, (gisJoin, prediction) -> ModelResponse.newBuilder()
+                .setBisectingKMeansResponse(
+                        BisectingKMeansResponse.newBuilder()
+                                .setGisJoin(gisJoin)
+                                .setPrediction(prediction)
+                                .build()
+                ).build()
+        );
     }
 
-    private void buildGaussianMixtureModel(JavaSparkContext sparkContext) {
+    private void buildGaussianMixtureModel(JavaSparkContext sparkContext) throws IOException {
         Dataset<Row> featureDF = preprocessAndGetFeatureDF(sparkContext);
         int k = request.getGaussianMixtureRequest().getClusterCount();
         int maxIterations = request.getGaussianMixtureRequest().getMaxIterations();
@@ -229,29 +333,25 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
         log.info("Predictions ...");
         predictDF.show(10);
 
-        Dataset<String> jsonResults = predictDF.toJSON();
-        String jsonString = jsonResults.collectAsList().toString();
+        log.info("Writing GaussianMixtureResponses to stream");
+        streamPredictions(predictDF, (gisJoin, prediction) -> ModelResponse.newBuilder()
+                .setGaussianMixtureResponse(
+                        GaussianMixtureResponse.newBuilder()
+                                .setGisJoin(gisJoin)
+                                .setPrediction(prediction)
+                                .build()
+                ).build()
+        );
+    }
 
-        Gson gson = new Gson();
-        Type type = new TypeToken<List<ClusteringResult>>() {
-        }.getType();
-        List<ClusteringResult> results = gson.fromJson(jsonString, type);
-        log.info("results.size(): " + results.size());
+    private Dataset<Row> preprocessAndGetFeatureDF(JavaSparkContext sparkContext) throws IOException {
+        Dataset<Row> featureDF = getFeatureMatrix(sparkContext).getVectors();
+        featureDF.show(10);
 
-        log.info("Writing GaussianMixtureResponses to stream");
-        for (ClusteringResult result : results) {
-            responseObserver.onNext(ModelResponse.newBuilder()
-                    .setGaussianMixtureResponse(
-                            GaussianMixtureResponse.newBuilder()
-                                    .setGisJoin(result.getGisJoin())
-                                    .setPrediction(result.getPrediction())
-                                    .build()
-                    ).build()
-            );
-        }
+        return featureDF;
     }
 
-    private Dataset<Row> preprocessAndGetFeatureDF(JavaSparkContext sparkContext) {
+    private FeatureMatrixStore.FeatureMatrix getFeatureMatrix(JavaSparkContext sparkContext) throws IOException {
 		// Identify resolution of evaluation
         String resolution = "";
         switch (request.getType()) {
@@ -272,74 +372,88 @@ public class ClusteringQueryHandler extends GrpcSparkHandler<ModelRequest, Model
                 break;
         }
 
-		// Initialize mongodb read configuration
-        Map<String, String> readOverrides = new HashMap();
-        readOverrides.put("spark.mongodb.input.collection", resolution + "_stats");
-        readOverrides.put("spark.mongodb.input.database", Constants.DB.NAME);
-        readOverrides.put("spark.mongodb.input.uri",
-            "mongodb://" + Constants.DB.HOST + ":" + Constants.DB.PORT);
-
-        ReadConfig readConfig = 
-            ReadConfig.create(sparkContext.getConf(), readOverrides);
-
-		// Load mongodb rdd and convert to dataset
-        log.info("Preprocessing data");
-        Dataset<Row> collection = MongoSpark.load(sparkContext, readConfig).toDF();
-        List<String> featuresList = new ArrayList<>(request.getCollections(0).getFeaturesList());
-        Seq<String> features = convertListToSeq(featuresList);
-
-        Dataset<Row> selectedFeatures = collection.select(Constants.GIS_JOIN, features);
-
-        // Dropping rows with null values
-        selectedFeatures = selectedFeatures.na().drop();
-
-        // Assembling
-        VectorAssembler assembler =
-                new VectorAssembler().setInputCols(featuresList.toArray(new String[0])).setOutputCol("features");
-        Dataset<Row> featureDF = assembler.transform(selectedFeatures);
-        featureDF.show(10);
-
-        // Scaling
-        log.info("Normalizing features");
-        MinMaxScaler scaler = new MinMaxScaler()
-                .setInputCol("features")
-                .setOutputCol("normalized_features");
-        MinMaxScalerModel scalerModel = scaler.fit(featureDF);
-
-        featureDF = scalerModel.transform(featureDF);
-        featureDF = featureDF.drop("features");
-        featureDF = featureDF.withColumnRenamed("normalized_features", "features");
+        // Assembled and normalized once per resolution, features and version of the collection
+        return FeatureMatrixStore.getInstance().get(sparkContext, resolution,
+                request.getCollections(0).getFeaturesList());
+    }
 
-        log.info("Dataframe after min-max normalization");
-        featureDF.show(10);
 
-        return featureDF;
+    /**
+     * Fits the estimator with every cluster count of the sweep on the same persisted features, up to
+     * CLUSTERING_SWEEP_CONCURRENCY (default 4) at once, and streams a ClusterCountSweepResponse per count. Then
+     * streams the assignments of the count with the highest silhouette.
+     * @param estimator Builds the estimator for a cluster count; its models must be KMeansModels or
+     *                  BisectingKMeansModels.
+     * @param toResponse Builds the assignment response of a GISJoin and its cluster.
+     */
+    private void sweepClusterCounts(Dataset<Row> featureDF, ClusterCountSweep sweep,
+                                    IntFunction<Estimator<? extends Model<?>>> estimator,
+                                    BiFunction<String, Integer, ModelResponse> toResponse) throws Exception {
+        int minK = Math.max(2, sweep.getMinClusterCount());
+        int maxK = Math.max(minK, sweep.getMaxClusterCount());
+        log.info("Sweeping cluster counts %d to %d", minK, maxK);
+
+        // Threads started from this task's thread inherit its Spark job group and scheduler pool
+        int concurrency = Math.min(maxK - minK + 1, Integer.parseInt(
+                System.getenv().getOrDefault("CLUSTERING_SWEEP_CONCURRENCY", "4")));
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        ClusteringEvaluator evaluator = new ClusteringEvaluator();
+        List<Future<Model<?>>> models = new ArrayList<>();
+        try {
+            for (int k = minK; k <= maxK; k++) {
+                int clusterCount = k;
+                models.add(executor.submit(() -> estimator.apply(clusterCount).fit(featureDF)));
+            }
+
+            List<ClusterCountSweepResponse.Builder> results = new ArrayList<>();
+            Model<?> chosenModel = null;
+            int chosen = -1;
+            for (int i = 0; i < models.size(); i++) {
+                Model<?> model = models.get(i).get();
+                double cost = model instanceof KMeansModel
+                        ? ((KMeansModel) model).summary().trainingCost()
+                        : ((BisectingKMeansModel) model).summary().trainingCost();
+                double silhouette = evaluator.evaluate(model.transform(featureDF));
+                log.info("Cluster count %d: training cost %f, silhouette %f", minK + i, cost, silhouette);
+                results.add(ClusterCountSweepResponse.newBuilder()
+                        .setClusterCount(minK + i)
+                        .setTrainingCost(cost)
+                        .setSilhouette(silhouette));
+                if (chosen < 0 || silhouette > results.get(chosen).getSilhouette()) {
+                    chosen = i;
+                    chosenModel = model;
+                }
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                responseObserver.onNext(ModelResponse.newBuilder()
+                        .setClusterCountSweepResponse(results.get(i).setChosen(i == chosen))
+                        .build());
+            }
+            streamPredictions(chosenModel.transform(featureDF), toResponse);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-
     public Seq<String> convertListToSeq(List<String> inputList) {
         return JavaConverters.asScalaIteratorConverter(inputList.iterator()).asScala().toSeq();
     }
 
-    private static class ClusteringResult {
-        @SerializedName("GISJOIN")
-        String gisJoin;
-        int prediction;
-
-        public String getGisJoin() {
-            return gisJoin;
-        }
-
-        public int getPrediction() {
-            return prediction;
-        }
-
-        @Override
-        public String toString() {
-            return "ClusteringResult{" +
-                    "gisJoin='" + gisJoin + '\'' +
-                    ", prediction=" + prediction +
-                    '}';
+    /**
+     * Streams a response for every row of the predictions while Spark computes them, one partition at a time, so
+     * the driver holds at most one partition and the first responses leave as soon as its partition is done.
+     * @param predictDF Predictions, with the GISJoin and an integer "prediction" column.
+     * @param toResponse Builds the response of a GISJoin and its cluster.
+     */
+    private void streamPredictions(Dataset<Row> predictDF, BiFunction<String, Integer, ModelResponse> toResponse) {
+        Iterator<Row> rows = predictDF.select(Constants.GIS_JOIN, "prediction").toLocalIterator();
+        long count = 0;
+        while (rows.hasNext() && !isCancelled()) {
+            Row row = rows.next();
+            responseObserver.onNext(toResponse.apply(row.getString(0), row.getInt(1)));
+            count++;
         }
+        log.info("Streamed %d predictions", count);
     }
 }
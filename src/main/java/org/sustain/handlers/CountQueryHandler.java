@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 
 import org.sustain.CountResponse;
 import org.sustain.CountRequest;
+import org.sustain.SparkJobPool;
 import org.sustain.SparkManager;
 import org.sustain.SparkTask;
 import org.sustain.server.SustainServer;
@@ -46,8 +47,7 @@ public class CountQueryHandler extends GrpcSparkHandler<CountRequest, CountRespo
                 CountSparkTask countSparkTask = new CountSparkTask(collection);
 
                 // submit task to SparkManager
-                Future<Long> future = this.sparkManager.submit(
-                    countSparkTask, "count-query");
+                Future<Long> future = submit(countSparkTask, SparkJobPool.COUNT, 0);
 
                 futures.add(future);
             }
@@ -64,7 +64,7 @@ public class CountQueryHandler extends GrpcSparkHandler<CountRequest, CountRespo
             responseObserver.onCompleted();
         } catch (Exception e) {
             log.error("Failed to evaluate query", e);
-            responseObserver.onError(e);
+            onError(e);
         }
     }
 
@@ -23,7 +23,6 @@
  * ======================================================== */
 package org.sustain.handlers;
 
-import com.mongodb.spark.MongoSpark;
 import com.mongodb.spark.config.ReadConfig;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
@@ -31,6 +30,7 @@ import org.apache.logging.log4j.Logger;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.ml.feature.*;
 import org.apache.spark.ml.linalg.DenseVector;
+import org.apache.spark.ml.param.Params;
 import org.apache.spark.ml.regression.GBTRegressionModel;
 import org.apache.spark.ml.regression.RandomForestRegressionModel;
 import org.apache.spark.sql.Dataset;
@@ -38,6 +38,10 @@ import org.apache.spark.sql.Row;
 import org.sustain.Collection;
 import org.sustain.*;
 import org.sustain.modeling.*;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalTraining;
+import org.sustain.mongodb.GisJoinRowCounts;
+import org.sustain.mongodb.PushdownPipeline;
 import org.sustain.util.Constants;
 import org.sustain.util.CountyClusters;
 import org.sustain.util.FancyLogger;
@@ -45,12 +49,22 @@ import scala.Tuple2;
 import scala.collection.Iterator;
 
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelResponse> {
 
     private static final double targetVariance = 0.95;
     private static final double samplingPercentage = 0.0003;
+    // Children are trained in tasks of about this many GISJoins, submitted as their parent finishes
+    private static final int CHILDREN_PER_TASK = 10;
     private static final Logger log = LogManager.getLogger(EnsembleQueryHandler.class);
     private String filename = "driver.txt";
 
@@ -88,11 +102,13 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
         private final RForestRegressionRequest rfRequest;
         private final Collection requestCollection;
         private final List<String> gisJoins;
-        private Map<String, RandomForestRegressionModel> trained_parents;
+        private Map<String, RFRegressionExhaustiveModel> trained_parents;
         private Map<String, String> reverseChildToParentMap = null;
         private Map<String, Double> parentRmse = null;
+        // Searches the grid even if the registry has parameters, to revalidate them
+        private boolean refreshOnly = false;
 
-        RFRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, Double> parentRmse, Map<String, RandomForestRegressionModel> trained_parents) {
+        RFRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, Double> parentRmse, Map<String, RFRegressionExhaustiveModel> trained_parents) {
             this.rfRequest = modelRequest.getRForestRegressionRequest();
             this.requestCollection = modelRequest.getCollections(0); // We only support 1 collection currently
             this.gisJoins = gisJoins;
@@ -100,7 +116,7 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
             this.parentRmse = parentRmse;
         }
 
-        RFRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, RandomForestRegressionModel> trained_parents,
+        RFRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, RFRegressionExhaustiveModel> trained_parents,
                          Map<String, Double> parentRmse, Map<String, String> reverseChildToParentMap) {
             this.rfRequest = modelRequest.getRForestRegressionRequest();
             this.requestCollection = modelRequest.getCollections(0); // We only support 1 collection currently
@@ -112,6 +128,14 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
 
 
 
+        /**
+         * Makes this parent task search the grid for its parents even if the registry has parameters for them.
+         */
+        RFRegressionTask asRefresh() {
+            this.refreshOnly = true;
+            return this;
+        }
+
         @Override
         public List<ModelResponse> execute(JavaSparkContext sparkContext) throws Exception {
 
@@ -128,8 +152,11 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
 
             ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
 
-            // FETCHING MONGO COLLECTION ONCE FOR ALL MODELS
-            Dataset<Row> mongocollection = MongoSpark.load(sparkContext, readConfig).toDF();
+            // FETCHING ONLY THIS BATCH'S DOCUMENTS AND COLUMNS ONCE FOR ALL MODELS
+            List<String> columns = new ArrayList<>(collection.getFeaturesList());
+            columns.add(collection.getLabel());
+            Dataset<Row> mongocollection = PushdownPipeline.load(sparkContext, readConfig, "gis_join",
+                    this.gisJoins, columns);
 
             List<ModelResponse> modelResponses = new ArrayList<>();
 
@@ -174,29 +201,77 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                         model.setMinInstancesPerNode(rfRequest.getMinInstancesPerNode());
                     if (rfRequest.getMinWeightFractionPerNode() >= 0.0 && rfRequest.getMinWeightFractionPerNode() < 0.5)
                         model.setMinWeightFractionPerNode(rfRequest.getMinWeightFractionPerNode());
-
-
-                    // Submit task to Spark Manager
-                    boolean ok = model.train();
+                    model.setHyperparameterSearch(rfRequest.getHyperparameterSearch());
+
+                    // Parameters a previous grid search selected for this cluster are trained with once
+                    String registryKey = HyperparameterRegistry.key("RF", collection.getName(), collection.getLabel(),
+                            collection.getFeaturesList(), gisJoin, rfRequest.getHyperparameterSearch());
+                    HyperparameterRegistry.Entry tunedParameters = refreshOnly ? null
+                            : HyperparameterRegistry.getInstance().lookup(registryKey);
+                    model.setTunedParameters(tunedParameters);
+
+                    // The model of an identical earlier request is restored instead of trained
+                    String modelKey = ModelStore.key(request.getType(), collection, gisJoin,
+                            rfRequest.toBuilder().clearGisJoins());
+                    ModelResponse storedResponse = refreshOnly ? null : ModelStore.getInstance().loadResponse(modelKey);
+                    RandomForestRegressionModel storedModel = storedResponse != null
+                            ? ModelStore.getInstance().loadModel(modelKey, RandomForestRegressionModel.read()) : null;
+                    ModelStore.LocalModel storedLocalModel = storedResponse != null && storedModel == null
+                            ? ModelStore.getInstance().loadLocalModel(modelKey) : null;
+                    if (storedLocalModel != null && storedLocalModel.getParams() == null) {
+                        storedLocalModel = null;
+                    }
+                    boolean restored = storedModel != null || storedLocalModel != null;
+
+                    // Small GISJoins are trained in-process, the rest on Spark
+                    boolean ok;
+                    if (storedModel != null) {
+                        model.restore(storedModel, storedResponse.getRForestRegressionResponse().getRmse(),
+                                storedResponse.getRForestRegressionResponse().getR2());
+                        ok = true;
+                    } else if (storedLocalModel != null) {
+                        model.restore(storedLocalModel, storedResponse.getRForestRegressionResponse().getRmse(),
+                                storedResponse.getRForestRegressionResponse().getR2());
+                        ok = true;
+                    } else {
+                        ok = LocalTraining.shouldTrainLocally(collection.getName(), "gis_join", gisJoin)
+                                ? model.trainLocally(LocalDataset.load(collection.getName(), "gis_join", gisJoin,
+                                        collection.getFeaturesList(), collection.getLabel()))
+                                : model.train();
+                    }
 
                     if (ok) {
 
-                        synchronized (this) {
-                            trained_parents.put(gisJoin, model.getTrained_rfModel());
-                            parentRmse.put(gisJoin,model.getRmse());
+                        parentRmse.put(gisJoin, model.getRmse());
+                        trained_parents.put(gisJoin, model);
+                        if (!restored) {
+                            updateRegistry(registryKey, tunedParameters, model.getBestEstimator(),
+                                    RFRegressionExhaustiveModel.GRID_PARAMS, model.getRmse(),
+                                    () -> new RFRegressionTask(request, Collections.singletonList(gisJoin),
+                                            new ConcurrentHashMap<>(), new ConcurrentHashMap<>()).asRefresh());
                         }
 
                         RForestRegressionResponse rsp = RForestRegressionResponse.newBuilder()
                                 .setGisJoin(model.getGisJoin())
                                 .setRmse(model.getRmse())
                                 .setR2(model.getR2())
+                                .setModelKey(modelKey)
                                 .build();
 
-                        modelResponses.add(ModelResponse.newBuilder()
+                        ModelResponse modelResponse = ModelResponse.newBuilder()
                                 .setRForestRegressionResponse(rsp)
-                                .build());
+                                .addAllFeatures(requestCollection.getFeaturesList())
+                                .build();
+                        if (!restored) {
+                            ModelStore.getInstance().save(modelKey, model.getTrained_rfModel(), model.getLocalModel(),
+                                    modelResponse);
+                        }
+                        modelResponses.add(modelResponse);
                     } else {
                         log.info("Ran into a problem building a model for GISJoin {}, skipping.", gisJoin);
+                        if (refreshOnly) {
+                            HyperparameterRegistry.getInstance().refreshFailed(registryKey);
+                        }
                     }
                 } else {
                     // TRAINING CHILDREN
@@ -204,9 +279,20 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                             gisJoin);
 
                     String parentGisJoin = reverseChildToParentMap.get(gisJoin);
-                    RandomForestRegressionModel parentRegressionModel = trained_parents.get(parentGisJoin);
+                    String modelKey = ModelStore.key(request.getType(), collection, gisJoin,
+                            rfRequest.toBuilder().clearGisJoins(), parentGisJoin);
+                    ModelResponse storedResponse = ModelStore.getInstance().loadResponse(modelKey);
+                    if (storedResponse != null) {
+                        modelResponses.add(storedResponse);
+                        continue;
+                    }
+
+                    RFRegressionExhaustiveModel parentModel = trained_parents.get(parentGisJoin);
                     double targetRMSE = parentRmse.get(parentGisJoin);
-                    model.setParent_rfModel(parentRegressionModel);
+                    model.setParent_rf(parentModel.getBestEstimator());
+                    model.setParent_rfModel(parentModel.getTrained_rfModel());
+                    model.setParent_rfEnsemble(parentModel.getTrained_rfEnsemble());
+                    model.setTransfer(rfRequest.getTransfer());
                     model.setParent_rmse(targetRMSE);
                     model.parentGisJoin = parentGisJoin;
                     model.setFilename();
@@ -247,8 +333,11 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                         model.setMinWeightFractionPerNode(rfRequest.getMinWeightFractionPerNode());
 
 
-                    // Submit task to Spark Manager
-                    boolean ok = model.train();
+                    // Small GISJoins are trained in-process, the rest on Spark
+                    boolean ok = LocalTraining.shouldTrainLocally(collection.getName(), "gis_join", gisJoin)
+                            ? model.trainLocally(LocalDataset.load(collection.getName(), "gis_join", gisJoin,
+                                    collection.getFeaturesList(), collection.getLabel()))
+                            : model.train();
 
                     if (ok) {
 
@@ -256,11 +345,16 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                                 .setGisJoin(model.getGisJoin())
                                 .setRmse(model.getRmse())
                                 .setR2(model.getR2())
+                                .setModelKey(modelKey)
                                 .build();
 
-                        modelResponses.add(ModelResponse.newBuilder()
+                        ModelResponse modelResponse = ModelResponse.newBuilder()
                                 .setRForestRegressionResponse(rsp)
-                                .build());
+                                .addAllFeatures(requestCollection.getFeaturesList())
+                                .build();
+                        ModelStore.getInstance().save(modelKey, model.getTrained_rfModel(),
+                                ModelStore.LocalModel.of(model.getTrained_rfEnsemble(), null), modelResponse);
+                        modelResponses.add(modelResponse);
                     } else {
                         log.info("Ran into a problem building a model for GISJoin {}, skipping.", gisJoin);
                     }
@@ -275,11 +369,13 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
         private final GBoostRegressionRequest gbRequest;
         private final Collection requestCollection;
         private final List<String> gisJoins;
-        private Map<String, GBTRegressionModel> trained_parents;
+        private Map<String, GBoostRegressionExhaustiveModel> trained_parents;
         private Map<String, String> reverseChildToParentMap = null;
         private Map<String, Double> parentRmse = null;
+        // Searches the grid even if the registry has parameters, to revalidate them
+        private boolean refreshOnly = false;
 
-        GBRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, Double> parentRmse, Map<String, GBTRegressionModel> trained_parents) {
+        GBRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, Double> parentRmse, Map<String, GBoostRegressionExhaustiveModel> trained_parents) {
             this.gbRequest = modelRequest.getGBoostRegressionRequest();
             this.requestCollection = modelRequest.getCollections(0); // We only support 1 collection currently
             this.gisJoins = gisJoins;
@@ -288,7 +384,7 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
         }
 
 
-        GBRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, GBTRegressionModel> trained_parents,
+        GBRegressionTask(ModelRequest modelRequest, List<String> gisJoins, Map<String, GBoostRegressionExhaustiveModel> trained_parents,
                          Map<String, Double> parentRmse, Map<String, String> reverseChildToParentMap) {
             this.gbRequest = modelRequest.getGBoostRegressionRequest();
             this.requestCollection = modelRequest.getCollections(0); // We only support 1 collection currently
@@ -298,6 +394,14 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
             this.parentRmse = parentRmse;
         }
 
+        /**
+         * Makes this parent task search the grid for its parents even if the registry has parameters for them.
+         */
+        GBRegressionTask asRefresh() {
+            this.refreshOnly = true;
+            return this;
+        }
+
         @Override
         public List<ModelResponse> execute(JavaSparkContext sparkContext) throws Exception {
 
@@ -314,8 +418,11 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
 
             ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
 
-            // FETCHING MONGO COLLECTION ONCE FOR ALL MODELS
-            Dataset<Row> mongocollection = MongoSpark.load(sparkContext, readConfig).toDF();
+            // FETCHING ONLY THIS BATCH'S DOCUMENTS AND COLUMNS ONCE FOR ALL MODELS
+            List<String> columns = new ArrayList<>(collection.getFeaturesList());
+            columns.add(collection.getLabel());
+            Dataset<Row> mongocollection = PushdownPipeline.load(sparkContext, readConfig, "gis_join",
+                    this.gisJoins, columns);
 
             List<ModelResponse> modelResponses = new ArrayList<>();
 
@@ -362,28 +469,78 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                         model.setMinInstancesPerNode(gbRequest.getMinInstancesPerNode());
                     if (gbRequest.getMinWeightFractionPerNode() >= 0.0 && gbRequest.getMinWeightFractionPerNode() < 0.5)
                         model.setMinWeightFractionPerNode(gbRequest.getMinWeightFractionPerNode());
-
-
-                    // Submit task to Spark Manager
-                    boolean ok = model.train();
+                    model.setHyperparameterSearch(gbRequest.getHyperparameterSearch());
+                    model.setEarlyStopping(GBoostEarlyStopping.of(gbRequest));
+
+                    // Parameters a previous grid search selected for this cluster are trained with once
+                    String registryKey = HyperparameterRegistry.key("GB", collection.getName(), collection.getLabel(),
+                            collection.getFeaturesList(), gisJoin, gbRequest.getHyperparameterSearch());
+                    HyperparameterRegistry.Entry tunedParameters = refreshOnly ? null
+                            : HyperparameterRegistry.getInstance().lookup(registryKey);
+                    model.setTunedParameters(tunedParameters);
+
+                    // The model of an identical earlier request is restored instead of trained
+                    String modelKey = ModelStore.key(request.getType(), collection, gisJoin,
+                            gbRequest.toBuilder().clearGisJoins());
+                    ModelResponse storedResponse = refreshOnly ? null : ModelStore.getInstance().loadResponse(modelKey);
+                    GBTRegressionModel storedModel = storedResponse != null
+                            ? ModelStore.getInstance().loadModel(modelKey, GBTRegressionModel.read()) : null;
+                    ModelStore.LocalModel storedLocalModel = storedResponse != null && storedModel == null
+                            ? ModelStore.getInstance().loadLocalModel(modelKey) : null;
+                    if (storedLocalModel != null && storedLocalModel.getParams() == null) {
+                        storedLocalModel = null;
+                    }
+                    boolean restored = storedModel != null || storedLocalModel != null;
+
+                    // Small GISJoins are trained in-process, the rest on Spark
+                    boolean ok;
+                    if (storedModel != null) {
+                        model.restore(storedModel, storedResponse.getGBoostRegressionResponse().getRmse(),
+                                storedResponse.getGBoostRegressionResponse().getR2());
+                        ok = true;
+                    } else if (storedLocalModel != null) {
+                        model.restore(storedLocalModel, storedResponse.getGBoostRegressionResponse().getRmse(),
+                                storedResponse.getGBoostRegressionResponse().getR2());
+                        ok = true;
+                    } else {
+                        ok = LocalTraining.shouldTrainLocally(collection.getName(), "gis_join", gisJoin)
+                                ? model.trainLocally(LocalDataset.load(collection.getName(), "gis_join", gisJoin,
+                                        collection.getFeaturesList(), collection.getLabel()))
+                                : model.train();
+                    }
 
                     if (ok) {
-                        synchronized (this) {
-                            trained_parents.put(gisJoin, model.getTrained_gbModel());
-                            parentRmse.put(gisJoin,model.getRmse());
+                        parentRmse.put(gisJoin, model.getRmse());
+                        trained_parents.put(gisJoin, model);
+                        if (!restored) {
+                            updateRegistry(registryKey, tunedParameters, model.getBestEstimator(),
+                                    GBoostRegressionExhaustiveModel.GRID_PARAMS, model.getRmse(),
+                                    () -> new GBRegressionTask(request, Collections.singletonList(gisJoin),
+                                            new ConcurrentHashMap<>(), new ConcurrentHashMap<>()).asRefresh());
                         }
 
                         GBoostRegressionResponse rsp = GBoostRegressionResponse.newBuilder()
                                 .setGisJoin(model.getGisJoin())
                                 .setRmse(model.getRmse())
                                 .setR2(model.getR2())
+                                .setIterationsUsed(model.getIterationsUsed())
+                                .setModelKey(modelKey)
                                 .build();
 
-                        modelResponses.add(ModelResponse.newBuilder()
+                        ModelResponse modelResponse = ModelResponse.newBuilder()
                                 .setGBoostRegressionResponse(rsp)
-                                .build());
+                                .addAllFeatures(requestCollection.getFeaturesList())
+                                .build();
+                        if (!restored) {
+                            ModelStore.getInstance().save(modelKey, model.getTrained_gbModel(), model.getLocalModel(),
+                                    modelResponse);
+                        }
+                        modelResponses.add(modelResponse);
                     } else {
                         log.info("Ran into a problem building a model for GISJoin {}, skipping.", gisJoin);
+                        if (refreshOnly) {
+                            HyperparameterRegistry.getInstance().refreshFailed(registryKey);
+                        }
                     }
                 } else {
                     // TRAINING CHILDREN
@@ -391,9 +548,21 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                     GBoostChildIncrementalModel model = new GBoostChildIncrementalModel(mongoUri, dbName, collection.getName(), gisJoin);
 
                     String parentGisJoin = reverseChildToParentMap.get(gisJoin);
-                    GBTRegressionModel parentRegressionModel = trained_parents.get(parentGisJoin);
+                    String modelKey = ModelStore.key(request.getType(), collection, gisJoin,
+                            gbRequest.toBuilder().clearGisJoins(), parentGisJoin);
+                    ModelResponse storedResponse = ModelStore.getInstance().loadResponse(modelKey);
+                    if (storedResponse != null) {
+                        modelResponses.add(storedResponse);
+                        continue;
+                    }
+
+                    GBoostRegressionExhaustiveModel parentModel = trained_parents.get(parentGisJoin);
                     double targetRMSE = parentRmse.get(parentGisJoin);
-                    model.setParent_gbModel(parentRegressionModel);
+                    model.setParent_gb(parentModel.getBestEstimator());
+                    model.setParent_gbModel(parentModel.getTrained_gbModel());
+                    model.setParent_gbEnsemble(parentModel.getTrained_gbEnsemble());
+                    model.setWarmStart(gbRequest.getWarmStart());
+                    model.setEarlyStopping(GBoostEarlyStopping.of(gbRequest));
                     model.setParent_rmse(targetRMSE);
                     model.parentGisJoin = parentGisJoin;
                     model.setFilename();
@@ -436,8 +605,11 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                         model.setMinWeightFractionPerNode(gbRequest.getMinWeightFractionPerNode());
 
 
-                    // Submit task to Spark Manager
-                    boolean ok = model.train();
+                    // Small GISJoins are trained in-process, the rest on Spark
+                    boolean ok = LocalTraining.shouldTrainLocally(collection.getName(), "gis_join", gisJoin)
+                            ? model.trainLocally(LocalDataset.load(collection.getName(), "gis_join", gisJoin,
+                                    collection.getFeaturesList(), collection.getLabel()))
+                            : model.train();
 
                     if (ok) {
 
@@ -445,11 +617,17 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
                                 .setGisJoin(model.getGisJoin())
                                 .setRmse(model.getRmse())
                                 .setR2(model.getR2())
+                                .setIterationsUsed(model.getIterationsUsed())
+                                .setModelKey(modelKey)
                                 .build();
 
-                        modelResponses.add(ModelResponse.newBuilder()
+                        ModelResponse modelResponse = ModelResponse.newBuilder()
                                 .setGBoostRegressionResponse(rsp)
-                                .build());
+                                .addAllFeatures(requestCollection.getFeaturesList())
+                                .build();
+                        ModelStore.getInstance().save(modelKey, model.getTrained_gbModel(),
+                                ModelStore.LocalModel.of(model.getTrained_gbEnsemble(), null), modelResponse);
+                        modelResponses.add(modelResponse);
                     } else {
                         log.info("Ran into a problem building a model for GISJoin {}, skipping.", gisJoin);
                     }
@@ -479,277 +657,267 @@ public class EnsembleQueryHandler extends GrpcSparkHandler<ModelRequest, ModelRe
     }
 
 
-    private List<List<String>> batchGisJoins(List<String> gisJoins, int batchSize) {
-        List<List<String>> batches = new ArrayList<>();
-        int totalGisJoins = gisJoins.size();
-        int gisJoinsPerBatch = (int) Math.ceil( (1.0*totalGisJoins) / (1.0*batchSize) );
-        log.info(">>> Max batch size: {}, totalGisJoins: {}, gisJoinsPerBatch: {}", batchSize, totalGisJoins,
-                gisJoinsPerBatch);
-
-        for (int i = 0; i < totalGisJoins; i++) {
-            if ( i % gisJoinsPerBatch == 0 ) {
-                batches.add(new ArrayList<>());
-            }
-            String gisJoin = gisJoins.get(i);
-            batches.get(batches.size() - 1).add(gisJoin);
-        }
-
-        StringBuilder batchLog = new StringBuilder(
-                String.format(">>> %d batches for %d GISJoins\n", batches.size(), totalGisJoins)
-        );
-        for (int i = 0; i < batches.size(); i++) {
-            batchLog.append(String.format("\tBatch %d size: %d\n", i, batches.get(i).size()));
-        }
-        log.info(batchLog.toString());
-        return batches;
-    }
-
     @Override
     public void handleRequest() {
 
-        String full_log_string = "";
         if (isValid(this.request)) {
 
             // PARSE THE CLUSTER CSV
             Map<String, List> clusterCSVMap = CountyClusters.extractCountyGroups("./src/main/java/org/sustain/handlers/clusters_mid.csv");
-            full_log_string+=FancyLogger.fancy_logging("CLUSTER_MAP: "+clusterCSVMap, null);
-            if (request.getType().equals(ModelType.R_FOREST_REGRESSION)) {
-                {
-
-                    try {
-                        RForestRegressionRequest req = this.request.getRForestRegressionRequest();
-
-                        Map<String,String> reverseChildToParentMap = new HashMap<>();
-
-                        // IGNORE GISJOIN SENT BY THE REQUEST. INSTEAD GET THE FIRST ENTRY
-                        java.util.Iterator<Map.Entry<String, List>> iterator = clusterCSVMap.entrySet().iterator();
-
-                        List<String> parents = new ArrayList<>();
-
-                        // A COMBINED LIST OF ALL DEPENDENT GISJOINS
-                        List<String> allchildrenGISList = new ArrayList<>();
-
-                        // MAP CONTAINING ALL PARENT MODELS
-                        Map<String, RandomForestRegressionModel> trained_parents_map = new HashMap<>();
-                        Map<String, Double> parentRMSEMap = new HashMap<>();
-
-                        while (iterator.hasNext()) {
-                            Map.Entry<String, List> firstEntry = iterator.next();
-                            String parentGisJoin = firstEntry.getKey();
-                            parents.add(parentGisJoin);
-                            List<String> childrenGisJoin = firstEntry.getValue();
-                            allchildrenGISList.addAll(childrenGisJoin);
-
-                            for(String child: childrenGisJoin) {
-                                reverseChildToParentMap.put(child, parentGisJoin);
-                            }
-                        }
-
-                        List<List<String>> gisJoinBatches_parent = batchGisJoins(parents, 20);
-
-                        // EXHAUSTIVELY TRAINING ALL THE PARENTS FIRST
-
-                        // ****************START PARENT TRAINING ***********************
-                        List<Future<List<ModelResponse>>> batchedModelTasks_parents = new ArrayList<>();
-                        for (List<String> gisJoinBatch: gisJoinBatches_parent) {
-                            RFRegressionTask gbTask = new RFRegressionTask(this.request, gisJoinBatch, parentRMSEMap, trained_parents_map);
-                            batchedModelTasks_parents.add(this.sparkManager.submit(gbTask, "gb-regression-query"));
-                        }
-
-                        // Wait for each task to complete and return their ModelResponses
-                        for (Future<List<ModelResponse>> indvTask: batchedModelTasks_parents) {
-                            List<ModelResponse> batchedModelResponses = indvTask.get();
-                            for (ModelResponse modelResponse: batchedModelResponses) {
-                                //DON'T THINK WE NEED RESPONSE OBSERVER HERE....NOTHING TO PASS BACK. JUST OBSERVE THE RESULTS
-                                full_log_string+=FancyLogger.fancy_logging("RECEIVED A RESPONSE FOR "+modelResponse.getRForestRegressionResponse().getGisJoin(),log);
-                                this.responseObserver.onNext(modelResponse);
-
-                            }
-                        }
-
-                        // JUST ITERATING AND PRINTING THE TRAINED MODELS
-                        java.util.Iterator<Map.Entry<String, RandomForestRegressionModel>> iterator_trained_models = trained_parents_map.entrySet().iterator();
-                        int cnt = 0;
-                        while (iterator_trained_models.hasNext()) {
-                            Map.Entry<String, RandomForestRegressionModel> firstEntry = iterator_trained_models.next();
-                            String parentGisJoin = firstEntry.getKey();
-                            parents.add(parentGisJoin);
-                            RandomForestRegressionModel trained_model = firstEntry.getValue();
-
-                            // LOG SOMETHING TO CHECK TRAINED MODEL IS HERE
-                            full_log_string+=FancyLogger.fancy_logging("Model Num "+(cnt+1)+"GISJOIN: "+
-                                    parentGisJoin+" Trained Model: "+trained_model.paramMap(), null);
-                            cnt++;
-                        }
-
-                        full_log_string+=FancyLogger.fancy_logging("PARENT TRAINING CONCLUDED!!!!!", null);
-                        System.out.println("PARENT TRAINING CONCLUDED!!!!!");
-                        // ****************END PARENT TRAINING ***********************
-                        full_log_string+=FancyLogger.fancy_logging("CHILDREN TRAINING STARTING,.....", null);
-                        System.out.println("CHILDREN TRAINING STARTING,.....");
-
-                        // ****************START CHILDREN TRAINING ***********************
-
-                        // BATCHING ALL THE CHILDREN INTO GROUPS OF 20
-                        List<List<String>> gisJoinBatches_children = batchGisJoins(allchildrenGISList, 20);
-
-                        List<Future<List<ModelResponse>>> batchedModelTasks_children = new ArrayList<>();
-                        for (List<String> gisJoinBatch: gisJoinBatches_children) {
-
-                            RFRegressionTask rfTask = new RFRegressionTask(this.request, gisJoinBatch, trained_parents_map, parentRMSEMap, reverseChildToParentMap);
-                            batchedModelTasks_children.add(this.sparkManager.submit(rfTask, "gb-regression-query"));
-                        }
-
-                        // Wait for each task to complete and return their ModelResponses
-                        for (Future<List<ModelResponse>> indvTask: batchedModelTasks_children) {
-                            List<ModelResponse> batchedModelResponses = indvTask.get();
-                            for (ModelResponse modelResponse: batchedModelResponses) {
-                                //DON'T THINK WE NEED RESPONSE OBSERVER HERE....NOTHING TO PASS BACK. JUST OBSERVE THE RESULTS
-                                full_log_string+=FancyLogger.fancy_logging("RECEIVED A RESPONSE FOR "+modelResponse.getRForestRegressionResponse().getGisJoin(),log);
-                                this.responseObserver.onNext(modelResponse);
-
-                            }
-                        }
-
-                        System.out.println(full_log_string);
-                        FancyLogger.write_out(full_log_string, filename);
-
-
-
-                    } catch (Exception e) {
-                        log.error("Failed to evaluate query", e);
-                        responseObserver.onError(e);
-                    }
+            String full_log_string = FancyLogger.fancy_logging("CLUSTER_MAP: "+clusterCSVMap, null);
+
+            try {
+                if (request.getType().equals(ModelType.R_FOREST_REGRESSION)) {
+
+                    // MAPS CONTAINING ALL PARENT MODELS, FILLED IN BY THE PARENT TASKS AS THEY FINISH
+                    Map<String, RFRegressionExhaustiveModel> trained_parents_map = new ConcurrentHashMap<>();
+                    Map<String, Double> parentRMSEMap = new ConcurrentHashMap<>();
+                    Map<String, String> reverseChildToParentMap = reverseChildToParentMap(clusterCSVMap);
+
+                    full_log_string += trainClusters(clusterCSVMap,
+                            parents -> new RFRegressionTask(this.request, parents, parentRMSEMap, trained_parents_map),
+                            children -> new RFRegressionTask(this.request, children, trained_parents_map,
+                                    parentRMSEMap, reverseChildToParentMap),
+                            parent -> trained_parents_map.containsKey(parent)
+                                    ? trained_parents_map.get(parent).getBestEstimator().extractParamMap().toString()
+                                    : null);
+
+                } else if (request.getType().equals(ModelType.G_BOOST_REGRESSION)) {
+
+                    // MAPS CONTAINING ALL PARENT MODELS, FILLED IN BY THE PARENT TASKS AS THEY FINISH
+                    Map<String, GBoostRegressionExhaustiveModel> trained_parents_map = new ConcurrentHashMap<>();
+                    Map<String, Double> parentRMSEMap = new ConcurrentHashMap<>();
+                    Map<String, String> reverseChildToParentMap = reverseChildToParentMap(clusterCSVMap);
+
+                    full_log_string += trainClusters(clusterCSVMap,
+                            parents -> new GBRegressionTask(this.request, parents, parentRMSEMap, trained_parents_map),
+                            children -> new GBRegressionTask(this.request, children, trained_parents_map,
+                                    parentRMSEMap, reverseChildToParentMap),
+                            parent -> trained_parents_map.containsKey(parent)
+                                    ? trained_parents_map.get(parent).getBestEstimator().extractParamMap().toString()
+                                    : null);
                 }
-            } else if(request.getType().equals(ModelType.G_BOOST_REGRESSION)) {
-
-                try {
-                    GBoostRegressionRequest req = this.request.getGBoostRegressionRequest();
-
-                    Map<String,String> reverseChildToParentMap = new HashMap<>();
-
-                    // IGNORE GISJOIN SENT BY THE REQUEST. INSTEAD GET THE FIRST ENTRY
-                    java.util.Iterator<Map.Entry<String, List>> iterator = clusterCSVMap.entrySet().iterator();
 
-                    List<String> parents = new ArrayList<>();
-
-                    // A COMBINED LIST OF ALL DEPENDENT GISJOINS
-                    List<String> allchildrenGISList = new ArrayList<>();
-
-                    // MAP CONTAINING ALL PARENT MODELS
-                    Map<String, GBTRegressionModel> trained_parents_map = new HashMap<>();
-                    Map<String, Double> parentRMSEMap = new HashMap<>();
-
-                    while (iterator.hasNext()) {
-                        Map.Entry<String, List> firstEntry = iterator.next();
-                        String parentGisJoin = firstEntry.getKey();
-                        parents.add(parentGisJoin);
-                        List<String> childrenGisJoin = firstEntry.getValue();
-                        allchildrenGISList.addAll(childrenGisJoin);
-
-                        for(String child: childrenGisJoin) {
-                            reverseChildToParentMap.put(child, parentGisJoin);
-                        }
-                    }
-
-                    List<List<String>> gisJoinBatches_parent = batchGisJoins(parents, 20);
-
-                    //List<List<String>> gisJoinBatches_children = batchGisJoins(req.getGisJoinsList(), 20);
+                System.out.println(full_log_string);
+                FancyLogger.write_out(full_log_string, filename);
+            } catch (Exception e) {
+                log.error("Failed to evaluate query", e);
+                onError(e);
+            }
+        } else {
+            log.warn("Invalid Model Request!");
+        }
+    }
 
-                    // BATCH THE CHILDREN AS THEY ARE....EXECUTE THE CHILDREN ONE PARENT AT A TIME
-                    //List<List<String>> gisJoinBatches_children = childrenList;
+    /**
+     * Stores the parameters a parent's grid search selected for its cluster. If the parent was trained with stored
+     * parameters instead and they went stale, revalidates them with a full grid search in the background: in its own
+     * job group at a lower priority than this request, so it neither holds up nor is cancelled with the request.
+     * @param tunedParameters The stored parameters the parent was trained with, or null if it searched the grid.
+     * @param refreshTask Creates the parent task that searches the grid again.
+     */
+    private void updateRegistry(String registryKey, HyperparameterRegistry.Entry tunedParameters, Params bestEstimator,
+                                String[] gridParams, double rmse, Supplier<SparkTask<List<ModelResponse>>> refreshTask) {
+        HyperparameterRegistry registry = HyperparameterRegistry.getInstance();
+        if (tunedParameters == null) {
+            registry.put(registryKey, bestEstimator, gridParams, rmse);
+            return;
+        }
+        if (!registry.startRefresh(registryKey)) {
+            return;
+        }
 
+        String refreshJobGroup = "HyperparameterRefresh-" + UUID.randomUUID();
+        SparkTask<List<ModelResponse>> task = refreshTask.get();
+        CacheScope.trackUsage(refreshJobGroup);
+        try {
+            sparkManager.submit(sparkContext -> {
+                try {
+                    return task.execute(sparkContext);
+                } catch (Exception e) {
+                    log.warn("Failed to refresh the hyperparameters of {}", registryKey, e);
+                    registry.refreshFailed(registryKey);
+                    throw e;
+                } finally {
+                    CacheScope.takeUsage(refreshJobGroup);
+                }
+            }, refreshJobGroup, SparkJobPool.ENSEMBLE, this.request.getPriority() - 1);
+            log.info("Refreshing the stale hyperparameters of {} in job group {}", registryKey, refreshJobGroup);
+        } catch (Exception e) {
+            log.warn("Unable to schedule the hyperparameter refresh of {}", registryKey, e);
+            CacheScope.takeUsage(refreshJobGroup);
+            registry.refreshFailed(registryKey);
+        }
+    }
 
-                    // EXHAUSTIVELY TRAINING ALL THE PARENTS FIRST
+    private static Map<String, String> reverseChildToParentMap(Map<String, List> clusterCSVMap) {
+        Map<String, String> reverseChildToParentMap = new HashMap<>();
+        for (Map.Entry<String, List> cluster: clusterCSVMap.entrySet()) {
+            for (Object child: children(cluster.getValue())) {
+                reverseChildToParentMap.put((String) child, cluster.getKey());
+            }
+        }
+        return reverseChildToParentMap;
+    }
 
-                    // ****************START PARENT TRAINING ***********************
-                    List<Future<List<ModelResponse>>> batchedModelTasks_parents = new ArrayList<>();
-                    for (List<String> gisJoinBatch: gisJoinBatches_parent) {
-                        GBRegressionTask gbTask = new GBRegressionTask(this.request, gisJoinBatch, parentRMSEMap, trained_parents_map);
-                        batchedModelTasks_parents.add(this.sparkManager.submit(gbTask, "gb-regression-query"));
-                    }
+    @SuppressWarnings("unchecked")
+    private static List<String> children(List dependents) {
+        return dependents != null ? (List<String>) dependents : Collections.emptyList();
+    }
 
-                    // Wait for each task to complete and return their ModelResponses
-                    for (Future<List<ModelResponse>> indvTask: batchedModelTasks_parents) {
-                        List<ModelResponse> batchedModelResponses = indvTask.get();
-                        for (ModelResponse modelResponse: batchedModelResponses) {
-                            //DON'T THINK WE NEED RESPONSE OBSERVER HERE....NOTHING TO PASS BACK. JUST OBSERVE THE RESULTS
-                            full_log_string+=FancyLogger.fancy_logging("RECEIVED A RESPONSE FOR "+modelResponse.getGBoostRegressionResponse().getGisJoin(),log);
-                            this.responseObserver.onNext(modelResponse);
+    /**
+     * Trains every cluster's parent as its own task, and submits a cluster's children as soon as its parent
+     * has been trained, instead of waiting for every parent in the country. Responses are streamed back in
+     * completion order, so the request takes as long as its slowest parent + children chain.
+     * <p>
+     * A request keeps at most its pool's concurrency of tasks queued or running; the rest wait here, children
+     * ahead of the parents not started yet, and are submitted as tasks complete. So one request never fills the
+     * pool's queue by itself, and is rejected up front if the queue is already full. A later submission the queue
+     * rejects is retried when the next task of the request completes.
+     * @param clusterCSVMap Parent GISJoin to its dependent (child) GISJoins.
+     * @param parentTask Creates the task training a list of parents.
+     * @param childrenTask Creates the task training a list of children, whose parents are all trained.
+     * @param trainedParent Describes a trained parent's model, or returns null if the parent failed to train.
+     * @return The log of the run.
+     */
+    private String trainClusters(Map<String, List> clusterCSVMap,
+                                 Function<List<String>, SparkTask<List<ModelResponse>>> parentTask,
+                                 Function<List<String>, SparkTask<List<ModelResponse>>> childrenTask,
+                                 Function<String, String> trainedParent) throws Exception {
+        StringBuilder full_log_string = new StringBuilder();
+        BlockingQueue<CompletedTask> completedTasks = new LinkedBlockingQueue<>();
+        Deque<PendingTask> pendingTasks = new ArrayDeque<>();
+
+        // ****************START PARENT TRAINING ***********************
+        for (String parentGisJoin: clusterCSVMap.keySet()) {
+            pendingTasks.addLast(new PendingTask(parentTask.apply(Collections.singletonList(parentGisJoin)),
+                    parentGisJoin));
+        }
+        int tasksInFlight = submitPending(pendingTasks, 0, completedTasks);
+
+        // ****************START CHILDREN TRAINING AS EACH PARENT FINISHES ***********************
+        while (tasksInFlight > 0) {
+            CompletedTask completedTask = completedTasks.poll(1, TimeUnit.SECONDS);
+            if (completedTask == null) {
+                if (isCancelled()) {
+                    throw new CancellationException(String.format("Request %s has been cancelled", this.jobGroup));
+                }
+                continue;
+            }
+            tasksInFlight--;
 
-                        }
-                    }
+            for (ModelResponse modelResponse: completedTask.getResponses()) {
+                full_log_string.append(FancyLogger.fancy_logging("RECEIVED A RESPONSE FOR "+gisJoinOf(modelResponse), log));
+                this.responseObserver.onNext(modelResponse);
+            }
 
-                    // JUST ITERATING AND PRINTING THE TRAINED MODELS
-                    java.util.Iterator<Map.Entry<String, GBTRegressionModel>> iterator_trained_models = trained_parents_map.entrySet().iterator();
-                    int cnt = 0;
-                    while (iterator_trained_models.hasNext()) {
-                        Map.Entry<String, GBTRegressionModel> firstEntry = iterator_trained_models.next();
-                        String parentGisJoin = firstEntry.getKey();
-                        parents.add(parentGisJoin);
-                        GBTRegressionModel trained_model = firstEntry.getValue();
-
-                        // LOG SOMETHING TO CHECK TRAINED MODEL IS HERE
-                        full_log_string+=FancyLogger.fancy_logging("Model Num "+(cnt+1)+"GISJOIN: "+
-                                parentGisJoin+" Trained Model: "+trained_model.paramMap(), null);
-                        cnt++;
+            String parentGisJoin = completedTask.parentGisJoin;
+            if (parentGisJoin != null) {
+                String trainedModel = trainedParent.apply(parentGisJoin);
+                List<String> childrenGisJoins = children(clusterCSVMap.get(parentGisJoin));
+                if (trainedModel == null) {
+                    log.info("Parent {} was not trained, skipping its {} children", parentGisJoin,
+                            childrenGisJoins.size());
+                    tasksInFlight = submitPending(pendingTasks, tasksInFlight, completedTasks);
+                    continue;
+                }
+                full_log_string.append(FancyLogger.fancy_logging("PARENT "+parentGisJoin+" TRAINED, STARTING "+
+                        childrenGisJoins.size()+" CHILDREN. Trained Model: "+trainedModel, null));
+
+                // Children are balanced across tasks by row count, so one large county doesn't hold up its batch
+                int numBatches = (childrenGisJoins.size() + CHILDREN_PER_TASK - 1) / CHILDREN_PER_TASK;
+                Map<String, Long> rowCounts = GisJoinRowCounts.countAll(this.request.getCollections(0).getName(),
+                        "gis_join", childrenGisJoins);
+                for (List<String> gisJoinBatch: GisJoinScheduler.balancedBatches(childrenGisJoins, rowCounts,
+                        numBatches)) {
+                    if (!gisJoinBatch.isEmpty()) {
+                        pendingTasks.addFirst(new PendingTask(childrenTask.apply(gisJoinBatch), null));
                     }
+                }
+            }
+            tasksInFlight = submitPending(pendingTasks, tasksInFlight, completedTasks);
+        }
 
-                    full_log_string+=FancyLogger.fancy_logging("PARENT TRAINING CONCLUDED!!!!!", null);
-                    System.out.println("PARENT TRAINING CONCLUDED!!!!!");
-                    // ****************END PARENT TRAINING ***********************
-                    full_log_string+=FancyLogger.fancy_logging("CHILDREN TRAINING STARTING,.....", null);
-                    System.out.println("CHILDREN TRAINING STARTING,.....");
-
-                    // ****************START CHILDREN TRAINING ***********************
-
-                    // BATCHING ALL THE CHILDREN INTO GROUPS OF 20
-                    List<List<String>> gisJoinBatches_children = batchGisJoins(allchildrenGISList, 20);
-
-                    List<Future<List<ModelResponse>>> batchedModelTasks_children = new ArrayList<>();
-                    for (List<String> gisJoinBatch: gisJoinBatches_children) {
-
-                        GBRegressionTask gbTask = new GBRegressionTask(this.request, gisJoinBatch, trained_parents_map, parentRMSEMap, reverseChildToParentMap);
-                        batchedModelTasks_children.add(this.sparkManager.submit(gbTask, "gb-regression-query"));
-                    }
+        full_log_string.append(FancyLogger.fancy_logging("PARENT AND CHILDREN TRAINING CONCLUDED!!!!!", null));
+        return full_log_string.toString();
+    }
 
-                    // Wait for each task to complete and return their ModelResponses
-                    for (Future<List<ModelResponse>> indvTask: batchedModelTasks_children) {
-                        List<ModelResponse> batchedModelResponses = indvTask.get();
-                        for (ModelResponse modelResponse: batchedModelResponses) {
-                            //DON'T THINK WE NEED RESPONSE OBSERVER HERE....NOTHING TO PASS BACK. JUST OBSERVE THE RESULTS
-                            full_log_string+=FancyLogger.fancy_logging("RECEIVED A RESPONSE FOR "+modelResponse.getGBoostRegressionResponse().getGisJoin(),log);
-                            this.responseObserver.onNext(modelResponse);
+    /**
+     * Submits pending tasks, first to last, until the request has its pool's concurrency of tasks in flight.
+     * @return The number of tasks in flight.
+     * @throws RejectedExecutionException if the pool's queue is full and the request has no task in flight.
+     */
+    private int submitPending(Deque<PendingTask> pendingTasks, int tasksInFlight,
+                              BlockingQueue<CompletedTask> completedTasks) throws Exception {
+        int maxTasksInFlight = SparkJobPool.forModelType(this.request.getType()).getConcurrency();
+        while (tasksInFlight < maxTasksInFlight && !pendingTasks.isEmpty()) {
+            PendingTask pendingTask = pendingTasks.peekFirst();
+            try {
+                submitTracked(pendingTask.task, pendingTask.parentGisJoin, completedTasks);
+            } catch (RejectedExecutionException e) {
+                if (tasksInFlight == 0) {
+                    throw e;
+                }
+                log.info("Queue is full, holding {} tasks of {} until one of its {} tasks completes",
+                        pendingTasks.size(), this.jobGroup, tasksInFlight);
+                break;
+            }
+            pendingTasks.removeFirst();
+            tasksInFlight++;
+        }
+        return tasksInFlight;
+    }
 
-                        }
-                    }
+    /**
+     * Submits a task that hands its result, or its failure, to completedTasks when it finishes.
+     * @param parentGisJoin The parent trained by the task, or null for a task training children.
+     */
+    private void submitTracked(SparkTask<List<ModelResponse>> task, String parentGisJoin,
+                               BlockingQueue<CompletedTask> completedTasks) throws Exception {
+        submit(sparkContext -> {
+            try {
+                List<ModelResponse> responses = task.execute(sparkContext);
+                completedTasks.add(new CompletedTask(parentGisJoin, responses, null));
+                return responses;
+            } catch (Exception e) {
+                completedTasks.add(new CompletedTask(parentGisJoin, null, e));
+                throw e;
+            }
+        }, SparkJobPool.forModelType(this.request.getType()), this.request.getPriority());
+    }
 
-                    /*List<Future<List<ModelResponse>>> batchedModelTasks = new ArrayList<>();
-                    for (List<String> gisJoinBatch: gisJoinBatches_children) {
-                        GBRegressionTask gbTask = new GBRegressionTask(this.request, gisJoinBatch, trained_parents);
-                        batchedModelTasks.add(this.sparkManager.submit(gbTask, "gb-regression-query"));
-                    }
+    private static String gisJoinOf(ModelResponse modelResponse) {
+        return modelResponse.hasRForestRegressionResponse()
+                ? modelResponse.getRForestRegressionResponse().getGisJoin()
+                : modelResponse.getGBoostRegressionResponse().getGisJoin();
+    }
 
-                    // Wait for each task to complete and return their ModelResponses
-                    for (Future<List<ModelResponse>> indvTask: batchedModelTasks) {
-                        List<ModelResponse> batchedModelResponses = indvTask.get();
-                        for (ModelResponse modelResponse: batchedModelResponses) {
-                            this.responseObserver.onNext(modelResponse);
-                        }
-                    }*/
+    private static class PendingTask {
+        private final SparkTask<List<ModelResponse>> task;
+        private final String                         parentGisJoin;
 
-                    System.out.println(full_log_string);
-                    FancyLogger.write_out(full_log_string, filename);
+        PendingTask(SparkTask<List<ModelResponse>> task, String parentGisJoin) {
+            this.task = task;
+            this.parentGisJoin = parentGisJoin;
+        }
+    }
 
+    private static class CompletedTask {
+        private final String              parentGisJoin;
+        private final List<ModelResponse> responses;
+        private final Exception           failure;
 
+        CompletedTask(String parentGisJoin, List<ModelResponse> responses, Exception failure) {
+            this.parentGisJoin = parentGisJoin;
+            this.responses = responses;
+            this.failure = failure;
+        }
 
-                } catch (Exception e) {
-                    log.error("Failed to evaluate query", e);
-                    responseObserver.onError(e);
-                }
+        List<ModelResponse> getResponses() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
             }
-        } else {
-            log.warn("Invalid Model Request!");
+            return responses;
         }
     }
 }
@@ -0,0 +1,348 @@
+package org.sustain.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.sustain.SparkTask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Schedules per-GISJoin training across a fixed number of worker tasks, using each GISJoin's row count
+ * as its estimated cost. Workers are seeded longest-processing-time first: the most expensive
+ * GISJoins are assigned first, each to the least loaded worker. A worker that runs out of work steals
+ * the cheapest remaining GISJoin from the most loaded worker. Once nothing is left to steal, idle workers
+ * return, so they don't hold a shared pool thread while the last GISJoins finish. In their place, the thread
+ * calling run() submits a speculative attempt of a GISJoin running far past its estimate, and the first result
+ * wins.
+ */
+public class GisJoinScheduler {
+
+    private static final Logger log = LogManager.getLogger(GisJoinScheduler.class);
+
+    // A GISJoin is a straggler once it has run this many times longer than its estimate...
+    private static final double SPECULATION_MULTIPLIER = 3.0;
+    // ...and for at least this long
+    private static final long MIN_SPECULATION_MILLIS = 60_000;
+    // How often run() looks for stragglers
+    private static final long SPECULATION_CHECK_MILLIS = 5_000;
+    // How often run() checks whether the request has been cancelled
+    private static final long CANCELLATION_CHECK_MILLIS = 1_000;
+
+    /**
+     * Trains a single GISJoin within a worker task.
+     * @param <R> Type of the training results.
+     */
+    public interface GisJoinTrainer<R> {
+        List<R> train(JavaSparkContext sparkContext, String gisJoin) throws Exception;
+    }
+
+    /**
+     * Submits a worker task, e.g. to the SparkManager under the request's job group.
+     */
+    public interface Submitter {
+        Future<?> submit(SparkTask<Void> task) throws Exception;
+    }
+
+    private final Map<String, Long>     costs;
+    private final int                   numGisJoins, numWorkers;
+    private final List<Deque<String>>   queues = new ArrayList<>();
+    private final long[]                queuedCost;
+    private final long                  minSpeculationMillis, speculationCheckMillis;
+
+    // Guarded by this
+    private final Map<String, Long>     running = new HashMap<>(); // GISJoin -> start of its first attempt
+    private final Set<String>           speculated = new HashSet<>();
+    private final Set<String>           finished = new HashSet<>();
+    private long                        observedCost, observedMillis;
+    private boolean                     failed;
+
+    /**
+     * @param gisJoins GISJoins to train.
+     * @param costs Estimated cost of each GISJoin, e.g. its row count.
+     * @param numWorkers Number of worker tasks to train them with, including speculative attempts; at most the
+     *                   concurrency of the pool they're submitted to, since each holds one of its threads.
+     */
+    public GisJoinScheduler(List<String> gisJoins, Map<String, Long> costs, int numWorkers) {
+        this(gisJoins, costs, numWorkers, MIN_SPECULATION_MILLIS, SPECULATION_CHECK_MILLIS);
+    }
+
+    /**
+     * @param minSpeculationMillis How long a GISJoin runs at least before it is re-executed.
+     * @param speculationCheckMillis How often run() looks for stragglers.
+     */
+    GisJoinScheduler(List<String> gisJoins, Map<String, Long> costs, int numWorkers, long minSpeculationMillis,
+                     long speculationCheckMillis) {
+        this.costs = costs;
+        this.minSpeculationMillis = minSpeculationMillis;
+        this.speculationCheckMillis = speculationCheckMillis;
+        this.numGisJoins = gisJoins.size();
+        List<List<String>> batches = balancedBatches(gisJoins, costs, numWorkers);
+        this.numWorkers = batches.size();
+        this.queuedCost = new long[batches.size()];
+        for (int w = 0; w < batches.size(); w++) {
+            queues.add(new ArrayDeque<>(batches.get(w)));
+            for (String gisJoin: batches.get(w)) {
+                queuedCost[w] += cost(costs, gisJoin);
+            }
+        }
+    }
+
+    /**
+     * Splits GISJoins into at most numBatches batches of similar total cost, longest-processing-time first.
+     * Each batch lists its GISJoins from most to least expensive.
+     */
+    public static List<List<String>> balancedBatches(List<String> gisJoins, Map<String, Long> costs,
+                                                     int numBatches) {
+        List<String> byCost = new ArrayList<>(gisJoins);
+        byCost.sort(Comparator.comparingLong((String gisJoin) -> cost(costs, gisJoin)).reversed());
+
+        int count = Math.max(1, Math.min(numBatches, gisJoins.size()));
+        List<List<String>> batches = new ArrayList<>();
+        long[] loads = new long[count];
+        PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(
+            Comparator.comparingLong((Integer b) -> loads[b]).thenComparing(b -> b));
+        for (int b = 0; b < count; b++) {
+            batches.add(new ArrayList<>());
+            leastLoaded.add(b);
+        }
+
+        for (String gisJoin: byCost) {
+            int b = leastLoaded.poll();
+            batches.get(b).add(gisJoin);
+            loads[b] += cost(costs, gisJoin);
+            leastLoaded.add(b);
+        }
+
+        StringBuilder batchLog = new StringBuilder(
+            String.format(">>> %d cost-balanced batches for %d GISJoins\n", count, gisJoins.size()));
+        for (int b = 0; b < count; b++) {
+            batchLog.append(String.format("\tBatch %d size: %d, estimated rows: %d\n", b, batches.get(b).size(),
+                loads[b]));
+        }
+        log.info(batchLog.toString());
+        return batches;
+    }
+
+    /**
+     * Runs the workers and hands every GISJoin's results to onResult from the calling thread, in completion
+     * order, exactly once per GISJoin. While fewer workers than numWorkers are running, stragglers are
+     * re-executed by speculative attempts. Returns once every GISJoin has been trained, interrupting workers
+     * still running a slower attempt.
+     * @param submitter Submits the worker tasks.
+     * @param trainer Trains one GISJoin.
+     * @param onResult Receives the results.
+     * @param cancelled Checked while waiting, to stop waiting on a cancelled request.
+     */
+    public <R> void run(Submitter submitter, GisJoinTrainer<R> trainer, Consumer<R> onResult,
+                        BooleanSupplier cancelled) throws Exception {
+        BlockingQueue<WorkerEvent<R>> events = new LinkedBlockingQueue<>();
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            for (int w = 0; w < queues.size(); w++) {
+                int worker = w;
+                workers.add(submitter.submit(sparkContext -> {
+                    work(worker, sparkContext, trainer, events);
+                    return null;
+                }));
+            }
+
+            int activeWorkers = workers.size(), remainingGisJoins = numGisJoins;
+            long pollMillis = Math.min(speculationCheckMillis, CANCELLATION_CHECK_MILLIS);
+            while (activeWorkers > 0 && remainingGisJoins > 0) {
+                WorkerEvent<R> event = events.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    if (cancelled.getAsBoolean()) {
+                        throw new CancellationException("Request has been cancelled");
+                    }
+                } else if (event.failure != null) {
+                    throw new ExecutionException(event.failure);
+                } else if (event.results == null) {
+                    activeWorkers--;
+                } else {
+                    remainingGisJoins--;
+                    for (R result: event.results) {
+                        onResult.accept(result);
+                    }
+                }
+
+                // Workers return once nothing is left to steal, freeing a thread for a speculative attempt
+                String straggler = activeWorkers < numWorkers && remainingGisJoins > 0 ? speculate() : null;
+                if (straggler != null) {
+                    workers.add(submitter.submit(sparkContext -> {
+                        attempt(straggler, sparkContext, trainer, events);
+                        return null;
+                    }));
+                    activeWorkers++;
+                }
+            }
+        } finally {
+            abort();
+            for (Future<?> worker: workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    private <R> void work(int worker, JavaSparkContext sparkContext, GisJoinTrainer<R> trainer,
+                          BlockingQueue<WorkerEvent<R>> events) throws Exception {
+        try {
+            String gisJoin;
+            while ((gisJoin = next(worker)) != null) {
+                train(gisJoin, sparkContext, trainer, events);
+            }
+        } catch (Exception e) {
+            events.add(new WorkerEvent<>(null, e));
+            throw e;
+        } finally {
+            events.add(new WorkerEvent<>(null, null));
+        }
+    }
+
+    /**
+     * Runs a speculative attempt of a straggler as a worker of its own.
+     */
+    private <R> void attempt(String gisJoin, JavaSparkContext sparkContext, GisJoinTrainer<R> trainer,
+                             BlockingQueue<WorkerEvent<R>> events) throws Exception {
+        try {
+            train(gisJoin, sparkContext, trainer, events);
+        } catch (Exception e) {
+            events.add(new WorkerEvent<>(null, e));
+            throw e;
+        } finally {
+            events.add(new WorkerEvent<>(null, null));
+        }
+    }
+
+    private <R> void train(String gisJoin, JavaSparkContext sparkContext, GisJoinTrainer<R> trainer,
+                           BlockingQueue<WorkerEvent<R>> events) throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<R> results = trainer.train(sparkContext, gisJoin);
+        if (finish(gisJoin, System.currentTimeMillis() - startTime)) {
+            events.add(new WorkerEvent<>(results, null));
+        }
+    }
+
+    /**
+     * @return The next GISJoin for a worker, its own or a stolen one; null when there is nothing left to steal.
+     */
+    private synchronized String next(int worker) {
+        if (failed) {
+            return null;
+        }
+        String gisJoin = queues.get(worker).pollFirst();
+        int from = worker;
+        if (gisJoin == null) {
+            from = mostLoadedQueue();
+            gisJoin = from >= 0 ? queues.get(from).pollLast() : null;
+            if (gisJoin != null) {
+                log.info("Worker {} stole GISJoin {} from worker {}", worker, gisJoin, from);
+            }
+        }
+        if (gisJoin != null) {
+            queuedCost[from] -= cost(costs, gisJoin);
+            running.put(gisJoin, System.currentTimeMillis());
+        }
+        return gisJoin;
+    }
+
+    /**
+     * @return A straggler to re-execute, at most once per GISJoin, or null if there is none.
+     */
+    private synchronized String speculate() {
+        if (failed || mostLoadedQueue() >= 0) {
+            return null;
+        }
+        String straggler = findStraggler();
+        if (straggler != null) {
+            speculated.add(straggler);
+            log.info("Speculatively re-executing straggler GISJoin {}", straggler);
+        }
+        return straggler;
+    }
+
+    /**
+     * @return true for the first attempt of a GISJoin to finish, whose results should be kept.
+     */
+    private synchronized boolean finish(String gisJoin, long millis) {
+        if (!finished.add(gisJoin)) {
+            log.info("Discarding slower attempt of GISJoin {}", gisJoin);
+            return false;
+        }
+        running.remove(gisJoin);
+        observedCost += cost(costs, gisJoin);
+        observedMillis += millis;
+        return true;
+    }
+
+    private synchronized void abort() {
+        failed = true;
+    }
+
+    private int mostLoadedQueue() {
+        int mostLoaded = -1;
+        for (int w = 0; w < queues.size(); w++) {
+            if (!queues.get(w).isEmpty() && (mostLoaded < 0 || queuedCost[w] > queuedCost[mostLoaded])) {
+                mostLoaded = w;
+            }
+        }
+        return mostLoaded;
+    }
+
+    private String findStraggler() {
+        if (observedCost == 0) {
+            return null; // No estimate of the time per row yet
+        }
+        double millisPerRow = (double) observedMillis / observedCost;
+        long now = System.currentTimeMillis();
+        String straggler = null;
+        double worstRatio = 1.0;
+        for (Map.Entry<String, Long> attempt: running.entrySet()) {
+            if (speculated.contains(attempt.getKey())) {
+                continue;
+            }
+            long elapsed = now - attempt.getValue();
+            double expected = millisPerRow * cost(costs, attempt.getKey());
+            double ratio = elapsed / (SPECULATION_MULTIPLIER * expected);
+            if (elapsed >= minSpeculationMillis && ratio > worstRatio) {
+                straggler = attempt.getKey();
+                worstRatio = ratio;
+            }
+        }
+        return straggler;
+    }
+
+    private static long cost(Map<String, Long> costs, String gisJoin) {
+        return Math.max(1L, costs.getOrDefault(gisJoin, 1L));
+    }
+
+    /**
+     * A GISJoin's results, a worker's failure, or a worker exiting when both are null.
+     */
+    private static class WorkerEvent<R> {
+        private final List<R>   results;
+        private final Exception failure;
+
+        WorkerEvent(List<R> results, Exception failure) {
+            this.results = results;
+            this.failure = failure;
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package org.sustain.handlers;
 
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import org.sustain.SparkJobPool;
 import org.sustain.SparkManager;
+import org.sustain.SparkTask;
+import org.sustain.modeling.CacheScope;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Abstract interface for gRPC handlers.
@@ -13,10 +23,105 @@ import org.sustain.SparkManager;
  * @param <E> A generic for the type of gRPC response.
  */
 public abstract class GrpcSparkHandler<T, E> extends GrpcHandler<T, E> {
+    private static final Logger log = LogManager.getLogger(GrpcSparkHandler.class);
+
     protected final SparkManager sparkManager;
 
+    // unique per RPC, so this request's Spark jobs can be cancelled on their own
+    protected final String jobGroup;
+    private final List<Future<?>> futures;
+    private volatile boolean cancelled;
+    // set once the cache usage has been logged, so later submissions don't track it again
+    private boolean usageTaken;
+
     public GrpcSparkHandler(T request, StreamObserver<E> responseObserver, SparkManager sparkManager) {
         super(request, responseObserver);
         this.sparkManager = sparkManager;
+        this.jobGroup = String.format("%s-%s", getClass().getSimpleName(), UUID.randomUUID());
+        this.futures = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Submits a SparkTask under this request's job group, and tracks its Future so it can be
+     * interrupted if the request is cancelled.
+     * @param sparkTask The task to execute.
+     * @param pool The queue class to schedule the task in.
+     * @param priority The priority of the task within its queue class.
+     * @return A Future for the result of the task.
+     */
+    protected <R> Future<R> submit(SparkTask<R> sparkTask, SparkJobPool pool, int priority) throws Exception {
+        if (this.cancelled) {
+            throw new IllegalStateException(String.format("Request %s has been cancelled", this.jobGroup));
+        }
+        synchronized (this) {
+            if (!this.usageTaken) {
+                CacheScope.trackUsage(this.jobGroup);
+            }
+        }
+        Future<R> future = this.sparkManager.submit(sparkTask, this.jobGroup, pool, priority);
+        this.futures.add(future);
+        return future;
+    }
+
+    /**
+     * Interrupts every pending or running task of this request and cancels its Spark job group.
+     * Safe to call more than once.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        for (Future<?> future : this.futures) {
+            future.cancel(true);
+        }
+
+        try {
+            this.sparkManager.cancel(this.jobGroup);
+        } catch (Exception e) {
+            log.error("Failed to cancel job group {}", this.jobGroup, e);
+        }
+    }
+
+    /**
+     * @return true if cancel() has been called for this request.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Logs how many Datasets this request cached and the storage memory high-water mark while it did, as
+     * recorded by the CacheScopes of its tasks. Called once the request is done.
+     */
+    public void logCacheUsage() {
+        CacheScope.Usage usage;
+        synchronized (this) {
+            this.usageTaken = true;
+            usage = CacheScope.takeUsage(this.jobGroup);
+        }
+        if (usage != null) {
+            log.info("Request {} cached {} datasets, peak storage memory used by cached data: {} MB",
+                this.jobGroup, usage.getDatasets(), usage.getPeakStorageBytes() / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Reports a failed request to the client, after releasing any work still queued or running
+     * for it. Submissions rejected by the SparkManager admission policy are returned as a
+     * RESOURCE_EXHAUSTED status. Failures caused by the client cancelling the call are only logged.
+     * @param e The exception that failed the request.
+     */
+    protected void onError(Exception e) {
+        if (this.cancelled) {
+            log.info("Request {} was cancelled by the client", this.jobGroup);
+            return;
+        }
+
+        cancel();
+        if (e instanceof RejectedExecutionException) {
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription(e.getMessage())
+                .asRuntimeException());
+        } else {
+            responseObserver.onError(e);
+        }
     }
 }
@@ -0,0 +1,88 @@
+package org.sustain.handlers;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.sustain.FeatureVector;
+import org.sustain.PredictRequest;
+import org.sustain.PredictResponse;
+import org.sustain.modeling.ModelCache;
+
+/**
+ * Scores a request's feature vectors with a stored model, from the driver's ModelCache. Only a cache miss reads
+ * the model from the ModelStore; hits run no Spark jobs.
+ */
+public class PredictQueryHandler extends GrpcHandler<PredictRequest, PredictResponse> {
+
+    private static final Logger log = LogManager.getLogger(PredictQueryHandler.class);
+
+    public PredictQueryHandler(PredictRequest request, StreamObserver<PredictResponse> responseObserver) {
+        super(request, responseObserver);
+    }
+
+    @Override
+    public void handleRequest() {
+        long startTime = System.nanoTime();
+        try {
+            ModelCache.Predictor predictor = ModelCache.getInstance().get(request.getModelKey());
+            if (predictor == null) {
+                responseObserver.onError(Status.NOT_FOUND
+                    .withDescription(String.format("No stored model with key '%s'", request.getModelKey()))
+                    .asRuntimeException());
+                return;
+            }
+            if (!request.getGisJoin().isEmpty() && !request.getGisJoin().equals(predictor.getGisJoin())) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription(String.format("Model '%s' was trained on GISJoin %s, not %s",
+                        request.getModelKey(), predictor.getGisJoin(), request.getGisJoin()))
+                    .asRuntimeException());
+                return;
+            }
+
+            // The request's values are reordered into the order of the model's features
+            int[] columns = predictor.columnsOf(request.getFeaturesList());
+            if (columns == null) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription(String.format("Model '%s' takes features %s, got %s",
+                        request.getModelKey(), predictor.getFeatures(), request.getFeaturesList()))
+                    .asRuntimeException());
+                return;
+            }
+
+            // Scored as one batch of rows
+            int numFeatures = predictor.getNumFeatures(), numRows = request.getFeatureVectorsCount();
+            double[] rows = new double[numRows * numFeatures];
+            for (int r = 0; r < numRows; r++) {
+                FeatureVector vector = request.getFeatureVectors(r);
+                if (vector.getValuesCount() != numFeatures) {
+                    responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription(String.format("Model '%s' takes %d features, got %d",
+                            request.getModelKey(), numFeatures, vector.getValuesCount()))
+                        .asRuntimeException());
+                    return;
+                }
+                for (int i = 0; i < numFeatures; i++) {
+                    rows[r * numFeatures + i] = vector.getValues(columns[i]);
+                }
+            }
+            double[] predictions = new double[numRows];
+            predictor.predict(rows, numRows, predictions);
+
+            PredictResponse.Builder response = PredictResponse.newBuilder()
+                .setGisJoin(predictor.getGisJoin());
+            for (double prediction : predictions) {
+                response.addPredictions(prediction);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+            log.debug("Scored {} feature vector(s) with model {} in {} us", request.getFeatureVectorsCount(),
+                request.getModelKey(), (System.nanoTime() - startTime) / 1000);
+        } catch (Exception e) {
+            log.error("Failed to evaluate prediction query", e);
+            responseObserver.onError(e);
+        }
+    }
+}
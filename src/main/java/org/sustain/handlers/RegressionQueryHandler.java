@@ -1,6 +1,5 @@
 package org.sustain.handlers;
 
-import com.mongodb.spark.MongoSpark;
 import com.mongodb.spark.config.ReadConfig;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
@@ -16,12 +15,23 @@ import org.sustain.LinearRegressionResponse;
 import org.sustain.ModelRequest;
 import org.sustain.ModelResponse;
 import org.sustain.ModelType;
+import org.sustain.SparkJobPool;
 import org.sustain.SparkManager;
 import org.sustain.SparkTask;
 import org.sustain.modeling.LRModel;
+import org.sustain.modeling.ModelStore;
+import org.sustain.modeling.local.ClosedFormLinearRegression;
+import org.sustain.modeling.local.GroupedLinearRegression;
+import org.sustain.modeling.local.LinearRegressionFit;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalTraining;
+import org.sustain.mongodb.GisJoinRowCounts;
+import org.sustain.mongodb.PushdownPipeline;
 import org.sustain.util.Constants;
+import org.sustain.util.Task;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,86 +40,136 @@ import java.util.concurrent.Future;
 public class RegressionQueryHandler extends GrpcSparkHandler<ModelRequest, ModelResponse> {
 
     private static final Logger log = LogManager.getLogger(RegressionQueryHandler.class);
+    private static final String GROUPED_TRAINING_MODE = "grouped";
+    private static final String CLOSED_FORM_TRAINING_MODE = "closedForm";
 
     public RegressionQueryHandler(ModelRequest request, StreamObserver<ModelResponse> responseObserver, SparkManager sparkManager) {
         super(request, responseObserver, sparkManager);
     }
 
-    private List<List<String>> batchGisJoins(List<String> gisJoins, int batchSize) {
-		List<List<String>> batches = new ArrayList<>();
-		int totalGisJoins = gisJoins.size();
-		int gisJoinsPerBatch = (int) Math.ceil( (1.0*totalGisJoins) / (1.0*batchSize) );
-		log.info(">>> Max batch size: {}, totalGisJoins: {}, gisJoinsPerBatch: {}", batchSize, totalGisJoins,
-				gisJoinsPerBatch);
-
-		for (int i = 0; i < totalGisJoins; i++) {
-			if ( i % gisJoinsPerBatch == 0 ) {
-				batches.add(new ArrayList<>());
-			}
-			String gisJoin = gisJoins.get(i);
-			batches.get(batches.size() - 1).add(gisJoin);
-		}
-
-		StringBuilder batchLog = new StringBuilder(
-				String.format(">>> %d batches for %d GISJoins\n", batches.size(), totalGisJoins)
-		);
-		for (int i = 0; i < batches.size(); i++) {
-			batchLog.append(String.format("\tBatch %d size: %d\n", i, batches.get(i).size()));
-		}
-		log.info(batchLog.toString());
-		return batches;
-	}
-
     @Override
     public void handleRequest() {
         if (isValid(this.request)) {
             logRequest(this.request);
 			try {
 
-				// For each batch of GISJoins in the request, submit a task to Spark Manager
-				List<List<String>> gisJoinBatches = batchGisJoins(
-						this.request.getLinearRegressionRequest().getGisJoinsList(),
-						20
-				);
+				// Closed-form training aggregates every GISJoin in one scan, so it isn't batched.
+				// Otherwise GISJoins are scheduled by their row counts, so a batch holding one huge county
+				// doesn't finish hours after the rest.
+				List<String> gisJoins = this.request.getLinearRegressionRequest().getGisJoinsList();
+				String trainingMode = trainingMode();
+				if (trainingMode.isEmpty()) {
+					Map<String, Long> rowCounts = GisJoinRowCounts.countAll(
+							this.request.getCollections(0).getName(), "gis_join", gisJoins);
+					// Each worker holds a pool thread, so more workers than the pool runs at once only queue
+					SparkJobPool pool = SparkJobPool.forModelType(this.request.getType());
+					new GisJoinScheduler(gisJoins, rowCounts, Math.min(pool.getConcurrency(), gisJoins.size())).run(
+							task -> submit(task, pool, this.request.getPriority()),
+							(sparkContext, gisJoin) -> new LinearRegressionTask(this.request,
+									Collections.singletonList(gisJoin), trainingMode).execute(sparkContext),
+							this.responseObserver::onNext,
+							this::isCancelled);
+				} else {
+					List<List<String>> gisJoinBatches = CLOSED_FORM_TRAINING_MODE.equals(trainingMode)
+							? Collections.singletonList(gisJoins)
+							: GisJoinScheduler.balancedBatches(gisJoins, GisJoinRowCounts.countAll(
+									this.request.getCollections(0).getName(), "gis_join", gisJoins), 20);
 
-				List<Future<List<ModelResponse>>> batchedModelTasks = new ArrayList<>();
-				for (List<String> gisJoinBatch: gisJoinBatches) {
-					LinearRegressionTask lrTask = new LinearRegressionTask(this.request, gisJoinBatch);
-					batchedModelTasks.add(this.sparkManager.submit(lrTask, "regression-query"));
-				}
+					// For each batch of GISJoins in the request, submit a task to Spark Manager.
+					List<Future<List<ModelResponse>>> batchedModelTasks = new ArrayList<>();
+					for (List<String> gisJoinBatch: gisJoinBatches) {
+						LinearRegressionTask lrTask = new LinearRegressionTask(this.request, gisJoinBatch, trainingMode);
+						batchedModelTasks.add(submit(lrTask, SparkJobPool.forModelType(this.request.getType()),
+								this.request.getPriority()));
+					}
 
-				// Wait for each task to complete and return their ModelResponses
-				for (Future<List<ModelResponse>> lrModelTask: batchedModelTasks) {
-					List<ModelResponse> batchedModelResponses = lrModelTask.get();
-					for (ModelResponse modelResponse: batchedModelResponses) {
-						this.responseObserver.onNext(modelResponse);
+					// Wait for each task to complete and return their ModelResponses
+					for (Future<List<ModelResponse>> lrModelTask: batchedModelTasks) {
+						List<ModelResponse> batchedModelResponses = lrModelTask.get();
+						for (ModelResponse modelResponse: batchedModelResponses) {
+							this.responseObserver.onNext(modelResponse);
+						}
 					}
 				}
 
 			} catch (Exception e) {
 				log.error("Failed to evaluate query", e);
-				responseObserver.onError(e);
+				onError(e);
 			}
         } else {
             log.warn("Invalid Model Request!");
         }
     }
 
+	/**
+	 * Grouped and closed-form training only reproduce Spark's normal-solver squaredError fit with an L2 (or no)
+	 * penalty, so they are checked up front: requests they don't apply to are scheduled per GISJoin instead.
+	 * @return The request's training mode, or "" to train each GISJoin's model on its own.
+	 */
+	private String trainingMode() {
+		LinearRegressionRequest lrRequest = this.request.getLinearRegressionRequest();
+		String trainingMode = lrRequest.getTrainingMode();
+		if (!CLOSED_FORM_TRAINING_MODE.equals(trainingMode) && !GROUPED_TRAINING_MODE.equals(trainingMode)) {
+			return "";
+		}
+		LRModel parameters = new LRModel.LRModelBuilder()
+				.withSolver(lrRequest.getSolver())
+				.withLoss(lrRequest.getLoss())
+				.withElasticNetParam(lrRequest.getElasticNetParam())
+				.withRegularizationParam(lrRequest.getRegularizationParam())
+				.build();
+		if (!GroupedLinearRegression.isSupported(parameters.getSolver(), parameters.getLoss(),
+				parameters.getElasticNetParam(), parameters.getRegularizationParam())) {
+			log.info("{} training does not support solver {} or loss {} with elasticNetParam {}, training per GISJoin",
+					trainingMode, parameters.getSolver(), parameters.getLoss(), parameters.getElasticNetParam());
+			return "";
+		}
+		return trainingMode;
+	}
+
     protected class LinearRegressionTask implements SparkTask<List<ModelResponse>> {
 
 		private final LinearRegressionRequest lrRequest;
 		private final Collection requestCollection;
     	private final List<String> gisJoins;
+		private final String trainingMode;
 
-    	LinearRegressionTask(ModelRequest modelRequest, List<String> gisJoins) {
+		/**
+		 * @param trainingMode The grouped or closed-form training mode, checked to apply to the request, or "" to
+		 * train each GISJoin's model on its own.
+		 */
+    	LinearRegressionTask(ModelRequest modelRequest, List<String> gisJoins, String trainingMode) {
 			this.lrRequest = modelRequest.getLinearRegressionRequest();
 			this.requestCollection = modelRequest.getCollections(0); // We only support 1 collection currently
 			this.gisJoins = gisJoins;
+			this.trainingMode = trainingMode;
 		}
 
 		@Override
 		public List<ModelResponse> execute(JavaSparkContext sparkContext) throws Exception {
 
+			// Identical earlier requests' stored responses are returned instead of retraining those GISJoins,
+			// looked up at once since a closed-form task holds every GISJoin of the request
+			List<String> modelKeys = new ArrayList<>();
+			for (String gisJoin: this.gisJoins) {
+				modelKeys.add(modelKey(gisJoin));
+			}
+			Map<String, ModelResponse> storedResponses = ModelStore.getInstance().loadResponses(modelKeys);
+
+			List<ModelResponse> modelResponses = new ArrayList<>();
+			List<String> gisJoins = new ArrayList<>();
+			for (String gisJoin: this.gisJoins) {
+				ModelResponse storedResponse = storedResponses.get(modelKey(gisJoin));
+				if (storedResponse != null) {
+					modelResponses.add(storedResponse);
+				} else {
+					gisJoins.add(gisJoin);
+				}
+			}
+			if (gisJoins.isEmpty()) {
+				return modelResponses;
+			}
+
 			// Create a custom Mongo-Spark ReadConfig
 			Map<String, String> readOverrides = new HashMap<String, String>();
 			String mongoUri = String.format("mongodb://%s:%s", Constants.DB.HOST, Constants.DB.PORT);
@@ -118,29 +178,31 @@ public class RegressionQueryHandler extends GrpcSparkHandler<ModelRequest, Model
 			readOverrides.put("collection", requestCollection.getName());
 			ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
 
-			// Lazy-load the collection in as a DF
-			Dataset<Row> mongoCollection = MongoSpark.load(sparkContext, readConfig).toDF();
+			// Lazy-load only this batch's documents and columns in as a DF
+			List<String> columns = new ArrayList<>(requestCollection.getFeaturesList());
+			columns.add(requestCollection.getLabel());
+			Dataset<Row> mongoCollection = PushdownPipeline.load(sparkContext, readConfig, "gis_join",
+					gisJoins, columns);
 
-			List<ModelResponse> modelResponses = new ArrayList<>();
-			for (String gisJoin: this.gisJoins) {
-				LRModel model = new LRModel.LRModelBuilder()
-						.forMongoCollection(mongoCollection)
-						.forGISJoin(gisJoin)
-						.forFeatures(requestCollection.getFeaturesList())
-						.forLabel(requestCollection.getLabel())
-						.withLoss(lrRequest.getLoss())
-						.withSolver(lrRequest.getSolver())
-						.withAggregationDepth(lrRequest.getAggregationDepth())
-						.withMaxIterations(lrRequest.getMaxIterations())
-						.withElasticNetParam(lrRequest.getElasticNetParam())
-						.withEpsilon(lrRequest.getEpsilon())
-						.withRegularizationParam(lrRequest.getRegularizationParam())
-						.withTolerance(lrRequest.getConvergenceTolerance())
-						.withFitIntercept(lrRequest.getFitIntercept())
-						.withStandardization(lrRequest.getSetStandardization())
-						.build();
+			if (!trainingMode.isEmpty()) {
+				LRModel parameters = modelBuilder(mongoCollection, null).build();
+				modelResponses.addAll(GROUPED_TRAINING_MODE.equals(trainingMode)
+						? trainGrouped(mongoCollection, parameters, gisJoins.size())
+						: trainClosedForm(mongoCollection, parameters, gisJoins.size()));
+				return modelResponses;
+			}
+
+			for (String gisJoin: gisJoins) {
+				LRModel model = modelBuilder(mongoCollection, gisJoin).build();
 
-				boolean ok = model.train(); // Launches the Spark Model
+				// Small GISJoins are trained in-process, the rest launch the Spark model
+				boolean local = GroupedLinearRegression.isSupported(model.getSolver(), model.getLoss(),
+						model.getElasticNetParam(), model.getRegularizationParam())
+						&& LocalTraining.shouldTrainLocally(requestCollection.getName(), "gis_join", gisJoin);
+				boolean ok = local
+						? model.trainLocally(LocalDataset.load(requestCollection.getName(), "gis_join", gisJoin,
+								requestCollection.getFeaturesList(), requestCollection.getLabel()))
+						: model.train();
 				if (ok) {
 					// Build model response and return it
 					LinearRegressionResponse modelResults = LinearRegressionResponse.newBuilder()
@@ -151,17 +213,117 @@ public class RegressionQueryHandler extends GrpcSparkHandler<ModelRequest, Model
 							.setIntercept(model.getIntercept())
 							.addAllSlopeCoefficients(model.getCoefficients())
 							.addAllObjectiveHistory(model.getObjectiveHistory())
+							.setModelKey(modelKey(gisJoin))
 							.build();
 
-					modelResponses.add(ModelResponse.newBuilder()
+					ModelResponse modelResponse = ModelResponse.newBuilder()
 							.setLinearRegressionResponse(modelResults)
-							.build());
+							.addAllFeatures(requestCollection.getFeaturesList())
+							.build();
+					ModelStore.getInstance().save(modelKey(gisJoin), model.getLrModel(), modelResponse);
+					modelResponses.add(modelResponse);
 				} else {
 					log.info("Ran into a problem building a model for GISJoin {}, skipping.", gisJoin);
 				}
 			}
 			return modelResponses;
 		}
+
+		/**
+		 * Trains every GISJoin of the batch in one Spark job: rows are shuffled by GISJoin and each
+		 * model is fit on the executor holding its group.
+		 */
+		private List<ModelResponse> trainGrouped(Dataset<Row> mongoCollection, LRModel parameters, int numGisJoins) {
+			Task trainTask = new Task(String.format("Grouped LR train(%d GISJoins)", numGisJoins), 0);
+			GroupedLinearRegression groupedRegression = new GroupedLinearRegression(
+					requestCollection.getFeaturesList(),
+					requestCollection.getLabel(),
+					parameters.getRegularizationParam(),
+					parameters.getFitIntercept(),
+					parameters.getSetStandardization()
+			);
+
+			List<ModelResponse> modelResponses = toModelResponses(groupedRegression.fitAll(mongoCollection, "gis_join"));
+
+			trainTask.finish();
+			log.info(">>> Finished grouped training of {}/{} GISJoins, Task: {}", modelResponses.size(),
+					numGisJoins, trainTask);
+			return modelResponses;
+		}
+
+		/**
+		 * Trains every GISJoin of the request from sufficient statistics gathered in one groupBy aggregation,
+		 * solving each GISJoin's normal equations on the driver.
+		 */
+		private List<ModelResponse> trainClosedForm(Dataset<Row> mongoCollection, LRModel parameters, int numGisJoins) {
+			Task trainTask = new Task(String.format("Closed-form LR train(%d GISJoins)", numGisJoins), 0);
+			ClosedFormLinearRegression closedFormRegression = new ClosedFormLinearRegression(
+					requestCollection.getFeaturesList(),
+					requestCollection.getLabel(),
+					parameters.getRegularizationParam(),
+					parameters.getFitIntercept(),
+					parameters.getSetStandardization()
+			);
+			List<ModelResponse> modelResponses = toModelResponses(closedFormRegression.fitAll(mongoCollection, "gis_join"));
+
+			trainTask.finish();
+			log.info(">>> Finished closed-form training of {}/{} GISJoins, Task: {}", modelResponses.size(),
+					numGisJoins, trainTask);
+			return modelResponses;
+		}
+
+		private List<ModelResponse> toModelResponses(List<LinearRegressionFit> fits) {
+			List<ModelResponse> modelResponses = new ArrayList<>();
+			for (LinearRegressionFit fit: fits) {
+				List<Double> coefficients = new ArrayList<>();
+				for (double d: fit.getCoefficients()) {
+					coefficients.add(d);
+				}
+
+				// Closed-form fits report no iterations and a single zero objective, like Spark's normal solver
+				LinearRegressionResponse modelResults = LinearRegressionResponse.newBuilder()
+						.setGisJoin(fit.getGisJoin())
+						.setTotalIterations(0)
+						.setRmseResidual(fit.getRmse())
+						.setR2Residual(fit.getR2())
+						.setIntercept(fit.getIntercept())
+						.addAllSlopeCoefficients(coefficients)
+						.addObjectiveHistory(0.0)
+						.setModelKey(modelKey(fit.getGisJoin()))
+						.build();
+
+				// Stored without a Spark model, so the batch isn't held up by one model write per GISJoin
+				ModelResponse modelResponse = ModelResponse.newBuilder()
+						.setLinearRegressionResponse(modelResults)
+						.addAllFeatures(requestCollection.getFeaturesList())
+						.build();
+				ModelStore.getInstance().save(modelKey(fit.getGisJoin()), null, modelResponse);
+				modelResponses.add(modelResponse);
+			}
+			return modelResponses;
+		}
+
+		private String modelKey(String gisJoin) {
+			return ModelStore.key(request.getType(), requestCollection, gisJoin, lrRequest.toBuilder().clearGisJoins());
+		}
+
+		private LRModel.LRModelBuilder modelBuilder(Dataset<Row> mongoCollection, String gisJoin) {
+			return new LRModel.LRModelBuilder()
+					.forMongoCollection(mongoCollection)
+					.forGISJoin(gisJoin)
+					.forFeatures(requestCollection.getFeaturesList())
+					.forLabel(requestCollection.getLabel())
+					.withLoss(lrRequest.getLoss())
+					.withSolver(lrRequest.getSolver())
+					.withAggregationDepth(lrRequest.getAggregationDepth())
+					.withMaxIterations(lrRequest.getMaxIterations())
+					.withElasticNetParam(lrRequest.getElasticNetParam())
+					.withEpsilon(lrRequest.getEpsilon())
+					.withRegularizationParam(lrRequest.getRegularizationParam())
+					.withTolerance(lrRequest.getConvergenceTolerance())
+					.withFitIntercept(lrRequest.getFitIntercept())
+					.withStandardization(lrRequest.getSetStandardization());
+		}
 	}
 
     @Override
@@ -0,0 +1,191 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * CacheScope.java -
+ *      Tracks the Datasets a model caches and unpersists them when the model, or one of
+ *      its training rounds, is done with them.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.RDDInfo;
+import org.apache.spark.storage.StorageLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opened with try-with-resources, once per model and optionally once per training round:
+ * <pre>
+ *     try (CacheScope scope = CacheScope.open("RF " + gisJoin)) {
+ *         Dataset&lt;Row&gt; trainrdd = scope.persist(rds[0], StorageLevel.MEMORY_ONLY());
+ *         ...
+ *     }
+ * </pre>
+ * Scopes nest per thread: a scope opened while another is open on the same thread is closed with it at the
+ * latest. Closing a scope unpersists every Dataset it cached that wasn't released earlier.
+ * <p>
+ * Before releasing anything, a scope samples the executors' storage memory held by cached data, and keeps the
+ * high-water mark per Spark job group, i.e. per request. Handlers register their job group with trackUsage()
+ * before submitting tasks, and collect its usage with takeUsage() when the request is done. Scopes opened under a
+ * job group that isn't tracked, e.g. by a task still running after its request was cancelled, record nothing, so
+ * no usage outlives its request.
+ */
+public class CacheScope implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(CacheScope.class);
+
+    private static final ThreadLocal<CacheScope> current = new ThreadLocal<>();
+    private static final Map<String, Usage> usageByJobGroup = new ConcurrentHashMap<>();
+
+    private final String           name;
+    private final CacheScope       parent;
+    private final Usage            usage;
+    private final List<Dataset<?>> datasets = new ArrayList<>();
+    private final List<CacheScope> children = new ArrayList<>();
+    private boolean                closed;
+
+    private CacheScope(String name, CacheScope parent, Usage usage) {
+        this.name = name;
+        this.parent = parent;
+        this.usage = usage;
+    }
+
+    /**
+     * Opens a scope nested in the innermost scope open on this thread, if any, and makes it the innermost one.
+     * @param name Name of the scope in the logs, e.g. the model and GISJoin.
+     */
+    public static CacheScope open(String name) {
+        CacheScope parent = current.get();
+        Usage usage = parent != null ? parent.usage : usageOfJobGroup();
+        CacheScope scope = new CacheScope(parent != null ? parent.name + " / " + name : name, parent, usage);
+        if (parent != null) {
+            parent.children.add(scope);
+        }
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Starts recording the storage usage of a job group's scopes, until takeUsage() is called for it.
+     */
+    public static void trackUsage(String jobGroup) {
+        usageByJobGroup.putIfAbsent(jobGroup, new Usage());
+    }
+
+    /**
+     * @return The storage usage recorded for a job group, which stops being tracked; null if it wasn't tracked.
+     */
+    public static Usage takeUsage(String jobGroup) {
+        return usageByJobGroup.remove(jobGroup);
+    }
+
+    /**
+     * Caches a Dataset with its default storage level until this scope is closed.
+     */
+    public <T> Dataset<T> cache(Dataset<T> dataset) {
+        return track(dataset.cache());
+    }
+
+    /**
+     * Persists a Dataset until this scope is closed.
+     */
+    public <T> Dataset<T> persist(Dataset<T> dataset, StorageLevel storageLevel) {
+        return track(dataset.persist(storageLevel));
+    }
+
+    /**
+     * Unpersists a Dataset of this scope before the scope is closed, e.g. the previous round's sample.
+     */
+    public void release(Dataset<?> dataset) {
+        if (dataset != null && datasets.remove(dataset)) {
+            usage.sample();
+            dataset.unpersist();
+        }
+    }
+
+    /**
+     * Closes the nested scopes still open, then unpersists every Dataset cached in this scope.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (CacheScope child: new ArrayList<>(children)) {
+            child.close();
+        }
+        if (!datasets.isEmpty()) {
+            usage.sample();
+        }
+        for (Dataset<?> dataset: datasets) {
+            dataset.unpersist();
+        }
+        log.debug("Cache scope {} unpersisted {} datasets", name, datasets.size());
+        datasets.clear();
+
+        if (parent != null) {
+            parent.children.remove(this);
+        }
+        if (current.get() == this) {
+            if (parent != null) {
+                current.set(parent);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+    private <T> Dataset<T> track(Dataset<T> dataset) {
+        if (closed) {
+            throw new IllegalStateException("Cache scope " + name + " is closed");
+        }
+        datasets.add(dataset);
+        usage.datasets.incrementAndGet();
+        return dataset;
+    }
+
+    /**
+     * @return The usage of the job group set on this thread by the SparkManager, or an untracked one if the job
+     * group isn't tracked, or outside of requests, e.g. in the models' main() methods.
+     */
+    private static Usage usageOfJobGroup() {
+        String jobGroup = SparkSession.active().sparkContext().getLocalProperty("spark.jobGroup.id");
+        Usage usage = jobGroup != null ? usageByJobGroup.get(jobGroup) : null;
+        return usage != null ? usage : new Usage();
+    }
+
+    /**
+     * Datasets cached by a request, and the most storage memory held by cached data while they were.
+     */
+    public static class Usage {
+        private final AtomicLong datasets = new AtomicLong();
+        private long             peakStorageBytes;
+
+        private synchronized void sample() {
+            long storageBytes = 0;
+            for (RDDInfo rdd: SparkSession.active().sparkContext().getRDDStorageInfo()) {
+                storageBytes += rdd.memSize();
+            }
+            peakStorageBytes = Math.max(peakStorageBytes, storageBytes);
+        }
+
+        public long getDatasets() {
+            return datasets.get();
+        }
+
+        /**
+         * @return The high-water mark of the executors' storage memory used by cached data, in bytes. Other
+         * requests' cached data running at the same time is included.
+         */
+        public synchronized long getPeakStorageBytes() {
+            return peakStorageBytes;
+        }
+    }
+}
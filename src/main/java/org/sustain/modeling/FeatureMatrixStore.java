@@ -0,0 +1,300 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * FeatureMatrixStore.java -
+ *      Materializes the assembled, min-max normalized feature vectors of a census resolution's stats
+ *      collection once, so repeated clustering queries on the same features skip straight to fitting.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import com.mongodb.spark.MongoSpark;
+import com.mongodb.spark.config.ReadConfig;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.ml.feature.MinMaxScaler;
+import org.apache.spark.ml.feature.MinMaxScalerModel;
+import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.linalg.Vector;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.bson.Document;
+import org.sustain.mongodb.DBConnection;
+import org.sustain.util.Constants;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.spark.sql.functions.col;
+
+/**
+ * A feature matrix holds the GISJoin and the normalized "features" vector of every row of a resolution's stats
+ * collection without nulls in the requested features. It is keyed by the resolution and the sorted feature list, so
+ * its vectors are always assembled in sorted feature order; the clustering models are unaffected by the order of
+ * the dimensions.
+ * <p>
+ * Matrices are written as Parquet to FEATURE_MATRIX_DIR (default "feature-matrices", any Hadoop file system URI),
+ * next to their fitted MinMaxScalerModel, which records each feature's original range. Each version's directory is
+ * named after the key and a fingerprint of the source collection, its document count and data size from collStats,
+ * so a changed collection gets a new version and older ones are deleted. The latest version of each key is also
+ * kept persisted in Spark until it is replaced. As with the ModelStore, a Spark cluster needs FEATURE_MATRIX_DIR on a
+ * file system the driver and the executors share.
+ */
+public class FeatureMatrixStore {
+
+    private static final Logger log = LogManager.getLogger(FeatureMatrixStore.class);
+
+    private static final String SCALER_DIR = "scaler";
+    private static final String MATRIX_DIR = "matrix";
+    private static final String SUCCESS_FILE = "_SUCCESS";
+
+    private static final FeatureMatrixStore instance = new FeatureMatrixStore(
+            System.getenv().getOrDefault("FEATURE_MATRIX_DIR", "feature-matrices"));
+
+    private final String                     directory;
+    private final Map<String, FeatureMatrix> matrices = new ConcurrentHashMap<>();
+    private final Map<String, Object>        locks = new ConcurrentHashMap<>();
+
+    public FeatureMatrixStore(String directory) {
+        this.directory = directory;
+    }
+
+    public static FeatureMatrixStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param resolution Census resolution, e.g. "county"; the matrix is built from its "_stats" collection.
+     * @param features Feature fields, in any order.
+     * @return The current feature matrix of the resolution and features, materialized on first use or after the
+     * source collection changed.
+     */
+    public FeatureMatrix get(JavaSparkContext sparkContext, String resolution, List<String> features)
+            throws IOException {
+        List<String> sortedFeatures = new ArrayList<>(features);
+        Collections.sort(sortedFeatures);
+        String collection = resolution + "_stats";
+        String key = hash(collection + "\n" + String.join(",", sortedFeatures));
+        String version = key + "-" + hash(fingerprint(collection));
+
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            FeatureMatrix matrix = matrices.get(key);
+            if (matrix != null && matrix.version.equals(version)) {
+                return matrix;
+            }
+
+            Path versionDir = new Path(directory, version);
+            FileSystem fs = versionDir.getFileSystem(sparkContext.hadoopConfiguration());
+            if (!fs.exists(new Path(new Path(versionDir, MATRIX_DIR), SUCCESS_FILE))) {
+                materialize(sparkContext, collection, sortedFeatures, versionDir, fs);
+            }
+
+            SparkSession sparkSession = SparkSession.builder().sparkContext(sparkContext.sc()).getOrCreate();
+            Dataset<Row> vectors = sparkSession.read().parquet(new Path(versionDir, MATRIX_DIR).toString())
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+            MinMaxScalerModel scaler = MinMaxScalerModel.load(new Path(versionDir, SCALER_DIR).toString());
+            FeatureMatrix current = new FeatureMatrix(version, sortedFeatures, vectors, scaler.originalMin(),
+                    scaler.originalMax());
+
+            // Requests still fitting on the replaced version fall back to its files, which are kept until the
+            // next version replaces this one
+            if (matrix != null) {
+                matrix.vectors.unpersist();
+            }
+            matrices.put(key, current);
+            deleteOldVersions(key, version, matrix != null ? matrix.version : null, fs);
+            log.info("Loaded feature matrix {} of {} {}: min {}, max {}", version, collection, sortedFeatures,
+                    current.originalMin, current.originalMax);
+            return current;
+        }
+    }
+
+    /**
+     * Assembles and normalizes the collection's features, then writes the scaler and the vectors; the vectors'
+     * _SUCCESS file marks the version complete.
+     */
+    private static void materialize(JavaSparkContext sparkContext, String collection, List<String> features,
+                                    Path versionDir, FileSystem fs) throws IOException {
+        log.info("Materializing the feature matrix of {} {} in {}", collection, features, versionDir);
+        Map<String, String> readOverrides = new HashMap<>();
+        readOverrides.put("spark.mongodb.input.collection", collection);
+        readOverrides.put("spark.mongodb.input.database", Constants.DB.NAME);
+        readOverrides.put("spark.mongodb.input.uri", "mongodb://" + Constants.DB.HOST + ":" + Constants.DB.PORT);
+        ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
+
+        List<Column> columns = new ArrayList<>();
+        columns.add(col(Constants.GIS_JOIN));
+        for (String feature: features) {
+            columns.add(col(feature));
+        }
+        Dataset<Row> selectedFeatures = MongoSpark.load(sparkContext, readConfig).toDF()
+                .select(columns.toArray(new Column[0]))
+                .na().drop();
+
+        Dataset<Row> assembled = new VectorAssembler()
+                .setInputCols(features.toArray(new String[0]))
+                .setOutputCol("raw_features")
+                .transform(selectedFeatures);
+        MinMaxScalerModel scaler = new MinMaxScaler()
+                .setInputCol("raw_features")
+                .setOutputCol("features")
+                .fit(assembled);
+
+        fs.delete(versionDir, true);
+        scaler.write().save(new Path(versionDir, SCALER_DIR).toString());
+        scaler.transform(assembled)
+                .select(Constants.GIS_JOIN, "features")
+                .write()
+                .parquet(new Path(versionDir, MATRIX_DIR).toString());
+    }
+
+    private void deleteOldVersions(String key, String version, String replacedVersion, FileSystem fs)
+            throws IOException {
+        for (FileStatus status: fs.listStatus(new Path(directory))) {
+            String name = status.getPath().getName();
+            if (name.startsWith(key + "-") && !name.equals(version) && !name.equals(replacedVersion)) {
+                log.info("Deleting outdated feature matrix {}", name);
+                fs.delete(status.getPath(), true);
+            }
+        }
+    }
+
+    /**
+     * @return The collection's document count and data size, which change with nearly every write to it.
+     */
+    private static String fingerprint(String collection) {
+        Document stats = DBConnection.getConnection().runCommand(new Document("collStats", collection));
+        return ((Number) stats.get("count")).longValue() + ":" + ((Number) stats.get("size")).longValue();
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class FeatureMatrix {
+        private final String       version;
+        private final List<String> features;
+        private final Dataset<Row> vectors;
+        private final Vector       originalMin, originalMax;
+        private long               numRows = -1;
+        private LocalFeatures      local;
+
+        private FeatureMatrix(String version, List<String> features, Dataset<Row> vectors, Vector originalMin,
+                              Vector originalMax) {
+            this.version = version;
+            this.features = features;
+            this.vectors = vectors;
+            this.originalMin = originalMin;
+            this.originalMax = originalMax;
+        }
+
+        /**
+         * @return The GISJoin and normalized "features" vector of each row; persisted, so don't unpersist it.
+         */
+        public Dataset<Row> getVectors() {
+            return vectors;
+        }
+
+        /**
+         * Collects the vectors to the driver the first time, then returns the same copy.
+         * @return The vectors as LocalFeatures, or null if there are more than maxRows.
+         */
+        public synchronized LocalFeatures toLocal(long maxRows) {
+            if (numRows < 0) {
+                numRows = vectors.count();
+            }
+            if (numRows > maxRows) {
+                return null;
+            }
+            if (local == null) {
+                List<Row> rows = vectors.select(Constants.GIS_JOIN, "features").collectAsList();
+                int dims = features.size();
+                String[] gisJoins = new String[rows.size()];
+                double[] values = new double[rows.size() * dims];
+                for (int i = 0; i < rows.size(); i++) {
+                    gisJoins[i] = rows.get(i).getString(0);
+                    Vector vector = rows.get(i).getAs(1);
+                    for (int d = 0; d < dims; d++) {
+                        values[i * dims + d] = vector.apply(d);
+                    }
+                }
+                local = new LocalFeatures(gisJoins, values, dims);
+            }
+            return local;
+        }
+
+        /**
+         * @return The features in the order of the vectors' dimensions.
+         */
+        public List<String> getFeatures() {
+            return features;
+        }
+
+        /**
+         * @return Each feature's minimum in the source collection, which is normalized to 0.
+         */
+        public Vector getOriginalMin() {
+            return originalMin;
+        }
+
+        /**
+         * @return Each feature's maximum in the source collection, which is normalized to 1.
+         */
+        public Vector getOriginalMax() {
+            return originalMax;
+        }
+    }
+
+    /**
+     * A feature matrix held on the driver: the vectors row-major in one contiguous double[].
+     */
+    public static class LocalFeatures {
+        private final String[] gisJoins;
+        private final double[] rows;
+        private final int      numFeatures;
+
+        private LocalFeatures(String[] gisJoins, double[] rows, int numFeatures) {
+            this.gisJoins = gisJoins;
+            this.rows = rows;
+            this.numFeatures = numFeatures;
+        }
+
+        public String[] getGisJoins() {
+            return gisJoins;
+        }
+
+        public double[] getRows() {
+            return rows;
+        }
+
+        public int getNumRows() {
+            return gisJoins.length;
+        }
+
+        public int getNumFeatures() {
+            return numFeatures;
+        }
+    }
+}
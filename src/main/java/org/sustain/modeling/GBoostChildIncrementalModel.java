@@ -42,6 +42,11 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.storage.StorageLevel;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalGradientBoostedTrees;
+import org.sustain.modeling.local.LocalRegressionMetrics;
+import org.sustain.modeling.local.TreeEnsemble;
+import org.sustain.modeling.local.TreeEnsembleParams;
 import org.sustain.util.Constants;
 import org.sustain.util.FancyLogger;
 import scala.collection.JavaConverters;
@@ -50,6 +55,7 @@ import scala.collection.Seq;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 // PERFORMS EXHAUSTIVE TRAINING OVER A SET OF PARAMETERS
 
@@ -95,6 +101,15 @@ public class GBoostChildIncrementalModel {
     private Double trainSplit = 0.8d;
 
     private GBTRegressionModel parent_gbModel;
+    private GBTRegressor parent_gb;
+    private TreeEnsemble parent_gbEnsemble;
+    // Continue boosting the parent's trees instead of retraining from scratch
+    private boolean warmStart = false;
+    // Stops boosting once the loss on a validation subset of the training data plateaus, null to run every round
+    private GBoostEarlyStopping earlyStopping = null;
+
+    private GBTRegressionModel trained_gbModel;
+    private TreeEnsemble trained_gbEnsemble;
 
     public double getParent_rmse() {
         return parent_rmse;
@@ -121,6 +136,58 @@ public class GBoostChildIncrementalModel {
         return parent_gbModel;
     }
 
+    /**
+     * Sets the parent's estimator directly, for parents that were trained locally and have no Spark model.
+     */
+    public void setParent_gb(GBTRegressor parent_gb) {
+        this.parent_gb = parent_gb;
+    }
+
+    public GBTRegressor getParentEstimator() {
+        return parent_gb != null ? parent_gb : (GBTRegressor) parent_gbModel.parent();
+    }
+
+    /**
+     * Sets the parent's model trained by trainLocally(), which locally trained children can warm-start from.
+     */
+    public void setParent_gbEnsemble(TreeEnsemble parent_gbEnsemble) {
+        this.parent_gbEnsemble = parent_gbEnsemble;
+    }
+
+    /**
+     * Continues boosting the parent's trees instead of retraining the ensemble. train() warm-starts from the parent's
+     * Spark model and trainLocally() from its locally trained ensemble; a child trained on Spark whose parent was
+     * trained locally has no Spark model to warm-start from, and is retrained.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * Sets the parent's early stopping settings, which every training round of the child uses too.
+     */
+    public void setEarlyStopping(GBoostEarlyStopping earlyStopping) {
+        this.earlyStopping = earlyStopping;
+    }
+
+    /**
+     * @return Number of boosting iterations in the trained model, including the parent's trees after a warm start.
+     */
+    public int getIterationsUsed() {
+        if (trained_gbModel != null) {
+            return trained_gbModel.getNumTrees();
+        }
+        return trained_gbEnsemble != null ? trained_gbEnsemble.numTrees() : 0;
+    }
+
+    public GBTRegressionModel getTrained_gbModel() {
+        return trained_gbModel;
+    }
+
+    public TreeEnsemble getTrained_gbEnsemble() {
+        return trained_gbEnsemble;
+    }
+
     public Dataset<Row> getMongoCollection() {
         return mongoCollection;
     }
@@ -333,6 +400,12 @@ public class GBoostChildIncrementalModel {
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("GB child " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
 
@@ -366,23 +439,39 @@ public class GBoostChildIncrementalModel {
 
         //gisDataset2 = gisDataset2.sample(0.1);
 
-        Dataset<Row> mergedDataset_transfer = vectorAssembler.transform(gisDataset2).cache();
+        Dataset<Row> mergedDataset_transfer = vectorAssembler.transform(gisDataset2);
+        if (earlyStopping != null) {
+            mergedDataset_transfer = earlyStopping.markValidation(mergedDataset_transfer);
+        }
+        mergedDataset_transfer = scope.cache(mergedDataset_transfer);
+
+        if (warmStart && parent_gbModel != null) {
+            return trainWarmStart(mergedDataset_transfer);
+        } else if (warmStart && parent_gbEnsemble != null) {
+            log.info("Parent of GISJoin {} was trained locally, retraining the ensemble instead of warm-starting",
+                    gisJoin);
+        }
 
         // COPYING PARAMETERS FROM PRE_TRAINED MODEL
-        GBTRegressionModel gb2_model = parent_gbModel.copy(new ParamMap());
-        GBTRegressor gb2 = (GBTRegressor) gb2_model.parent();
+        GBTRegressor gb2 = getParentEstimator().copy(new ParamMap());
+        if (earlyStopping != null) {
+            earlyStopping.configure(gb2);
+        }
 
         int iter = 0;
         double targetRMSE = getParent_rmse();
         String fullSummary = "";
 
         long startTime_overall = System.currentTimeMillis();
+
+        // Nested training samples over a fixed test split
+        NestedSampler sampler = new NestedSampler(scope, mergedDataset_transfer, trainSplit);
+        Dataset<Row> testrdd_transfer = sampler.test();
+        LearningCurve learningCurve = new LearningCurve();
+
         while (true) {
             startTime = System.currentTimeMillis();
-            Dataset<Row> workingDataset = mergedDataset_transfer.sample(trainFraction);
-            Dataset<Row>[] rds_transfer = workingDataset.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
-            Dataset<Row> trainrdd_transfer = rds_transfer[0].cache();
-            Dataset<Row> testrdd_transfer = rds_transfer[1];
+            Dataset<Row> trainrdd_transfer = sampler.sample(trainFraction);
             fancy_logging("Model Data Split completed in " + calc_interval(startTime));
 
             /* TRAIN PHASE */
@@ -392,9 +481,14 @@ public class GBoostChildIncrementalModel {
 
             /* TEST/EVALUATION PHASE */
             startTime = System.currentTimeMillis();
-            Dataset<Row> pred_pair = gb2Model_iter.transform(testrdd_transfer).select("label", "prediction").cache();
-            RegressionMetrics metrics = new RegressionMetrics(pred_pair);
-            this.rmse = metrics.rootMeanSquaredError();
+            try (CacheScope round = CacheScope.open("round " + iter)) {
+                Dataset<Row> pred_pair = round.cache(gb2Model_iter.transform(testrdd_transfer).select("label", "prediction"));
+                RegressionMetrics metrics = new RegressionMetrics(pred_pair);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+            }
+            this.trained_gbModel = gb2Model_iter;
+            learningCurve.add(trainFraction, rmse);
 
             fullSummary += FancyLogger.fancy_logging("Model Evaluation/Loss Computation Round " + iter + " completed in " + calc_interval(startTime)
                     + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
@@ -408,15 +502,17 @@ public class GBoostChildIncrementalModel {
                 break;
             } else if (trainFraction > 0.9) {
                 fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY NOT ACHIEVED... RAN OUT OF SAMPLES") + "\n";
+                break;
+            } else if (learningCurve.unreachable(targetRMSE, 1.0)) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY OUT OF REACH... EXTRAPOLATED RMSE "
+                        + learningCurve.extrapolate(1.0)) + "\n";
+                break;
             } else {
                 fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY NOT ACHIEVED " + targetRMSE+" "+this.rmse + " ...RETRAINING") + "\n";
 
             }
 
-            // COPYING OVER PARAMETERS FROM PREVIOUS ITERATION
-            GBTRegressor gb2_tmp = new GBTRegressor().setFeaturesCol("features").setLabelCol("label");
-            gb2_tmp.copy(gb2Model_iter.paramMap());
-            gb2 = gb2_tmp;
+            // The next round reuses gb2, which keeps the parent's parameters
             iter++;
         }
 
@@ -428,6 +524,115 @@ public class GBoostChildIncrementalModel {
         return true;
     }
 
+    /**
+     * Starts from the parent's trees and only adds boosting rounds on this GISJoin's residuals, until the
+     * parent's RMSE is beaten.
+     */
+    private Boolean trainWarmStart(Dataset<Row> mergedDataset) {
+        long startTime = System.currentTimeMillis();
+        Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
+
+        GBoostWarmStart warmStarted = new GBoostWarmStart().fit(parent_gbModel, getParentEstimator(), rds[0], rds[1],
+                getParent_rmse());
+        this.trained_gbModel = warmStarted.getModel();
+        this.rmse = warmStarted.getRmse();
+        this.r2 = warmStarted.getR2();
+        logModelResults();
+
+        FancyLogger.write_out(FancyLogger.fancy_logging("WARM START ADDED " + warmStarted.getRounds()
+                + " ROUNDS TO THE PARENT'S " + parent_gbModel.getNumTrees() + " TREES IN " + calc_interval(startTime)
+                + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2 + " TARGET RMSE: " + getParent_rmse()), filename);
+        return true;
+    }
+
+    /**
+     * Trains the model in-process on data loaded through the MongoDB driver, with the parent's parameters and
+     * the same doubling sample loop as train(). Used for GISJoins too small to be worth Spark jobs.
+     */
+    public Boolean trainLocally(LocalDataset data) {
+        long startTime_overall = System.currentTimeMillis();
+        FancyLogger.write_out(fancy_logging("Initiating Local Gradient Boost Modelling..."), filename);
+
+        if (data.numRows() == 0) {
+            log.info("Dataset for GISJoin {} is empty!", gisJoin);
+            return false;
+        }
+
+        TreeEnsembleParams params = TreeEnsembleParams.of(getParentEstimator());
+        if (earlyStopping != null) {
+            earlyStopping.configure(params);
+        }
+        LocalGradientBoostedTrees gb2 = new LocalGradientBoostedTrees(params);
+        Random random = new Random();
+        double targetRMSE = getParent_rmse();
+
+        if (warmStart && parent_gbEnsemble != null) {
+            LocalDataset[] rds = data.randomSplit(trainSplit, random);
+            if (rds[0].numRows() > 0 && rds[1].numRows() > 0) {
+                this.trained_gbEnsemble = gb2.warmStart(parent_gbEnsemble, rds[0], rds[1], targetRMSE, random);
+                LocalRegressionMetrics metrics = new LocalRegressionMetrics(trained_gbEnsemble, rds[1]);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+                logModelResults();
+                FancyLogger.write_out(FancyLogger.fancy_logging("LOCAL WARM START ADDED "
+                        + (trained_gbEnsemble.numTrees() - parent_gbEnsemble.numTrees()) + " ROUNDS IN "
+                        + calc_interval(startTime_overall) + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2), filename);
+                return true;
+            }
+        }
+        double trainFraction = 0.15;
+        String fullSummary = "";
+
+        // Nested training samples over a fixed test split
+        LocalDataset[] split = data.randomSplit(trainSplit, random);
+        double[] sampleKeys = split[0].sampleKeys(random);
+        LearningCurve learningCurve = new LearningCurve();
+
+        boolean converged;
+        while (true) {
+            LocalDataset trainSample = split[0].sample(sampleKeys, trainFraction);
+            boolean evaluated = trainSample.numRows() > 0 && split[1].numRows() > 0;
+            if (evaluated) {
+                TreeEnsemble gb2Model_iter = gb2.fit(trainSample, random);
+                this.trained_gbEnsemble = gb2Model_iter;
+                LocalRegressionMetrics metrics = new LocalRegressionMetrics(gb2Model_iter, split[1]);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+                logModelResults();
+                learningCurve.add(trainFraction, rmse);
+            }
+
+            trainFraction = trainFraction * 2;
+
+            if (evaluated && this.rmse < targetRMSE) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY ACHIEVED... EVALUATION TIME"+targetRMSE+" "+this.rmse) + "\n";
+                converged = true;
+                break;
+            } else if (trainFraction > 0.9) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY NOT ACHIEVED... RAN OUT OF SAMPLES") + "\n";
+                converged = false;
+                break;
+            } else if (learningCurve.unreachable(targetRMSE, 1.0)) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY OUT OF REACH... EXTRAPOLATED RMSE "
+                        + learningCurve.extrapolate(1.0)) + "\n";
+                converged = false;
+                break;
+            }
+        }
+
+        // No round had both training and test rows, so there is no model and nothing to report
+        if (this.trained_gbEnsemble == null) {
+            log.info("GISJoin {} has too few rows for a training sample and a test split", gisJoin);
+            FancyLogger.write_out(fullSummary, filename);
+            return false;
+        }
+
+        fullSummary += FancyLogger.fancy_logging("OVERALL LOCAL CONVERGENCE TIME " + (converged ? "" : "XXX ")
+                + calc_interval(startTime_overall) + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
+        FancyLogger.write_out(fullSummary, filename);
+        return true;
+    }
+
     private void addClusterDependencyJars(JavaSparkContext sparkContext) {
         String[] jarPaths = {
                 "build/libs/mongo-spark-connector_2.12-3.0.1.jar",
@@ -0,0 +1,75 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * GBoostEarlyStopping.java -
+ *      Stops adding gradient-boosted trees once the loss on a held-out validation subset of the
+ *      training data plateaus, instead of always running maxIter boosting rounds.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.spark.ml.regression.GBTRegressor;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.sustain.GBoostRegressionRequest;
+import org.sustain.modeling.local.TreeEnsembleParams;
+
+import static org.apache.spark.sql.functions.rand;
+
+/**
+ * Uses Spark's validation indicator column: a random share of the training rows is flagged in VALIDATION_COL,
+ * and the GBTRegressor fits its trees on the other rows while evaluating the loss on the flagged ones after every
+ * round. Boosting stops once a round improves the validation loss by less than validationTol times the loss, and
+ * the model keeps the trees up to the best validation loss, so its getNumTrees() is the iteration count used.
+ * The flags have to be persisted with the training data, so cross-validation folds see the same flags.
+ */
+public class GBoostEarlyStopping {
+
+    public static final String VALIDATION_COL = "isValidation";
+    public static final double DEFAULT_VALIDATION_FRACTION = 0.2;
+    public static final double DEFAULT_VALIDATION_TOL = 0.01;
+
+    private final double validationFraction, validationTol;
+
+    public GBoostEarlyStopping(double validationFraction, double validationTol) {
+        this.validationFraction = validationFraction;
+        this.validationTol = validationTol;
+    }
+
+    /**
+     * @return The request's early stopping settings, unset ones replaced by the defaults; null if the request
+     * doesn't enable early stopping.
+     */
+    public static GBoostEarlyStopping of(GBoostRegressionRequest request) {
+        if (!request.getEarlyStopping()) {
+            return null;
+        }
+        double validationFraction = request.getValidationFraction() > 0 && request.getValidationFraction() < 1
+                ? request.getValidationFraction() : DEFAULT_VALIDATION_FRACTION;
+        double validationTol = request.getValidationTol() > 0 ? request.getValidationTol() : DEFAULT_VALIDATION_TOL;
+        return new GBoostEarlyStopping(validationFraction, validationTol);
+    }
+
+    /**
+     * @return The training data with the validation indicator column; cache the result before fitting.
+     */
+    public Dataset<Row> markValidation(Dataset<Row> train) {
+        return train.withColumn(VALIDATION_COL, rand().lt(validationFraction));
+    }
+
+    public GBTRegressor configure(GBTRegressor gb) {
+        return gb.setValidationIndicatorCol(VALIDATION_COL).setValidationTol(validationTol);
+    }
+
+    public TreeEnsembleParams configure(TreeEnsembleParams params) {
+        params.validationFraction = validationFraction;
+        params.validationTol = validationTol;
+        return params;
+    }
+
+    public double getValidationFraction() {
+        return validationFraction;
+    }
+
+    public double getValidationTol() {
+        return validationTol;
+    }
+}
@@ -24,12 +24,12 @@
  * ======================================================== */
 package org.sustain.modeling;
 
-import com.mongodb.spark.MongoSpark;
 import com.mongodb.spark.config.ReadConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.param.ParamMap;
 import org.apache.spark.ml.regression.GBTRegressionModel;
 import org.apache.spark.ml.regression.GBTRegressor;
 import org.apache.spark.mllib.evaluation.RegressionMetrics;
@@ -40,6 +40,7 @@ import scala.collection.Seq;
 
 import org.sustain.SparkManager;
 import org.sustain.SparkTask;
+import org.sustain.mongodb.PushdownPipeline;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,6 +89,8 @@ public class GBoostIncremental implements SparkTask<Boolean> {
     //maxBins - Maximum number of bins used for splitting features. (suggested value: 100)
     private Integer maxBins = null;
     private Double trainSplit = 0.9d;
+    // Continue boosting the first GISJoin's trees for the others, instead of retraining from scratch
+    private boolean warmStart = false;
 
     String queryField = "gis_join";
     //String queryField = "countyName";
@@ -155,6 +158,10 @@ public class GBoostIncremental implements SparkTask<Boolean> {
         this.trainSplit = trainSplit;
     }
 
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
     public GBoostIncremental(String mongoUri, String database, String collection, String gisJoin) {
         log.info("Gradient Boosting constructor invoked");
         setMongoUri(mongoUri);
@@ -295,6 +302,12 @@ public class GBoostIncremental implements SparkTask<Boolean> {
      */
     @Override
     public Boolean execute(JavaSparkContext sparkContext) {
+        try (CacheScope scope = CacheScope.open("GB incremental " + gisJoin)) {
+            return execute(sparkContext, scope);
+        }
+    }
+
+    private Boolean execute(JavaSparkContext sparkContext, CacheScope scope) {
 
         String fullSummary = "";
 
@@ -313,7 +326,11 @@ public class GBoostIncremental implements SparkTask<Boolean> {
 
         ReadConfig readConfig = ReadConfig.create(sparkContext.getConf(), readOverrides);
 
-        Dataset<Row> collection = MongoSpark.load(sparkContext, readConfig).toDF();
+        // Only load the documents and columns of the GISJoins we model
+        List<String> columns = new ArrayList<>(Arrays.asList(this.features));
+        columns.add(this.label);
+        Dataset<Row> collection = PushdownPipeline.load(sparkContext, readConfig, queryField,
+                Arrays.asList(gisTokens), columns);
 
         // Select just the columns we want, discard the rest
         Dataset<Row> selected = collection.select("_id", desiredColumns());
@@ -335,7 +352,7 @@ public class GBoostIncremental implements SparkTask<Boolean> {
         // PREPARING DATASET1
         Dataset<Row> mergedDataset = vectorAssembler.transform(gisDataset1);
         Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit , 1.0d - trainSplit});
-        Dataset<Row> trainrdd = rds[0].cache();
+        Dataset<Row> trainrdd = scope.cache(rds[0]);
         Dataset<Row> testrdd = rds[1];
 
         fancy_logging("Data Manipulation completed in "+calc_interval(startTime)+" secs\nData Size: "+gisDataset1.count());
@@ -348,16 +365,18 @@ public class GBoostIncremental implements SparkTask<Boolean> {
         // POPULATING USER PARAMETERS
         ingestParameters(gb);
         GBTRegressionModel gbModel = gb.fit(trainrdd);
+        scope.release(trainrdd);
         fullSummary += fancy_logging("Model Training for PHASE 1 completed in "+calc_interval(startTime))+"\n";
 
         startTime = System.currentTimeMillis();
-        Dataset<Row> pred_pair = gbModel.transform(testrdd).select("label", "prediction").cache();
+        Dataset<Row> pred_pair = scope.cache(gbModel.transform(testrdd).select("label", "prediction"));
 
         RegressionMetrics metrics = new RegressionMetrics(pred_pair);
         this.rmse = metrics.rootMeanSquaredError();
 
         double target_rmse = this.rmse;
         this.r2 = metrics.r2();
+        scope.release(pred_pair);
 
         fullSummary += fancy_logging("Model Testing/Loss Computation for PHASE 1 completed in "+calc_interval(startTime)
                 +"\nEVALUATIONS: RMSE, R2: "+rmse+" "+r2) + "\n";
@@ -378,19 +397,34 @@ public class GBoostIncremental implements SparkTask<Boolean> {
             // PREPARING DATASET2
             Dataset<Row> gisDataset2 = selected.filter(selected.col(queryField).equalTo(gisJoin2))
                     .withColumnRenamed(this.label, "label"); // Rename the chosen label column to "label"
-            Dataset<Row> mergedDataset_transfer = vectorAssembler.transform(gisDataset2).cache();
+            Dataset<Row> mergedDataset_transfer = scope.cache(vectorAssembler.transform(gisDataset2));
+
+            if (warmStart) {
+                startTime = System.currentTimeMillis();
+                Dataset<Row>[] rds_transfer = mergedDataset_transfer.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
+                GBoostWarmStart warmStarted = new GBoostWarmStart().fit(gbModel, gb, rds_transfer[0], rds_transfer[1],
+                        target_rmse);
+                this.rmse = warmStarted.getRmse();
+                this.r2 = warmStarted.getR2();
+                fullSummary += fancy_logging("Warm start added " + warmStarted.getRounds() + " rounds in "
+                        + calc_interval(startTime) + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
+                logModelResults();
+                scope.release(mergedDataset_transfer);
+                continue;
+            }
 
             // COPYING PARAMETERS FROM PRE_TRAINED MODEL
-            GBTRegressor gb2 = new GBTRegressor().setFeaturesCol("features").setLabelCol("label");
-            gb2.copy(gbModel.paramMap());
+            GBTRegressor gb2 = gb.copy(new ParamMap());
+
+            // Nested training samples over a fixed test split
+            NestedSampler sampler = new NestedSampler(scope, mergedDataset_transfer, trainSplit);
+            Dataset<Row> testrdd_transfer = sampler.test();
+            LearningCurve learningCurve = new LearningCurve();
 
             int iter = 0;
             while (true) {
                 startTime = System.currentTimeMillis();
-                Dataset<Row> workingDataset = mergedDataset_transfer.sample(trainFraction);
-                Dataset<Row>[] rds_transfer = workingDataset.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
-                Dataset<Row> trainrdd_transfer = rds_transfer[0].cache();
-                Dataset<Row> testrdd_transfer = rds_transfer[1];
+                Dataset<Row> trainrdd_transfer = sampler.sample(trainFraction);
                 fancy_logging("Model Data Split completed in " + calc_interval(startTime));
 
                 /* TRAIN PHASE */
@@ -400,10 +434,13 @@ public class GBoostIncremental implements SparkTask<Boolean> {
 
                 /* TEST/EVALUATION PHASE */
                 startTime = System.currentTimeMillis();
-                pred_pair = gb2Model_iter.transform(testrdd_transfer).select("label", "prediction").cache();
-                metrics = new RegressionMetrics(pred_pair);
-                this.rmse = metrics.rootMeanSquaredError();
-                this.r2 = metrics.r2();
+                try (CacheScope round = CacheScope.open("round " + iter)) {
+                    pred_pair = round.cache(gb2Model_iter.transform(testrdd_transfer).select("label", "prediction"));
+                    metrics = new RegressionMetrics(pred_pair);
+                    this.rmse = metrics.rootMeanSquaredError();
+                    this.r2 = metrics.r2();
+                }
+                learningCurve.add(trainFraction, rmse);
 
                 fullSummary += fancy_logging("Model Training+Testing+Loss Computation Round " + iter + " completed in " + calc_interval(startTime)
                         + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
@@ -417,17 +454,21 @@ public class GBoostIncremental implements SparkTask<Boolean> {
                     break;
                 } else if (trainFraction > 0.9) {
                     fullSummary += fancy_logging("DESIRED ACCURACY NOT ACHIEVED... RAN OUT OF SAMPLES") + "\n";
+                    break;
+                } else if (learningCurve.unreachable(target_rmse, 1.0)) {
+                    fullSummary += fancy_logging("DESIRED ACCURACY OUT OF REACH... EXTRAPOLATED RMSE "
+                            + learningCurve.extrapolate(1.0)) + "\n";
+                    break;
                 } else {
                     fullSummary += fancy_logging("DESIRED ACCURACY NOT ACHIEVED " + this.rmse + " ...RETRAINING") + "\n";
 
                 }
 
-                // COPYING OVER PARAMETERS FROM PREVIOUS ITERATION
-                GBTRegressor gb2_tmp = new GBTRegressor().setFeaturesCol("features").setLabelCol("label");
-                gb2_tmp.copy(gb2Model_iter.paramMap());
-                gb2 = gb2_tmp;
+                // The next round reuses gb2, which keeps the first GISJoin's parameters
                 iter++;
             }
+            sampler.release();
+            scope.release(mergedDataset_transfer);
         }
 
         log.info(fullSummary);
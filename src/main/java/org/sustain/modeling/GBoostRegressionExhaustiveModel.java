@@ -42,6 +42,13 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.storage.StorageLevel;
+import org.sustain.HyperparameterSearch;
+import org.sustain.modeling.local.LocalCrossValidator;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalGradientBoostedTrees;
+import org.sustain.modeling.local.LocalRegressionMetrics;
+import org.sustain.modeling.local.TreeEnsemble;
+import org.sustain.modeling.local.TreeEnsembleParams;
 import org.sustain.util.Constants;
 import org.sustain.util.FancyLogger;
 import scala.collection.JavaConverters;
@@ -51,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 // PERFORMS EXHAUSTIVE TRAINING OVER A SET OF PARAMETERS
 /**
@@ -93,11 +101,22 @@ public class GBoostRegressionExhaustiveModel {
     //maxBins - Maximum number of bins used for splitting features. (suggested value: 100)
     private Integer maxBins = null;
     private Double trainSplit = 0.8d;
+    // Stops boosting once the loss on a validation subset of the training data plateaus, null to run every round
+    private GBoostEarlyStopping earlyStopping = null;
+
+    // Parameter grid and search strategy
+    private HyperparameterSearch hyperparameterSearch = HyperparameterSearch.getDefaultInstance();
+    // Names of the parameters the grid search selects
+    public static final String[] GRID_PARAMS = {"maxBins", "maxDepth", "maxIter"};
+    // Parameters a previous grid search selected for this cluster, null to search the grid
+    private HyperparameterRegistry.Entry tunedParameters = null;
 
     private GBTRegressor trained_gb;
 
     private GBTRegressionModel trained_gbModel;
 
+    private TreeEnsemble trained_gbEnsemble;
+
     String queryField = "gis_join";
     //String queryField = "countyName";
 
@@ -112,6 +131,62 @@ public class GBoostRegressionExhaustiveModel {
         return trained_gbModel;
     }
 
+    /**
+     * @return The model trained by trainLocally(), or null if the model was trained on Spark.
+     */
+    public TreeEnsemble getTrained_gbEnsemble() {
+        return trained_gbEnsemble;
+    }
+
+    /**
+     * @return The estimator configured with the selected parameters, which child models are trained with.
+     */
+    public GBTRegressor getBestEstimator() {
+        return trained_gbModel != null && trained_gbModel.parent() != null
+                ? (GBTRegressor) trained_gbModel.parent() : trained_gb;
+    }
+
+    /**
+     * Restores a model stored by an identical earlier request instead of training one.
+     */
+    public void restore(GBTRegressionModel storedModel, double rmse, double r2) {
+        this.trained_gbModel = storedModel;
+        this.trained_gb = ModelStore.estimatorOf(storedModel, new GBTRegressor());
+        this.trained_gbEnsemble = null;
+        this.rmse = rmse;
+        this.r2 = r2;
+    }
+
+    /**
+     * Restores a locally trained model stored by an identical earlier request instead of training one.
+     * @param storedModel A local model stored with the parameters it was trained with.
+     */
+    public void restore(ModelStore.LocalModel storedModel, double rmse, double r2) {
+        this.trained_gbModel = null;
+        this.trained_gb = storedModel.getParams().toGBTRegressor();
+        this.trained_gbEnsemble = storedModel.getEnsemble();
+        this.rmse = rmse;
+        this.r2 = r2;
+    }
+
+    /**
+     * @return The model trained by trainLocally() and its parameters, or null if the model was trained on Spark.
+     */
+    public ModelStore.LocalModel getLocalModel() {
+        return trained_gbEnsemble != null
+                ? new ModelStore.LocalModel(trained_gbEnsemble, TreeEnsembleParams.of(trained_gb)) : null;
+    }
+
+    /**
+     * @return Number of boosting iterations in the trained model, fewer than maxIter if early stopping kicked in.
+     */
+    public int getIterationsUsed() {
+        if (trained_gbModel != null) {
+            return trained_gbModel.getNumTrees();
+        }
+        return trained_gbEnsemble != null ? trained_gbEnsemble.numTrees() : 0;
+    }
+
     public Dataset<Row> getMongoCollection() {
         return mongoCollection;
     }
@@ -180,6 +255,10 @@ public class GBoostRegressionExhaustiveModel {
         this.trainSplit = trainSplit;
     }
 
+    public void setEarlyStopping(GBoostEarlyStopping earlyStopping) {
+        this.earlyStopping = earlyStopping;
+    }
+
     public GBoostRegressionExhaustiveModel(String mongoUri, String database, String collection, String gisJoin) {
         log.info("Gradient Boosting constructor invoked");
         setMongoUri(mongoUri);
@@ -285,6 +364,17 @@ public class GBoostRegressionExhaustiveModel {
         this.maxBins = maxBins;
     }
 
+    public void setHyperparameterSearch(HyperparameterSearch hyperparameterSearch) {
+        this.hyperparameterSearch = hyperparameterSearch;
+    }
+
+    /**
+     * Sets the parameters a previous grid search selected, which are trained with once instead of searching the grid.
+     */
+    public void setTunedParameters(HyperparameterRegistry.Entry tunedParameters) {
+        this.tunedParameters = tunedParameters;
+    }
+
     private Seq<String> desiredColumns() {
         List<String> cols = new ArrayList<>();
         cols.add(queryField);
@@ -320,6 +410,12 @@ public class GBoostRegressionExhaustiveModel {
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("GB exhaustive " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
 
@@ -352,7 +448,8 @@ public class GBoostRegressionExhaustiveModel {
 
 
         Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit , 1.0d - trainSplit});
-        Dataset<Row> trainrdd = rds[0].persist(StorageLevel.MEMORY_ONLY());
+        Dataset<Row> trainrdd = scope.persist(earlyStopping != null ? earlyStopping.markValidation(rds[0]) : rds[0],
+                StorageLevel.MEMORY_ONLY());
         Dataset<Row> testrdd = rds[1];
 
         msg = "Data Manipulation completed in "+calc_interval(startTime)+" secs"/*+"\nData Size: "+gisDataset.count()*/;
@@ -365,15 +462,18 @@ public class GBoostRegressionExhaustiveModel {
 
         // POPULATING USER PARAMETERS
         ingestParameters(gb);
+        if (earlyStopping != null) {
+            earlyStopping.configure(gb);
+        }
 
 
         // We use a ParamGridBuilder to construct a grid of parameters to search over.
         // With 3 values for tolerance, 3 values for regularization param, and 3 values for epsilon,
         // this grid will have 3 x 4 x 3 = 36 parameter settings for CrossValidator to choose from.
         ParamMap[] paramGrid = new ParamGridBuilder()
-                .addGrid(gb.maxBins(), new int[]{32, 50, 100})
-                .addGrid(gb.maxDepth(), new int[]{3, 4, 5})
-                .addGrid(gb.maxIter(), new int[]{10, 15, 20})
+                .addGrid(gb.maxBins(), maxBinsGrid())
+                .addGrid(gb.maxDepth(), maxDepthGrid())
+                .addGrid(gb.maxIter(), maxIterGrid())
                 .build();
 
         // Establish a Regression Evaluator for RMSE
@@ -384,35 +484,107 @@ public class GBoostRegressionExhaustiveModel {
         // A CrossValidator requires an Estimator, a set of Estimator ParamMaps, and an Evaluator.
         // Note that the evaluator here is a BinaryClassificationEvaluator and its default metric
         // is areaUnderROC.
-        CrossValidator crossValidator = new CrossValidator()
-                .setEstimator(gb)
-                .setEvaluator(evaluator)
-                .setEstimatorParamMaps(paramGrid)
-                .setNumFolds(3)     // Use 3+ in practice
-                .setParallelism(2);
-
-        CrossValidatorModel crossValidatorModel = crossValidator.fit(trainrdd);
-        GBTRegressionModel bestGBModel = (GBTRegressionModel) crossValidatorModel.bestModel();
+        GBTRegressionModel bestGBModel;
+        if (tunedParameters != null) {
+            bestGBModel = tunedParameters.applyTo(gb).fit(trainrdd);
+        } else if (SuccessiveHalving.isSelected(hyperparameterSearch)) {
+            bestGBModel = SuccessiveHalving.of(hyperparameterSearch).fit(gb, paramGrid, trainrdd, evaluator);
+        } else {
+            CrossValidator crossValidator = new CrossValidator()
+                    .setEstimator(gb)
+                    .setEvaluator(evaluator)
+                    .setEstimatorParamMaps(paramGrid)
+                    .setNumFolds(3)     // Use 3+ in practice
+                    .setParallelism(2);
+
+            CrossValidatorModel crossValidatorModel = crossValidator.fit(trainrdd);
+            bestGBModel = (GBTRegressionModel) crossValidatorModel.bestModel();
+        }
 
-        msg = "Exhaustive Model Training For "+gisJoin+" completed in "+calc_interval(startTime);
+        msg = "Exhaustive Model Training For "+gisJoin+(tunedParameters != null ? " With Stored Parameters" : "")+" completed in "+calc_interval(startTime);
         //fancy_logging(msg);
         FancyLogger.write_out(fancy_logging(msg), filename);
 
         startTime = System.currentTimeMillis();
 
-        Dataset<Row> pred_pair = bestGBModel.transform(testrdd).select("label", "prediction").cache();
+        Dataset<Row> pred_pair = scope.cache(bestGBModel.transform(testrdd).select("label", "prediction"));
 
         RegressionMetrics metrics = new RegressionMetrics(pred_pair);
 
         this.rmse = metrics.rootMeanSquaredError();
         //this.r2 = metrics.r2();
-        msg = "Model Testing/Loss Computation For "+gisJoin+" completed in "+calc_interval(startTime)+"\nEVALUATIONS: RMSE, R2: "+rmse+" "+r2;
+        msg = "Model Testing/Loss Computation For "+gisJoin+" completed in "+calc_interval(startTime)+"\nEVALUATIONS: RMSE, R2: "+rmse+" "+r2
+                +"\nBOOSTING ITERATIONS USED: "+bestGBModel.getNumTrees();
         //fancy_logging(msg);
         FancyLogger.write_out(fancy_logging(msg), filename);
 
         logModelResults();
         this.trained_gb = gb;
         this.trained_gbModel = bestGBModel;
+        this.trained_gbEnsemble = null;
+        return true;
+    }
+
+    /**
+     * Trains the model in-process on data loaded through the MongoDB driver, with the same train/test split,
+     * parameter grid and search strategy as train(). Used for GISJoins too small to be worth Spark jobs.
+     */
+    public Boolean trainLocally(LocalDataset data) {
+        double startTime = System.currentTimeMillis();
+        FancyLogger.write_out(fancy_logging("Initiating Local Gradient Boost Modelling..."), filename);
+
+        if (data.numRows() == 0) {
+            log.info("Dataset for GISJoin {} is empty!", gisJoin);
+            return false;
+        }
+
+        Random random = new Random();
+        LocalDataset[] split = data.randomSplit(trainSplit, random);
+
+        GBTRegressor gb = new GBTRegressor().setFeaturesCol("features").setLabelCol("label");
+        ingestParameters(gb);
+        TreeEnsembleParams base = TreeEnsembleParams.of(gb);
+        if (earlyStopping != null) {
+            earlyStopping.configure(base);
+        }
+
+        List<TreeEnsembleParams> paramGrid = new ArrayList<>();
+        for (int maxBins: maxBinsGrid()) {
+            for (int maxDepth: maxDepthGrid()) {
+                for (int maxIter: maxIterGrid()) {
+                    TreeEnsembleParams params = base.copy();
+                    params.maxBins = maxBins;
+                    params.maxDepth = maxDepth;
+                    params.maxIter = maxIter;
+                    paramGrid.add(params);
+                }
+            }
+        }
+
+        TreeEnsembleParams bestParams;
+        if (tunedParameters != null) {
+            bestParams = TreeEnsembleParams.of(tunedParameters.applyTo(gb));
+            if (earlyStopping != null) {
+                earlyStopping.configure(bestParams);
+            }
+        } else if (SuccessiveHalving.isSelected(hyperparameterSearch)) {
+            bestParams = SuccessiveHalving.of(hyperparameterSearch).selectBest(paramGrid, LocalGradientBoostedTrees::new,
+                    split[0], random);
+        } else {
+            bestParams = LocalCrossValidator.selectBest(paramGrid, LocalGradientBoostedTrees::new, split[0], 3, random);
+        }
+        TreeEnsemble bestModel = new LocalGradientBoostedTrees(bestParams).fit(split[0], random);
+
+        FancyLogger.write_out(fancy_logging("Local Exhaustive Model Training For "+gisJoin+(tunedParameters != null ? " With Stored Parameters" : "")+" completed in "+calc_interval(startTime)), filename);
+
+        LocalRegressionMetrics metrics = new LocalRegressionMetrics(bestModel, split[1]);
+        this.rmse = metrics.rootMeanSquaredError();
+        this.r2 = metrics.r2();
+
+        logModelResults();
+        this.trained_gb = bestParams.toGBTRegressor();
+        this.trained_gbModel = null;
+        this.trained_gbEnsemble = bestModel;
         return true;
     }
 
@@ -433,6 +605,18 @@ public class GBoostRegressionExhaustiveModel {
         }
     }
 
+    private int[] maxBinsGrid() {
+        return SuccessiveHalving.intGrid(hyperparameterSearch.getMaxBinsList(), 32, 50, 100);
+    }
+
+    private int[] maxDepthGrid() {
+        return SuccessiveHalving.intGrid(hyperparameterSearch.getMaxDepthList(), 3, 4, 5);
+    }
+
+    private int[] maxIterGrid() {
+        return SuccessiveHalving.intGrid(hyperparameterSearch.getMaxIterList(), 10, 15, 20);
+    }
+
     /**
      * Injecting user-defined parameters into model
      * @param gb - Gradient Boosting Regression model Object
@@ -90,6 +90,8 @@ public class GBoostRegressionModel{
     //maxBins - Maximum number of bins used for splitting features. (suggested value: 100)
     private Integer maxBins = null;
     private Double trainSplit = 0.8d;
+    // Stops boosting once the loss on a validation subset of the training data plateaus, null to run every round
+    private GBoostEarlyStopping earlyStopping = null;
 
     private GBTRegressor trained_gb;
 
@@ -109,6 +111,13 @@ public class GBoostRegressionModel{
         return trained_gbModel;
     }
 
+    /**
+     * @return Number of boosting iterations in the trained model, fewer than maxIter if early stopping kicked in.
+     */
+    public int getIterationsUsed() {
+        return trained_gbModel != null ? trained_gbModel.getNumTrees() : 0;
+    }
+
     public Dataset<Row> getMongoCollection() {
         return mongoCollection;
     }
@@ -177,6 +186,10 @@ public class GBoostRegressionModel{
         this.trainSplit = trainSplit;
     }
 
+    public void setEarlyStopping(GBoostEarlyStopping earlyStopping) {
+        this.earlyStopping = earlyStopping;
+    }
+
     public GBoostRegressionModel(String mongoUri, String database, String collection, String gisJoin) {
         log.info("Gradient Boosting constructor invoked");
         setMongoUri(mongoUri);
@@ -315,6 +328,12 @@ public class GBoostRegressionModel{
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("GB " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
 
@@ -341,7 +360,8 @@ public class GBoostRegressionModel{
 
 
         Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit , 1.0d - trainSplit});
-        Dataset<Row> trainrdd = rds[0].persist(StorageLevel.MEMORY_ONLY());
+        Dataset<Row> trainrdd = scope.persist(earlyStopping != null ? earlyStopping.markValidation(rds[0]) : rds[0],
+                StorageLevel.MEMORY_ONLY());
         Dataset<Row> testrdd = rds[1];
 
         fancy_logging("Data Manipulation completed in "+calc_interval(startTime)+" secs"/*+"\nData Size: "+gisDataset.count()*/);
@@ -351,13 +371,16 @@ public class GBoostRegressionModel{
 
         // POPULATING USER PARAMETERS
         ingestParameters(gb);
+        if (earlyStopping != null) {
+            earlyStopping.configure(gb);
+        }
 
         GBTRegressionModel gbModel = gb.fit(trainrdd);
 
-        fancy_logging("Model Training completed in "+calc_interval(startTime));
+        fancy_logging("Model Training completed in "+calc_interval(startTime)+"\nBoosting iterations used: "+gbModel.getNumTrees());
         startTime = System.currentTimeMillis();
 
-        Dataset<Row> pred_pair = gbModel.transform(testrdd).select("label", "prediction").cache();
+        Dataset<Row> pred_pair = scope.cache(gbModel.transform(testrdd).select("label", "prediction"));
 
         RegressionMetrics metrics = new RegressionMetrics(pred_pair);
 
@@ -0,0 +1,153 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * GBoostWarmStart.java -
+ *      Continues boosting a trained parent GBTRegressionModel on a child GISJoin's data,
+ *      instead of training the child's ensemble from scratch.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.ml.evaluation.RegressionEvaluator;
+import org.apache.spark.ml.param.ParamMap;
+import org.apache.spark.ml.regression.DecisionTreeRegressionModel;
+import org.apache.spark.ml.regression.DecisionTreeRegressor;
+import org.apache.spark.ml.regression.GBTRegressionModel;
+import org.apache.spark.ml.regression.GBTRegressor;
+import org.apache.spark.ml.util.Identifiable;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.when;
+
+/**
+ * The child ensemble starts as the parent's trees and weights. Every additional round fits one regression tree
+ * to the negative gradient of the loss at the current ensemble's predictions, as Spark's GradientBoostedTrees
+ * does, and appends it with weight stepSize. Boosting stops as soon as the ensemble's RMSE on the held-out
+ * split drops below the target, so a child whose data looks like its parent's costs few or no rounds.
+ */
+public class GBoostWarmStart {
+
+    protected static final Logger log = LogManager.getLogger(GBoostWarmStart.class);
+
+    private static final String ENSEMBLE_PREDICTION = "ensemblePrediction";
+    private static final String TREE_PREDICTION = "treePrediction";
+    private static final String TARGET = "boostingTarget";
+
+    private GBTRegressionModel model;
+    private double rmse, r2;
+    private int rounds;
+
+    /**
+     * @param parentModel The parent's trained model.
+     * @param parameters The parent's estimator; its tree parameters, loss, stepSize and subsamplingRate are
+     *                   used for the additional rounds, and maxIter bounds their number.
+     * @param train Child training data with "features" and "label" columns.
+     * @param test Child held-out data with "features" and "label" columns.
+     * @param targetRmse RMSE on the held-out data at which boosting stops.
+     */
+    public GBoostWarmStart fit(GBTRegressionModel parentModel, GBTRegressor parameters, Dataset<Row> train,
+                               Dataset<Row> test, double targetRmse) {
+        boolean absolute = "absolute".equalsIgnoreCase(parameters.getLossType());
+        double stepSize = parameters.getStepSize();
+
+        DecisionTreeRegressor treeLearner = new DecisionTreeRegressor()
+                .setFeaturesCol("features")
+                .setLabelCol(TARGET)
+                .setPredictionCol(TREE_PREDICTION)
+                .setMaxDepth(parameters.getMaxDepth())
+                .setMaxBins(parameters.getMaxBins())
+                .setMinInstancesPerNode(parameters.getMinInstancesPerNode())
+                .setMinInfoGain(parameters.getMinInfoGain())
+                .setMinWeightFractionPerNode(parameters.getMinWeightFractionPerNode());
+
+        List<DecisionTreeRegressionModel> trees = new ArrayList<>(Arrays.asList(parentModel.trees()));
+        List<Double> treeWeights = new ArrayList<>();
+        for (double weight: parentModel.treeWeights()) {
+            treeWeights.add(weight);
+        }
+
+        // Start from the parent ensemble's predictions; the parent is shared by its children, so it's copied
+        GBTRegressionModel initialModel = parentModel.copy(new ParamMap()).setPredictionCol(ENSEMBLE_PREDICTION);
+        try (CacheScope scope = CacheScope.open("warm start")) {
+            Dataset<Row> trainPredictions = scope.cache(initialModel.transform(train));
+            Dataset<Row> testPredictions = scope.cache(initialModel.transform(test));
+            evaluate(testPredictions);
+            log.info("Parent model RMSE on child data: {}, target: {}", rmse, targetRmse);
+
+            for (rounds = 0; rmse >= targetRmse && rounds < parameters.getMaxIter(); rounds++) {
+                Column residual = col("label").minus(col(ENSEMBLE_PREDICTION));
+                Dataset<Row> targets = trainPredictions.withColumn(TARGET, absolute
+                        ? when(residual.lt(0.0), lit(-1.0)).otherwise(lit(1.0))
+                        : residual.multiply(2.0));
+                if (parameters.getSubsamplingRate() < 1.0) {
+                    targets = targets.sample(parameters.getSubsamplingRate());
+                }
+
+                DecisionTreeRegressionModel tree = treeLearner.fit(targets);
+                trees.add(tree);
+                treeWeights.add(stepSize);
+
+                Dataset<Row> previousTrain = trainPredictions, previousTest = testPredictions;
+                trainPredictions = scope.cache(addTree(trainPredictions, tree, stepSize));
+                testPredictions = scope.cache(addTree(testPredictions, tree, stepSize));
+                // Materialize both caches while their parents are still cached, so a round never recomputes
+                // the chain of trees added before it
+                trainPredictions.count();
+                evaluate(testPredictions);
+                scope.release(previousTrain);
+                scope.release(previousTest);
+                log.info("Warm-start boosting round {}: RMSE {}", rounds + 1, rmse);
+            }
+        }
+
+        double[] weights = new double[treeWeights.size()];
+        for (int t = 0; t < weights.length; t++) {
+            weights[t] = treeWeights.get(t);
+        }
+        this.model = new GBTRegressionModel(Identifiable.randomUID("gbtr"),
+                trees.toArray(new DecisionTreeRegressionModel[0]), weights, parentModel.numFeatures());
+        return this;
+    }
+
+    private static Dataset<Row> addTree(Dataset<Row> predictions, DecisionTreeRegressionModel tree, double weight) {
+        return tree.transform(predictions)
+                .withColumn(ENSEMBLE_PREDICTION, col(ENSEMBLE_PREDICTION).plus(col(TREE_PREDICTION).multiply(weight)))
+                .drop(TREE_PREDICTION);
+    }
+
+    private void evaluate(Dataset<Row> predictions) {
+        RegressionEvaluator evaluator = new RegressionEvaluator().setPredictionCol(ENSEMBLE_PREDICTION);
+        this.rmse = evaluator.setMetricName("rmse").evaluate(predictions);
+        this.r2 = evaluator.setMetricName("r2").evaluate(predictions);
+    }
+
+    /**
+     * @return The parent's trees followed by the additional rounds' trees.
+     */
+    public GBTRegressionModel getModel() {
+        return model;
+    }
+
+    public double getRmse() {
+        return rmse;
+    }
+
+    public double getR2() {
+        return r2;
+    }
+
+    /**
+     * @return Number of boosting rounds added to the parent's trees.
+     */
+    public int getRounds() {
+        return rounds;
+    }
+}
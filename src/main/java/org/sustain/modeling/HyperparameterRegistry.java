@@ -0,0 +1,151 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * HyperparameterRegistry.java -
+ *      Remembers the hyperparameters a grid search selected for a county cluster, so later requests
+ *      for the same cluster train once with them instead of searching the grid again.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.ml.param.ParamMap;
+import org.apache.spark.ml.param.Params;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Entries are keyed by model type, collection, label, feature set, cluster id (the cluster's parent GISJoin) and the
+ * request's hyperparameter search, so a request searching another grid or with another strategy searches its own grid
+ * instead of reusing values that may not be in it. Entries hold the values of the grid-searched parameters only, so the
+ * other parameters of a later request still apply. An entry older than the TTL is still used, but the first lookup
+ * after it went stale asks the caller to revalidate it with a full grid search in the background; until that search
+ * put()s a fresh entry, later lookups don't ask again.
+ * <p>
+ * The TTL can be overridden with the HYPERPARAMETER_TTL_MINUTES environment variable.
+ */
+public class HyperparameterRegistry {
+
+    private static final Logger log = LogManager.getLogger(HyperparameterRegistry.class);
+
+    private static final HyperparameterRegistry instance = new HyperparameterRegistry(60_000L * Long.parseLong(
+            System.getenv().getOrDefault("HYPERPARAMETER_TTL_MINUTES", "1440")));
+
+    private final long               ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public HyperparameterRegistry(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static HyperparameterRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param modelType Type of the model, e.g. "RF" or "GB".
+     * @param clusterId The cluster's parent GISJoin.
+     * @param search The request's HyperparameterSearch: the grid values and the search strategy.
+     * @return The registry key; the order of the features doesn't matter.
+     */
+    public static String key(String modelType, String collection, String label, List<String> features,
+                             String clusterId, MessageOrBuilder search) {
+        List<String> featureSet = new ArrayList<>(features);
+        Collections.sort(featureSet);
+        String canonicalSearch;
+        try {
+            canonicalSearch = JsonFormat.printer().omittingInsignificantWhitespace().print(search);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Unable to serialize hyperparameter search", e);
+        }
+        return String.join("|", modelType, collection, label, String.join(",", featureSet), clusterId,
+                canonicalSearch);
+    }
+
+    /**
+     * @return The stored parameters, stale or not, or null if none were stored for the key.
+     */
+    public Entry lookup(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores the parameters a grid search selected, replacing the previous entry of the key.
+     * @param bestEstimator The estimator configured with the selected parameters.
+     * @param paramNames Names of the grid-searched parameters.
+     * @param rmse RMSE of the model trained with them, for the logs.
+     */
+    public void put(String key, Params bestEstimator, String[] paramNames, double rmse) {
+        Map<String, Object> values = new HashMap<>();
+        for (String name: paramNames) {
+            values.put(name, bestEstimator.getOrDefault(bestEstimator.getParam(name)));
+        }
+        entries.put(key, new Entry(values, rmse, System.currentTimeMillis()));
+        log.info("Stored hyperparameters for {}: {}, RMSE {}", key, values, rmse);
+    }
+
+    /**
+     * @return true if the caller should revalidate the key's entry: it is older than the TTL and no other caller
+     * is revalidating it already.
+     */
+    public boolean startRefresh(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && System.currentTimeMillis() - entry.storedAt > ttlMillis
+                && entry.refreshing.compareAndSet(false, true);
+    }
+
+    /**
+     * Lets a later lookup revalidate the key's entry again, after a refresh failed.
+     */
+    public void refreshFailed(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    public static class Entry {
+        private final Map<String, Object> values;
+        private final double              rmse;
+        private final long                storedAt;
+        private final AtomicBoolean       refreshing = new AtomicBoolean();
+
+        private Entry(Map<String, Object> values, double rmse, long storedAt) {
+            this.values = values;
+            this.rmse = rmse;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * @return A copy of the estimator with the stored parameter values.
+         */
+        @SuppressWarnings("unchecked")
+        public <E extends Params> E applyTo(E estimator) {
+            ParamMap paramMap = new ParamMap();
+            for (Map.Entry<String, Object> value: values.entrySet()) {
+                paramMap.put(estimator.getParam(value.getKey()), value.getValue());
+            }
+            return (E) estimator.copy(paramMap);
+        }
+
+        public Map<String, Object> getValues() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        public double getRmse() {
+            return rmse;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+}
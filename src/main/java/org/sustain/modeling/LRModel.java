@@ -12,12 +12,17 @@ import com.mongodb.spark.MongoSpark;
 import com.mongodb.spark.config.ReadConfig;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.linalg.Vectors;
 import org.apache.spark.ml.regression.LinearRegression;
 import org.apache.spark.ml.regression.LinearRegressionModel;
 import org.apache.spark.ml.regression.LinearRegressionTrainingSummary;
+import org.apache.spark.ml.util.Identifiable;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.sustain.modeling.local.LinearRegressionFit;
+import org.sustain.modeling.local.LinearRegressionStatistics;
+import org.sustain.modeling.local.LocalDataset;
 import org.sustain.util.Constants;
 import org.sustain.util.Task;
 import scala.collection.JavaConverters;
@@ -43,6 +48,7 @@ public class LRModel {
     private Double           elasticNetParam, epsilon, regularizationParam, convergenceTolerance, rmse, r2, intercept;
     private List<Double>     coefficients, objectiveHistory;
     private Boolean          fitIntercept, setStandardization;
+    private LinearRegressionModel lrModel;
 
 
     /**
@@ -51,6 +57,13 @@ public class LRModel {
     private LRModel() {}
 
 
+    /**
+     * @return The trained Spark model; for local fits, a model built from the closed-form coefficients.
+     */
+    public LinearRegressionModel getLrModel() {
+        return lrModel;
+    }
+
     public String getGisJoin() {
         return gisJoin;
     }
@@ -79,6 +92,30 @@ public class LRModel {
         return totalIterations;
     }
 
+    public String getSolver() {
+        return solver;
+    }
+
+    public String getLoss() {
+        return loss;
+    }
+
+    public Double getElasticNetParam() {
+        return elasticNetParam;
+    }
+
+    public Double getRegularizationParam() {
+        return regularizationParam;
+    }
+
+    public Boolean getFitIntercept() {
+        return fitIntercept;
+    }
+
+    public Boolean getSetStandardization() {
+        return setStandardization;
+    }
+
     /**
      * Compiles a List<String> of column names we desire from the loaded collection, using the features String array.
      * @return A Scala Seq<String> of desired column names.
@@ -160,6 +197,7 @@ public class LRModel {
             this.objectiveHistory.add(d);
         }
 
+        this.lrModel = lrModel;
         this.intercept = lrModel.intercept();
         this.totalIterations = summary.totalIterations();
         this.rmse = summary.rootMeanSquaredError();
@@ -170,6 +208,51 @@ public class LRModel {
         return true;
     }
 
+    /**
+     * Trains a Linear Regression model for a single GISJoin in-process, on data loaded through the MongoDB driver,
+     * with the closed-form normal-equation solver. Only valid for the parameters GroupedLinearRegression supports.
+     */
+    public boolean trainLocally(LocalDataset data) {
+        log.info(">>> Building local model for GISJoin {}", this.gisJoin);
+        Task trainTask = new Task(String.format("LRModel trainLocally(%s)", this.gisJoin), 0);
+
+        if (data.numRows() == 0) {
+            log.info(">>> Dataset for GISJoin {} is empty!", this.gisJoin);
+            return false;
+        }
+
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(data.numFeatures());
+        for (int i = 0; i < data.numRows(); i++) {
+            statistics.add(data.features(), i * data.numFeatures(), data.labels()[i]);
+        }
+
+        LinearRegressionFit fit;
+        try {
+            fit = statistics.solve(this.gisJoin, this.regularizationParam, this.fitIntercept, this.setStandardization);
+        } catch (IllegalStateException e) {
+            log.warn("Unable to fit GISJoin {}: {}", this.gisJoin, e.getMessage());
+            return false;
+        }
+
+        this.coefficients = new ArrayList<>();
+        for (double d: fit.getCoefficients()) {
+            this.coefficients.add(d);
+        }
+
+        // Closed-form fits report no iterations and a single zero objective, like Spark's normal solver
+        this.objectiveHistory = Collections.singletonList(0.0);
+        this.lrModel = new LinearRegressionModel(Identifiable.randomUID("linReg"),
+                Vectors.dense(fit.getCoefficients()), fit.getIntercept());
+        this.intercept = fit.getIntercept();
+        this.totalIterations = 0;
+        this.rmse = fit.getRmse();
+        this.r2 = fit.getR2();
+
+        trainTask.finish();
+        log.info(">>> Finished building local model for GISJoin: {}, Task: {}", this.gisJoin, trainTask);
+        return true;
+    }
+
     /**
      * Used exclusively for testing and running a linear model directly, without having to interface with gRPC.
      * @param args Usually not used.
@@ -0,0 +1,73 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * LearningCurve.java -
+ *      Extrapolates a model's error over growing training samples, to give up on an
+ *      incremental training loop whose target error is out of reach.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fits the power law error = a * size^b, a straight line in log-log space, to the errors observed so far by
+ * least squares. Without an irreducible error term the power law keeps improving with more data, so the
+ * extrapolation is optimistic, and a target it can't reach is very unlikely to be reached by training on more
+ * data. An error that doesn't improve with size extrapolates to the best error seen.
+ */
+public class LearningCurve {
+
+    // Relative slack on the target before it is considered out of reach, to absorb noise in the errors
+    private static final double MARGIN = 0.05;
+
+    private final List<Double> logSizes = new ArrayList<>();
+    private final List<Double> logErrors = new ArrayList<>();
+    private double bestError = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param size Training sample size, in rows or as a fraction of the training data.
+     * @param error The model's error on the held-out data, e.g. its RMSE.
+     */
+    public void add(double size, double error) {
+        if (size <= 0.0 || !(error > 0.0) || Double.isInfinite(error)) {
+            return;
+        }
+        logSizes.add(Math.log(size));
+        logErrors.add(Math.log(error));
+        bestError = Math.min(bestError, error);
+    }
+
+    /**
+     * @return The extrapolated error at a training sample size, or NaN with fewer than two observed sizes.
+     */
+    public double extrapolate(double size) {
+        int n = logSizes.size();
+        double meanX = 0.0, meanY = 0.0;
+        for (int i = 0; i < n; i++) {
+            meanX += logSizes.get(i) / n;
+            meanY += logErrors.get(i) / n;
+        }
+        double sxx = 0.0, sxy = 0.0;
+        for (int i = 0; i < n; i++) {
+            double dx = logSizes.get(i) - meanX;
+            sxx += dx * dx;
+            sxy += dx * (logErrors.get(i) - meanY);
+        }
+        if (n < 2 || sxx == 0.0) {
+            return Double.NaN;
+        }
+        double slope = sxy / sxx;
+        if (slope >= 0.0) {
+            return bestError;
+        }
+        return Math.min(bestError, Math.exp(meanY + slope * (Math.log(size) - meanX)));
+    }
+
+    /**
+     * @return true if the error extrapolated to a training sample size stays above the target.
+     */
+    public boolean unreachable(double targetError, double size) {
+        double extrapolated = extrapolate(size);
+        return !Double.isNaN(extrapolated) && extrapolated > targetError * (1.0 + MARGIN);
+    }
+}
@@ -0,0 +1,207 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * MiniBatchKMeans.java -
+ *      k-means that updates its centers from a random sample of the feature partitions per iteration,
+ *      instead of a full pass over the data, for feature matrices with millions of rows.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.ml.clustering.KMeansModel;
+import org.apache.spark.ml.linalg.Vector;
+import org.apache.spark.ml.util.Identifiable;
+import org.apache.spark.mllib.linalg.Vectors;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.sustain.modeling.local.LocalKMeans;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The centers are seeded by clustering a sample of at most INIT_SAMPLE_ROWS rows on the driver with LocalKMeans.
+ * Every iteration then samples batchFraction of the partitions, assigns their rows to the nearest centers on the
+ * executors, and moves each center toward the mean of its batch rows with a per-center learning rate of
+ * batchCount / totalCount (Sculley's mini-batch k-means), so a center slows down as it absorbs more rows.
+ * Fitting stops once no center moved further than driftTolerance in an iteration, or after maxIterations.
+ */
+public class MiniBatchKMeans {
+
+    private static final Logger log = LogManager.getLogger(MiniBatchKMeans.class);
+
+    private static final int INIT_SAMPLE_ROWS = 10000;
+
+    private final int    k, maxIterations;
+    private final double batchFraction, driftTolerance;
+    private final long   seed;
+
+    /**
+     * @param batchFraction Share of the partitions sampled per iteration, clamped to (0, 1].
+     */
+    public MiniBatchKMeans(int k, int maxIterations, double batchFraction, double driftTolerance, long seed) {
+        if (!(batchFraction > 0.0)) {
+            throw new IllegalArgumentException("batchFraction must be positive: " + batchFraction);
+        }
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.batchFraction = Math.min(batchFraction, 1.0);
+        this.driftTolerance = driftTolerance;
+        this.seed = seed;
+    }
+
+    /**
+     * Receives a summary of each iteration; the rows' clusters are only assigned by the fitted model.
+     */
+    public interface InterimListener {
+        /**
+         * @param centers The centers after the iteration, row-major, in normalized feature units.
+         * @param batchCounts The number of the iteration's batch rows nearest to each center.
+         * @param totalCounts The number of batch rows each center absorbed over all iterations so far.
+         * @param drift The furthest any center moved in the iteration.
+         */
+        void onIteration(int iteration, double[] centers, long[] batchCounts, long[] totalCounts, double drift);
+    }
+
+    /**
+     * @param featureDF GISJoins and normalized "features" vectors; should be persisted.
+     * @param listener Receives each iteration's summary, or null.
+     * @return A Spark KMeansModel with the fitted centers, to assign the full dataset with.
+     */
+    public KMeansModel fit(Dataset<Row> featureDF, int dims, InterimListener listener) {
+        JavaRDD<Row> rows = featureDF.select("features").javaRDD();
+        double[] centers = initialCenters(rows, dims);
+        int clusters = centers.length / dims;
+        long[] totalCounts = new long[clusters];
+
+        int numPartitions = rows.getNumPartitions();
+        int batchPartitions = Math.min(numPartitions, Math.max(1, (int) Math.round(batchFraction * numPartitions)));
+        Random random = new Random(seed);
+
+        int iteration = 0;
+        double drift = Double.POSITIVE_INFINITY;
+        while (drift > driftTolerance && iteration < maxIterations) {
+            List<Integer> partitions = new ArrayList<>();
+            for (int i = 0; i < numPartitions; i++) {
+                partitions.add(i);
+            }
+            Collections.shuffle(partitions, random);
+            Set<Integer> sampled = new HashSet<>(partitions.subList(0, batchPartitions));
+
+            double[] batchCenters = centers;
+            List<Batch> batches = rows.mapPartitionsWithIndex((index, partition) -> sampled.contains(index)
+                    ? Collections.singletonList(Batch.of(partition, batchCenters, clusters, dims)).iterator()
+                    : Collections.<Batch>emptyIterator(), false).collect();
+
+            // Merge the partitions' sums and move each center toward its batch mean
+            double[] sums = new double[clusters * dims];
+            long[] counts = new long[clusters];
+            long batchRows = 0;
+            for (Batch batch: batches) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += batch.sums[i];
+                }
+                for (int c = 0; c < clusters; c++) {
+                    counts[c] += batch.counts[c];
+                    batchRows += batch.counts[c];
+                }
+            }
+
+            double[] updated = centers.clone();
+            drift = 0.0;
+            for (int c = 0; c < clusters; c++) {
+                if (counts[c] == 0) {
+                    continue;
+                }
+                totalCounts[c] += counts[c];
+                double learningRate = (double) counts[c] / totalCounts[c];
+                double squaredMove = 0.0;
+                for (int d = 0; d < dims; d++) {
+                    double mean = sums[c * dims + d] / counts[c];
+                    double move = learningRate * (mean - centers[c * dims + d]);
+                    updated[c * dims + d] += move;
+                    squaredMove += move * move;
+                }
+                drift = Math.max(drift, Math.sqrt(squaredMove));
+            }
+            centers = updated;
+            iteration++;
+            log.info("Mini-batch k-means iteration {}: {} partitions, {} rows, center drift {}", iteration,
+                    batchPartitions, batchRows, drift);
+
+            if (listener != null) {
+                listener.onIteration(iteration, centers.clone(), counts, totalCounts.clone(), drift);
+            }
+        }
+
+        org.apache.spark.mllib.linalg.Vector[] centerVectors = new org.apache.spark.mllib.linalg.Vector[clusters];
+        for (int c = 0; c < clusters; c++) {
+            double[] center = new double[dims];
+            System.arraycopy(centers, c * dims, center, 0, dims);
+            centerVectors[c] = Vectors.dense(center);
+        }
+        return new KMeansModel(Identifiable.randomUID("kmeans"),
+                new org.apache.spark.mllib.clustering.KMeansModel(centerVectors));
+    }
+
+    /**
+     * @return The centers of a LocalKMeans clustering of a random sample of the rows, row-major.
+     */
+    private double[] initialCenters(JavaRDD<Row> rows, int dims) {
+        List<Row> sample = rows.takeSample(false, Math.max(INIT_SAMPLE_ROWS, 20 * k), seed);
+        double[] values = new double[sample.size() * dims];
+        for (int i = 0; i < sample.size(); i++) {
+            Vector vector = sample.get(i).getAs(0);
+            for (int d = 0; d < dims; d++) {
+                values[i * dims + d] = vector.apply(d);
+            }
+        }
+        return new LocalKMeans(k, 10, 1e-4, 1).fit(values, sample.size(), dims, seed).getCenters();
+    }
+
+    /**
+     * The per-cluster sums and counts of one partition's rows.
+     */
+    private static class Batch implements Serializable {
+        private final double[] sums;
+        private final long[]   counts;
+
+        private Batch(int numClusters, int dims) {
+            this.sums = new double[numClusters * dims];
+            this.counts = new long[numClusters];
+        }
+
+        static Batch of(Iterator<Row> rows, double[] centers, int numClusters, int dims) {
+            Batch batch = new Batch(numClusters, dims);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                Vector vector = row.getAs(0);
+                int nearest = 0;
+                double nearestDistance = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < numClusters; c++) {
+                    double distance = 0.0;
+                    for (int d = 0; d < dims; d++) {
+                        double diff = vector.apply(d) - centers[c * dims + d];
+                        distance += diff * diff;
+                    }
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = c;
+                    }
+                }
+                for (int d = 0; d < dims; d++) {
+                    batch.sums[nearest * dims + d] += vector.apply(d);
+                }
+                batch.counts[nearest]++;
+            }
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * ModelCache.java -
+ *      Keeps the most recently used stored models loaded in the driver, so predictions are evaluated
+ *      in-process instead of loading the model, or launching a Spark job, per request.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.ml.regression.GBTRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressionModel;
+import org.sustain.LinearRegressionResponse;
+import org.sustain.ModelResponse;
+import org.sustain.modeling.local.SparkTreeCompiler;
+import org.sustain.modeling.local.TreeEnsemble;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An LRU cache of Predictors keyed by ModelStore key, holding at most MODEL_CACHE_SIZE models (default 1000).
+ * Misses are loaded from the ModelStore: linear regressions are rebuilt from the coefficients of their stored
+ * response, tree ensembles trained in-process are deserialized as stored, and those trained on Spark are read with
+ * their Spark ML reader, which runs a few small Spark jobs, and compiled into a TreeEnsemble, so the cache holds
+ * flat arrays instead of Spark's node objects. Hits only evaluate the model on the calling thread.
+ * <p>
+ * Every Predictor knows the features its model was trained on, in order, from its stored response; models stored
+ * without them aren't loaded, since their rows can't be checked.
+ * <p>
+ * Keys without a stored model are remembered for MODEL_CACHE_MISS_TTL_SECONDS (default 60), so repeated requests
+ * for a model that is missing, or still being saved, don't hit the store every time.
+ */
+public class ModelCache {
+
+    private static final Logger log = LogManager.getLogger(ModelCache.class);
+
+    private static final ModelCache instance = new ModelCache(
+            Integer.parseInt(System.getenv().getOrDefault("MODEL_CACHE_SIZE", "1000")),
+            TimeUnit.SECONDS.toNanos(Long.parseLong(
+                    System.getenv().getOrDefault("MODEL_CACHE_MISS_TTL_SECONDS", "60"))));
+
+    private final Map<String, Predictor> predictors;
+    private final Map<String, Long>      misses;
+    private final long                   missTtlNanos;
+
+    public ModelCache(int capacity, long missTtlNanos) {
+        this.predictors = new LinkedHashMap<String, Predictor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Predictor> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.misses = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.missTtlNanos = missTtlNanos;
+    }
+
+    public static ModelCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return The loaded model stored with the key, or null if the store has no model for it, or only its response.
+     */
+    public Predictor get(String key) {
+        synchronized (predictors) {
+            Predictor predictor = predictors.get(key);
+            if (predictor != null) {
+                return predictor;
+            }
+            Long missedAt = misses.get(key);
+            if (missedAt != null) {
+                if (System.nanoTime() - missedAt < missTtlNanos) {
+                    return null;
+                }
+                misses.remove(key);
+            }
+        }
+
+        // Loaded outside the lock so a slow load doesn't hold up hits; concurrent misses may both load
+        Predictor predictor = load(key);
+        synchronized (predictors) {
+            if (predictor != null) {
+                predictors.put(key, predictor);
+            } else {
+                misses.put(key, System.nanoTime());
+            }
+        }
+        return predictor;
+    }
+
+    private static Predictor load(String key) {
+        ModelStore store = ModelStore.getInstance();
+        ModelResponse response = store.loadResponse(key);
+        if (response == null) {
+            return null;
+        }
+
+        List<String> features = response.getFeaturesList();
+        if (features.isEmpty()) {
+            log.warn("Model {} was stored without its features, not loading it", key);
+            return null;
+        }
+
+        String gisJoin = null;
+        int numFeatures = 0;
+        Model model = null;
+        if (response.hasLinearRegressionResponse()) {
+            gisJoin = response.getLinearRegressionResponse().getGisJoin();
+            numFeatures = response.getLinearRegressionResponse().getSlopeCoefficientsCount();
+            model = linear(response.getLinearRegressionResponse());
+        } else if (response.hasRForestRegressionResponse()) {
+            TreeEnsemble ensemble = localEnsemble(store, key);
+            if (ensemble == null) {
+                RandomForestRegressionModel sparkModel = store.loadModel(key, RandomForestRegressionModel.read());
+                ensemble = sparkModel != null ? SparkTreeCompiler.compile(sparkModel) : null;
+            }
+            if (ensemble != null) {
+                gisJoin = response.getRForestRegressionResponse().getGisJoin();
+                numFeatures = ensemble.numFeatures();
+                model = ensemble::predict;
+            }
+        } else if (response.hasGBoostRegressionResponse()) {
+            TreeEnsemble ensemble = localEnsemble(store, key);
+            if (ensemble == null) {
+                GBTRegressionModel sparkModel = store.loadModel(key, GBTRegressionModel.read());
+                ensemble = sparkModel != null ? SparkTreeCompiler.compile(sparkModel) : null;
+            }
+            if (ensemble != null) {
+                gisJoin = response.getGBoostRegressionResponse().getGisJoin();
+                numFeatures = ensemble.numFeatures();
+                model = ensemble::predict;
+            }
+        }
+        if (model != null && numFeatures != features.size()) {
+            log.warn("Model {} takes {} features, but was stored with features {}, not loading it", key,
+                    numFeatures, features);
+            model = null;
+        }
+
+        Predictor predictor = model != null ? new Predictor(gisJoin, features, model) : null;
+        log.info("Loaded model {} into the model cache: {}", key, predictor != null);
+        return predictor;
+    }
+
+    private static TreeEnsemble localEnsemble(ModelStore store, String key) {
+        ModelStore.LocalModel localModel = store.loadLocalModel(key);
+        return localModel != null ? localModel.getEnsemble() : null;
+    }
+
+    private static Model linear(LinearRegressionResponse response) {
+        List<Double> slopes = response.getSlopeCoefficientsList();
+        double[] coefficients = new double[slopes.size()];
+        for (int i = 0; i < coefficients.length; i++) {
+            coefficients[i] = slopes.get(i);
+        }
+        double intercept = response.getIntercept();
+        return (rows, numRows, predictions) -> {
+            for (int r = 0, offset = 0; r < numRows; r++, offset += coefficients.length) {
+                double prediction = intercept;
+                for (int i = 0; i < coefficients.length; i++) {
+                    prediction += coefficients[i] * rows[offset + i];
+                }
+                predictions[r] = prediction;
+            }
+        };
+    }
+
+    /**
+     * A loaded model, the GISJoin and the features it was trained on; small enough to broadcast to the executors.
+     */
+    public static class Predictor implements Serializable {
+
+        private final String       gisJoin;
+        private final List<String> features;
+        private final Model        model;
+
+        public Predictor(String gisJoin, List<String> features, Model model) {
+            this.gisJoin = gisJoin;
+            this.features = new ArrayList<>(features);
+            this.model = model;
+        }
+
+        /**
+         * @param rows numRows rows of getNumFeatures() values each, one after another, in the order of
+         * getFeatures().
+         * @param predictions Receives the prediction of each row.
+         */
+        public void predict(double[] rows, int numRows, double[] predictions) {
+            model.predict(rows, numRows, predictions);
+        }
+
+        /**
+         * @param requestFeatures Features in the order a request holds their values.
+         * @return For each of the model's features, in order, its index in requestFeatures, or null if
+         * requestFeatures aren't the model's features in some order.
+         */
+        public int[] columnsOf(List<String> requestFeatures) {
+            if (requestFeatures.size() != features.size()) {
+                return null;
+            }
+            Map<String, Integer> requestColumns = new HashMap<>();
+            for (int i = 0; i < requestFeatures.size(); i++) {
+                requestColumns.put(requestFeatures.get(i), i);
+            }
+            int[] columns = new int[features.size()];
+            for (int i = 0; i < columns.length; i++) {
+                Integer column = requestColumns.get(features.get(i));
+                if (column == null) {
+                    return null;
+                }
+                columns[i] = column;
+            }
+            return columns;
+        }
+
+        public String getGisJoin() {
+            return gisJoin;
+        }
+
+        /**
+         * @return The features the model was trained on, in the order it takes them.
+         */
+        public List<String> getFeatures() {
+            return features;
+        }
+
+        public int getNumFeatures() {
+            return features.size();
+        }
+    }
+
+    public interface Model extends Serializable {
+        void predict(double[] rows, int numRows, double[] predictions);
+    }
+}
@@ -0,0 +1,451 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * ModelStore.java -
+ *      Keeps trained models and their responses beyond the request that trained them, on local disk
+ *      and in MongoDB GridFS, so identical model requests on any server replica don't retrain.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkContext;
+import org.apache.spark.ml.param.ParamMap;
+import org.apache.spark.ml.param.ParamPair;
+import org.apache.spark.ml.param.Params;
+import org.apache.spark.ml.util.MLReader;
+import org.apache.spark.ml.util.MLWritable;
+import org.apache.spark.sql.SparkSession;
+import org.bson.Document;
+import org.sustain.Collection;
+import org.sustain.ModelResponse;
+import org.sustain.ModelType;
+import org.sustain.modeling.local.TreeEnsemble;
+import org.sustain.modeling.local.TreeEnsembleParams;
+import org.sustain.mongodb.DBConnection;
+import scala.collection.JavaConverters;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Every stored model is a directory named after its key, holding the ModelResponse it was returned with and the
+ * model: in the Spark ML writer format if it was trained on Spark, or as a Java-serialized LocalModel if its trees
+ * were trained in-process. The key is the SHA-256 of the model type, collection, features, label,
+ * GISJoin and the request's parameters, so only identical requests share models.
+ * <p>
+ * Lookups try the local disk tier first, then the shared GridFS tier, whose hits are unpacked into the local
+ * tier. Saves write the local tier, then upload the directory zipped to GridFS, on a background thread so
+ * responses aren't held up. The store is a cache: failures are logged and treated as misses.
+ * <p>
+ * The local tier is MODEL_STORE_DIR (default "model-store"), any Hadoop file system URI. Spark ML writers write
+ * from the executors, so with a Spark cluster it must be a file system the driver and every executor share, e.g.
+ * HDFS. MODEL_STORE_GRIDFS=false turns the GridFS tier off.
+ */
+public class ModelStore {
+
+    private static final Logger log = LogManager.getLogger(ModelStore.class);
+
+    private static final String MODEL_DIR = "model";
+    private static final String RESPONSE_FILE = "response.pb";
+    private static final String LOCAL_MODEL_FILE = "local-model.ser";
+    private static final String BUCKET = "models";
+    private static final int    MAX_PENDING_SAVES = 256;
+    private static final Set<Class<?>> LOCAL_MODEL_CLASSES = Set.of(
+            LocalModel.class, TreeEnsemble.class, TreeEnsembleParams.class, String.class);
+
+    private static final ModelStore instance = new ModelStore(
+            System.getenv().getOrDefault("MODEL_STORE_DIR", "model-store"),
+            Boolean.parseBoolean(System.getenv().getOrDefault("MODEL_STORE_GRIDFS", "true")));
+
+    private final String             directory;
+    private final boolean            gridFs;
+    private final ThreadPoolExecutor saves;
+
+    public ModelStore(String directory, boolean gridFs) {
+        this.directory = directory;
+        this.gridFs = gridFs;
+        this.saves = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_SAVES), runnable -> {
+                    Thread thread = new Thread(runnable, "model-store");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> log.warn("Model store is saving {} models already, dropping a save",
+                        MAX_PENDING_SAVES));
+    }
+
+    public static ModelStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param parameters The type-specific request, without its GISJoins.
+     * @param context Anything else the model depends on, e.g. a child's parent GISJoin.
+     * @return Hex SHA-256 of the canonical form of the model's inputs.
+     */
+    public static String key(ModelType type, Collection collection, String gisJoin, MessageOrBuilder parameters,
+                             String... context) {
+        StringBuilder canonical = new StringBuilder()
+                .append(type.name()).append('\n')
+                .append(collection.getName()).append('\n')
+                .append(String.join(",", collection.getFeaturesList())).append('\n')
+                .append(collection.getLabel()).append('\n')
+                .append(gisJoin).append('\n');
+        try {
+            canonical.append(JsonFormat.printer().omittingInsignificantWhitespace().print(parameters));
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Unable to serialize model parameters", e);
+        }
+        for (String value: context) {
+            canonical.append('\n').append(value);
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The response stored with the key, or null if no model is stored with it.
+     */
+    public ModelResponse loadResponse(String key) {
+        try {
+            Path stored = new Path(directory, key);
+            FileSystem fs = fileSystem(stored);
+            if (!fs.exists(new Path(stored, RESPONSE_FILE)) && !(gridFs && download(key, stored, fs))) {
+                return null;
+            }
+            try (FSDataInputStream in = fs.open(new Path(stored, RESPONSE_FILE))) {
+                return ModelResponse.parseFrom(in);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to load the stored response of model {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the responses of many keys with one listing of the local tier and one GridFS query for the keys it
+     * misses, instead of a round trip per key, e.g. for a request training thousands of GISJoins at once.
+     * @return The responses stored with the keys, by key; keys without a stored model are left out.
+     */
+    public Map<String, ModelResponse> loadResponses(List<String> keys) {
+        Map<String, ModelResponse> responses = new HashMap<>();
+        if (keys.size() == 1) {
+            // Cheaper than listing every stored model
+            ModelResponse response = loadResponse(keys.get(0));
+            if (response != null) {
+                responses.put(keys.get(0), response);
+            }
+            return responses;
+        }
+        try {
+            Path root = new Path(directory);
+            FileSystem fs = fileSystem(root);
+            Set<String> stored = new HashSet<>();
+            if (fs.exists(root)) {
+                for (FileStatus status: fs.listStatus(root)) {
+                    stored.add(status.getPath().getName());
+                }
+            }
+
+            List<String> found = new ArrayList<>(), missing = new ArrayList<>();
+            for (String key: keys) {
+                (stored.contains(key) ? found : missing).add(key);
+            }
+            if (gridFs && !missing.isEmpty()) {
+                GridFSBucket bucket = GridFSBuckets.create(DBConnection.getConnection(), BUCKET);
+                for (GridFSFile file: bucket.find(Filters.in("filename", missing))) {
+                    try {
+                        download(bucket, file, new Path(root, file.getFilename()), fs);
+                        found.add(file.getFilename());
+                    } catch (IOException e) {
+                        log.warn("Unable to fetch model {} from GridFS", file.getFilename(), e);
+                    }
+                }
+            }
+
+            for (String key: found) {
+                Path response = new Path(new Path(root, key), RESPONSE_FILE);
+                if (fs.exists(response)) {
+                    try (FSDataInputStream in = fs.open(response)) {
+                        responses.put(key, ModelResponse.parseFrom(in));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Unable to load the stored responses of {} models", keys.size(), e);
+        }
+        return responses;
+    }
+
+    /**
+     * Reads a stored model; call loadResponse() first, which fetches the model from GridFS if needed.
+     * @param reader The model class' reader, e.g. RandomForestRegressionModel.read().
+     * @return The model, or null if the key's response was stored without a model.
+     */
+    public <M> M loadModel(String key, MLReader<M> reader) {
+        try {
+            Path model = new Path(new Path(directory, key), MODEL_DIR);
+            return fileSystem(model).exists(model) ? reader.load(model.toString()) : null;
+        } catch (Exception e) {
+            log.warn("Unable to load stored model {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a stored locally trained model; call loadResponse() first, which fetches the model from GridFS if needed.
+     * @return The model, or null if the key's response was stored without a locally trained model.
+     */
+    public LocalModel loadLocalModel(String key) {
+        try {
+            Path file = new Path(new Path(directory, key), LOCAL_MODEL_FILE);
+            FileSystem fs = fileSystem(file);
+            if (!fs.exists(file)) {
+                return null;
+            }
+            try (ObjectInputStream in = new ObjectInputStream(fs.open(file))) {
+                in.setObjectInputFilter(ModelStore::checkLocalModelClass);
+                return (LocalModel) in.readObject();
+            }
+        } catch (Exception e) {
+            log.warn("Unable to load stored local model {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a model and its response in the background, unless the key is stored already.
+     * @param model The trained Spark model, or null to store the response only.
+     */
+    public void save(String key, MLWritable model, ModelResponse response) {
+        save(key, model, null, response);
+    }
+
+    /**
+     * Stores a model and its response in the background, unless the key is stored already.
+     * @param model The trained Spark model, or null if there is none.
+     * @param localModel The locally trained model, or null if there is none.
+     */
+    public void save(String key, MLWritable model, LocalModel localModel, ModelResponse response) {
+        saves.execute(() -> {
+            try {
+                // The save thread inherits the Spark local properties of the task that created it; saves must
+                // outlive that request, so they don't run in its job group or scheduler pool
+                SparkContext sparkContext = SparkSession.active().sparkContext();
+                sparkContext.clearJobGroup();
+                sparkContext.setLocalProperty("spark.scheduler.pool", null);
+
+                Path stored = new Path(directory, key);
+                FileSystem fs = fileSystem(stored);
+                if (fs.exists(new Path(stored, RESPONSE_FILE))) {
+                    return;
+                }
+
+                // Written next to the final directory and renamed, so readers never see a partial model
+                Path pending = new Path(directory, key + ".pending-" + UUID.randomUUID());
+                if (model != null) {
+                    model.write().save(new Path(pending, MODEL_DIR).toString());
+                }
+                if (localModel != null) {
+                    try (ObjectOutputStream out = new ObjectOutputStream(fs.create(new Path(pending,
+                            LOCAL_MODEL_FILE)))) {
+                        out.writeObject(localModel);
+                    }
+                }
+                try (FSDataOutputStream out = fs.create(new Path(pending, RESPONSE_FILE))) {
+                    response.writeTo(out);
+                }
+                publish(pending, stored, fs);
+                log.info("Stored model {} in {}", key, stored);
+
+                if (gridFs) {
+                    upload(key, stored, fs);
+                }
+            } catch (Exception e) {
+                log.warn("Unable to store model {}", key, e);
+            }
+        });
+    }
+
+    /**
+     * @return A copy of the estimator with the parameter values of a model it trained, e.g. for a model loaded from
+     * the store, whose parent() estimator isn't stored.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Params> E estimatorOf(Params model, E estimator) {
+        ParamMap paramMap = new ParamMap();
+        for (ParamPair<?> pair: JavaConverters.seqAsJavaList(model.extractParamMap().toSeq())) {
+            if (estimator.hasParam(pair.param().name())) {
+                paramMap.put(estimator.getParam(pair.param().name()), pair.value());
+            }
+        }
+        return (E) estimator.copy(paramMap);
+    }
+
+    private void upload(String key, Path stored, FileSystem fs) throws IOException {
+        GridFSBucket bucket = GridFSBuckets.create(DBConnection.getConnection(), BUCKET);
+        if (bucket.find(Filters.eq("filename", key)).first() != null) {
+            return;
+        }
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new Document("storedAt", System.currentTimeMillis()));
+        try (OutputStream out = bucket.openUploadStream(key, options);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            RemoteIterator<LocatedFileStatus> files = fs.listFiles(stored, true);
+            String prefix = fs.makeQualified(stored).toUri().getPath() + "/";
+            while (files.hasNext()) {
+                Path file = files.next().getPath();
+                zip.putNextEntry(new ZipEntry(file.toUri().getPath().substring(prefix.length())));
+                try (FSDataInputStream in = fs.open(file)) {
+                    IOUtils.copyBytes(in, zip, 64 * 1024, false);
+                }
+                zip.closeEntry();
+            }
+        }
+        log.info("Uploaded model {} to GridFS", key);
+    }
+
+    /**
+     * Unpacks a model another replica uploaded to GridFS into the local tier.
+     * @return false if GridFS has no model with the key.
+     */
+    private boolean download(String key, Path stored, FileSystem fs) throws IOException {
+        GridFSBucket bucket = GridFSBuckets.create(DBConnection.getConnection(), BUCKET);
+        GridFSFile file = bucket.find(Filters.eq("filename", key)).first();
+        if (file == null) {
+            return false;
+        }
+        download(bucket, file, stored, fs);
+        return fs.exists(new Path(stored, RESPONSE_FILE));
+    }
+
+    private void download(GridFSBucket bucket, GridFSFile file, Path stored, FileSystem fs) throws IOException {
+        String key = file.getFilename();
+        Path pending = new Path(directory, key + ".pending-" + UUID.randomUUID());
+        try (InputStream in = bucket.openDownloadStream(file.getObjectId());
+             ZipInputStream zip = new ZipInputStream(in)) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                if (entry.isDirectory() || entry.getName().contains("..")) {
+                    continue;
+                }
+                try (FSDataOutputStream out = fs.create(new Path(pending, entry.getName()))) {
+                    IOUtils.copyBytes(zip, out, 64 * 1024, false);
+                }
+            }
+        }
+        publish(pending, stored, fs);
+        log.info("Fetched model {} from GridFS", key);
+    }
+
+    /**
+     * Moves a completely written model directory to its final name, unless a concurrent save or download won.
+     */
+    private static void publish(Path pending, Path stored, FileSystem fs) throws IOException {
+        // rename() would move pending into an existing directory instead of failing
+        if (fs.exists(stored) || !fs.rename(pending, stored)) {
+            fs.delete(pending, true);
+        }
+    }
+
+    /**
+     * Stored models may come from any replica through GridFS, so only the classes a LocalModel is made of are
+     * deserialized: anything else in the stream is rejected before it's instantiated.
+     */
+    private static ObjectInputFilter.Status checkLocalModelClass(ObjectInputFilter.FilterInfo info) {
+        Class<?> type = info.serialClass();
+        if (type == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || LOCAL_MODEL_CLASSES.contains(type)
+                ? ObjectInputFilter.Status.ALLOWED
+                : ObjectInputFilter.Status.REJECTED;
+    }
+
+    private static FileSystem fileSystem(Path path) throws IOException {
+        return path.getFileSystem(SparkSession.active().sparkContext().hadoopConfiguration());
+    }
+
+    /**
+     * A tree ensemble trained in-process, with the parameters it was trained with if they are needed to restore
+     * it, e.g. for a parent whose children are trained with its parameters.
+     */
+    public static class LocalModel implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeEnsemble       ensemble;
+        private final TreeEnsembleParams params;
+
+        public LocalModel(TreeEnsemble ensemble, TreeEnsembleParams params) {
+            this.ensemble = ensemble;
+            this.params = params;
+        }
+
+        /**
+         * @return The local model of the ensemble, or null if there is no ensemble, e.g. for a model trained on Spark.
+         */
+        public static LocalModel of(TreeEnsemble ensemble, TreeEnsembleParams params) {
+            return ensemble != null ? new LocalModel(ensemble, params) : null;
+        }
+
+        public TreeEnsemble getEnsemble() {
+            return ensemble;
+        }
+
+        /**
+         * @return The parameters the ensemble was trained with, or null if they weren't stored.
+         */
+        public TreeEnsembleParams getParams() {
+            return params;
+        }
+    }
+}
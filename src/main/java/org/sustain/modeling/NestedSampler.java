@@ -0,0 +1,69 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * NestedSampler.java -
+ *      Growing, nested training samples and a fixed held-out split of one dataset, for the
+ *      incremental training loops that retrain on a larger sample every round.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.rand;
+
+/**
+ * Every row is assigned a uniform random key once, and the keyed dataset is cached so the keys persist.
+ * Rows keyed at or above trainSplit form the test split, which stays the same every round. A training
+ * sample of fraction f is every row keyed below f * trainSplit. The sample of a larger fraction is
+ * therefore a strict superset of the previous one, instead of an unrelated fresh sample. Only the current
+ * round's sample is cached. Everything is cached in the caller's CacheScope.
+ */
+public class NestedSampler {
+
+    private static final String KEY = "sampleKey";
+
+    private final CacheScope   scope;
+    private final double       trainSplit;
+    private final Dataset<Row> keyed;
+    private final Dataset<Row> test;
+    private Dataset<Row>       sample;
+
+    /**
+     * @param scope The scope the keyed dataset, the test split and the samples are cached in.
+     * @param data The dataset to sample, with "features" and "label" columns.
+     * @param trainSplit Fraction of the rows available for training; the rest is the test split.
+     */
+    public NestedSampler(CacheScope scope, Dataset<Row> data, double trainSplit) {
+        this.scope = scope;
+        this.trainSplit = trainSplit;
+        this.keyed = scope.cache(data.withColumn(KEY, rand()));
+        this.test = scope.cache(keyed.filter(col(KEY).geq(trainSplit)));
+    }
+
+    /**
+     * @return The training rows keyed below fraction * trainSplit, cached until the next call or release().
+     */
+    public Dataset<Row> sample(double fraction) {
+        scope.release(sample);
+        sample = scope.cache(keyed.filter(col(KEY).lt(Math.min(fraction, 1.0) * trainSplit)));
+        return sample;
+    }
+
+    /**
+     * @return The fixed test split.
+     */
+    public Dataset<Row> test() {
+        return test;
+    }
+
+    /**
+     * Releases every dataset this sampler cached before its scope is closed.
+     */
+    public void release() {
+        scope.release(sample);
+        scope.release(test);
+        scope.release(keyed);
+        sample = null;
+    }
+}
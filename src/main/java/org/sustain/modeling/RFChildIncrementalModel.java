@@ -42,6 +42,11 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.storage.StorageLevel;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalRandomForest;
+import org.sustain.modeling.local.LocalRegressionMetrics;
+import org.sustain.modeling.local.TreeEnsemble;
+import org.sustain.modeling.local.TreeEnsembleParams;
 import org.sustain.util.Constants;
 import org.sustain.util.FancyLogger;
 import scala.collection.JavaConverters;
@@ -51,6 +56,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Provides an interface for building generalized Random Forest Regression
@@ -95,6 +101,13 @@ public class RFChildIncrementalModel {
     String queryField = "gis_join";
 
     private RandomForestRegressionModel parent_rfModel;
+    private RandomForestRegressor parent_rf;
+    private TreeEnsemble parent_rfEnsemble;
+    // Keep the parent's trees that fit this GISJoin's data and only train replacements
+    private boolean transfer = false;
+
+    private RandomForestRegressionModel trained_rfModel;
+    private TreeEnsemble trained_rfEnsemble;
     public String parentGisJoin = "";
     private double parent_rmse = 0.0;
 
@@ -106,6 +119,41 @@ public class RFChildIncrementalModel {
         this.parent_rfModel = parent_rfModel;
     }
 
+    /**
+     * Sets the parent's estimator directly, for parents that were trained locally and have no Spark model.
+     */
+    public void setParent_rf(RandomForestRegressor parent_rf) {
+        this.parent_rf = parent_rf;
+    }
+
+    public RandomForestRegressor getParentEstimator() {
+        return parent_rf != null ? parent_rf : (RandomForestRegressor) parent_rfModel.parent();
+    }
+
+    /**
+     * Sets the parent's model trained by trainLocally(), which locally trained children can transfer trees from.
+     */
+    public void setParent_rfEnsemble(TreeEnsemble parent_rfEnsemble) {
+        this.parent_rfEnsemble = parent_rfEnsemble;
+    }
+
+    /**
+     * Transfers the parent's trees instead of retraining the forest. train() transfers from the parent's Spark model
+     * and trainLocally() from its locally trained ensemble; a child trained on Spark whose parent was trained
+     * locally has no Spark model to transfer from, and is retrained.
+     */
+    public void setTransfer(boolean transfer) {
+        this.transfer = transfer;
+    }
+
+    public RandomForestRegressionModel getTrained_rfModel() {
+        return trained_rfModel;
+    }
+
+    public TreeEnsemble getTrained_rfEnsemble() {
+        return trained_rfEnsemble;
+    }
+
     public String getParentGisJoin() {
         return parentGisJoin;
     }
@@ -330,6 +378,12 @@ public class RFChildIncrementalModel {
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("RF child " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
 
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
@@ -353,18 +407,24 @@ public class RFChildIncrementalModel {
                 .setOutputCol("features");
 
         /* ITERATIVE SAMPLING OF THE mergedDataset*/
-        float trainFraction = 0.3f;
+        float trainFraction = 0.15f;
         // PREPARING DATASET2
         Dataset<Row> gisDataset2 = selected.filter(selected.col(queryField).equalTo(gisJoin))
                 .withColumnRenamed(this.label, "label"); // Rename the chosen label column to "label"
 
         //gisDataset2 = gisDataset2.sample(0.1);
 
-        Dataset<Row> mergedDataset_transfer = vectorAssembler.transform(gisDataset2).cache();
+        Dataset<Row> mergedDataset_transfer = scope.cache(vectorAssembler.transform(gisDataset2));
+
+        if (transfer && parent_rfModel != null) {
+            return trainTransfer(mergedDataset_transfer);
+        } else if (transfer && parent_rfEnsemble != null) {
+            log.info("Parent of GISJoin {} was trained locally, retraining the forest instead of transferring trees",
+                    gisJoin);
+        }
 
         // COPYING PARAMETERS FROM PRE_TRAINED MODEL
-        RandomForestRegressionModel rf2_model = parent_rfModel.copy(new ParamMap());
-        RandomForestRegressor rf2 = (RandomForestRegressor) rf2_model.parent();
+        RandomForestRegressor rf2 = getParentEstimator().copy(new ParamMap());
 
         int iter = 0;
         double targetRMSE = getParent_rmse();
@@ -372,14 +432,16 @@ public class RFChildIncrementalModel {
 
         long startTime_overall = System.currentTimeMillis();
 
+        // Nested training samples over a fixed test split
+        NestedSampler sampler = new NestedSampler(scope, mergedDataset_transfer, trainSplit);
+        Dataset<Row> testrdd_transfer = sampler.test();
+        LearningCurve learningCurve = new LearningCurve();
+
         boolean converged = true;
         while (true) {
             startTime = System.currentTimeMillis();
 
-            Dataset<Row> workingDataset = mergedDataset_transfer.sample(trainFraction);
-            Dataset<Row>[] rds_transfer = workingDataset.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
-            Dataset<Row> trainrdd_transfer = rds_transfer[0].cache();
-            Dataset<Row> testrdd_transfer = rds_transfer[1];
+            Dataset<Row> trainrdd_transfer = sampler.sample(trainFraction);
             fancy_logging("Model Data Split completed in " + calc_interval(startTime));
 
             /* TRAIN PHASE */
@@ -389,9 +451,14 @@ public class RFChildIncrementalModel {
 
             /* TEST/EVALUATION PHASE */
             startTime = System.currentTimeMillis();
-            Dataset<Row> pred_pair = rf2Model_iter.transform(testrdd_transfer).select("label", "prediction").cache();
-            RegressionMetrics metrics = new RegressionMetrics(pred_pair);
-            this.rmse = metrics.rootMeanSquaredError();
+            try (CacheScope round = CacheScope.open("round " + iter)) {
+                Dataset<Row> pred_pair = round.cache(rf2Model_iter.transform(testrdd_transfer).select("label", "prediction"));
+                RegressionMetrics metrics = new RegressionMetrics(pred_pair);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+            }
+            this.trained_rfModel = rf2Model_iter;
+            learningCurve.add(trainFraction, rmse);
 
             fullSummary += FancyLogger.fancy_logging("Model Evaluation/Loss Computation Round " + iter + " completed in " + calc_interval(startTime)
                     + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
@@ -404,6 +471,11 @@ public class RFChildIncrementalModel {
                 fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY ACHIEVED... EVALUATION TIME"+targetRMSE+" "+this.rmse) + "\n";
                 converged = true;
                 break;
+            } else if (learningCurve.unreachable(targetRMSE, 1.0)) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY OUT OF REACH... EXTRAPOLATED RMSE "
+                        + learningCurve.extrapolate(1.0)) + "\n";
+                converged = false;
+                break;
             } else if (trainFraction > 0.9) {
                 fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY NOT ACHIEVED... RAN OUT OF SAMPLES") + "\n";
                 converged = false;
@@ -413,10 +485,7 @@ public class RFChildIncrementalModel {
 
             }
 
-            // COPYING OVER PARAMETERS FROM PREVIOUS ITERATION
-            RandomForestRegressor rf2_tmp = new RandomForestRegressor().setFeaturesCol("features").setLabelCol("label");
-            rf2_tmp.copy(rf2Model_iter.paramMap());
-            rf2 = rf2_tmp;
+            // The next round reuses rf2, which keeps the parent's parameters
             iter++;
         }
 
@@ -433,6 +502,111 @@ public class RFChildIncrementalModel {
         return true;
     }
 
+    /**
+     * Keeps the parent's trees that fit this GISJoin's data and only trains replacements for the others, until
+     * the parent's RMSE is beaten.
+     */
+    private Boolean trainTransfer(Dataset<Row> mergedDataset) {
+        long startTime = System.currentTimeMillis();
+        Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit, 1.0d - trainSplit});
+
+        RFTransfer transferred = new RFTransfer().fit(parent_rfModel, getParentEstimator(), rds[0], rds[1],
+                getParent_rmse());
+        this.trained_rfModel = transferred.getModel();
+        this.rmse = transferred.getRmse();
+        this.r2 = transferred.getR2();
+        logModelResults();
+
+        FancyLogger.write_out(FancyLogger.fancy_logging("FOREST TRANSFER KEPT " + transferred.getKeptTrees()
+                + " OF THE PARENT'S " + parent_rfModel.getNumTrees() + " TREES AND TRAINED "
+                + transferred.getTrainedTrees() + " IN " + calc_interval(startTime)
+                + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2 + " TARGET RMSE: " + getParent_rmse()), filename);
+        return true;
+    }
+
+    /**
+     * Trains the model in-process on data loaded through the MongoDB driver, with the parent's parameters and
+     * the same doubling sample loop as train(). Used for GISJoins too small to be worth Spark jobs.
+     */
+    public Boolean trainLocally(LocalDataset data) {
+        long startTime_overall = System.currentTimeMillis();
+        FancyLogger.write_out(fancy_logging("Initiating Local Random Forest Modelling..."), filename);
+
+        if (data.numRows() == 0) {
+            log.info("Dataset for GISJoin {} is empty!", gisJoin);
+            return false;
+        }
+
+        LocalRandomForest rf2 = new LocalRandomForest(TreeEnsembleParams.of(getParentEstimator()));
+        Random random = new Random();
+        double targetRMSE = getParent_rmse();
+
+        if (transfer && parent_rfEnsemble != null) {
+            LocalDataset[] rds = data.randomSplit(trainSplit, random);
+            if (rds[0].numRows() > 0 && rds[1].numRows() > 0) {
+                this.trained_rfEnsemble = rf2.transfer(parent_rfEnsemble, rds[0], rds[1], targetRMSE, random);
+                LocalRegressionMetrics metrics = new LocalRegressionMetrics(trained_rfEnsemble, rds[1]);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+                logModelResults();
+                FancyLogger.write_out(FancyLogger.fancy_logging("LOCAL FOREST TRANSFER COMPLETED IN "
+                        + calc_interval(startTime_overall) + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2), filename);
+                return true;
+            }
+        }
+        double trainFraction = 0.15;
+        String fullSummary = "";
+
+        // Nested training samples over a fixed test split
+        LocalDataset[] split = data.randomSplit(trainSplit, random);
+        double[] sampleKeys = split[0].sampleKeys(random);
+        LearningCurve learningCurve = new LearningCurve();
+
+        boolean converged;
+        while (true) {
+            LocalDataset trainSample = split[0].sample(sampleKeys, trainFraction);
+            boolean evaluated = trainSample.numRows() > 0 && split[1].numRows() > 0;
+            if (evaluated) {
+                TreeEnsemble rf2Model_iter = rf2.fit(trainSample, random);
+                this.trained_rfEnsemble = rf2Model_iter;
+                LocalRegressionMetrics metrics = new LocalRegressionMetrics(rf2Model_iter, split[1]);
+                this.rmse = metrics.rootMeanSquaredError();
+                this.r2 = metrics.r2();
+                logModelResults();
+                learningCurve.add(trainFraction, rmse);
+            }
+
+            trainFraction = trainFraction * 2;
+
+            if (evaluated && this.rmse < targetRMSE) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY ACHIEVED... EVALUATION TIME"+targetRMSE+" "+this.rmse) + "\n";
+                converged = true;
+                break;
+            } else if (learningCurve.unreachable(targetRMSE, 1.0)) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY OUT OF REACH... EXTRAPOLATED RMSE "
+                        + learningCurve.extrapolate(1.0)) + "\n";
+                converged = false;
+                break;
+            } else if (trainFraction > 0.9) {
+                fullSummary += FancyLogger.fancy_logging("DESIRED ACCURACY NOT ACHIEVED... RAN OUT OF SAMPLES") + "\n";
+                converged = false;
+                break;
+            }
+        }
+
+        // No round had both training and test rows, so there is no model and nothing to report
+        if (this.trained_rfEnsemble == null) {
+            log.info("GISJoin {} has too few rows for a training sample and a test split", gisJoin);
+            FancyLogger.write_out(fullSummary, filename);
+            return false;
+        }
+
+        fullSummary += FancyLogger.fancy_logging("OVERALL LOCAL CONVERGENCE TIME " + (converged ? "" : "XXX ")
+                + calc_interval(startTime_overall) + "\nEVALUATIONS: RMSE, R2: " + rmse + " " + r2) + "\n";
+        FancyLogger.write_out(fullSummary, filename);
+        return true;
+    }
+
     /**
      * Injecting user-defined parameters into model
      * @param rf - Random Forest Regression model Object
@@ -42,6 +42,13 @@ import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.storage.StorageLevel;
+import org.sustain.HyperparameterSearch;
+import org.sustain.modeling.local.LocalCrossValidator;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalRandomForest;
+import org.sustain.modeling.local.LocalRegressionMetrics;
+import org.sustain.modeling.local.TreeEnsemble;
+import org.sustain.modeling.local.TreeEnsembleParams;
 import org.sustain.util.Constants;
 import org.sustain.util.FancyLogger;
 import scala.collection.JavaConverters;
@@ -51,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Provides an interface for building generalized Random Forest Regression
@@ -94,10 +102,19 @@ public class RFRegressionExhaustiveModel {
     String errorType = "rmse";
     String queryField = "gis_join";
 
+    // Parameter grid and search strategy
+    private HyperparameterSearch hyperparameterSearch = HyperparameterSearch.getDefaultInstance();
+    // Names of the parameters the grid search selects
+    public static final String[] GRID_PARAMS = {"maxBins", "maxDepth", "subsamplingRate", "minWeightFractionPerNode"};
+    // Parameters a previous grid search selected for this cluster, null to search the grid
+    private HyperparameterRegistry.Entry tunedParameters = null;
+
     private RandomForestRegressor trained_rf;
 
     private RandomForestRegressionModel trained_rfModel;
 
+    private TreeEnsemble trained_rfEnsemble;
+
     double rmse = 0.0;
     private double r2 = 0.0;
 
@@ -117,6 +134,63 @@ public class RFRegressionExhaustiveModel {
         this.trained_rfModel = trained_rfModel;
     }
 
+    /**
+     * @return The model trained by trainLocally(), or null if the model was trained on Spark.
+     */
+    public TreeEnsemble getTrained_rfEnsemble() {
+        return trained_rfEnsemble;
+    }
+
+    /**
+     * @return The estimator configured with the selected parameters, which child models are trained with.
+     */
+    public RandomForestRegressor getBestEstimator() {
+        return trained_rfModel != null && trained_rfModel.parent() != null
+                ? (RandomForestRegressor) trained_rfModel.parent() : trained_rf;
+    }
+
+    /**
+     * Restores a model stored by an identical earlier request instead of training one.
+     */
+    public void restore(RandomForestRegressionModel storedModel, double rmse, double r2) {
+        this.trained_rfModel = storedModel;
+        this.trained_rf = ModelStore.estimatorOf(storedModel, new RandomForestRegressor());
+        this.trained_rfEnsemble = null;
+        this.rmse = rmse;
+        this.r2 = r2;
+    }
+
+    /**
+     * Restores a locally trained model stored by an identical earlier request instead of training one.
+     * @param storedModel A local model stored with the parameters it was trained with.
+     */
+    public void restore(ModelStore.LocalModel storedModel, double rmse, double r2) {
+        this.trained_rfModel = null;
+        this.trained_rf = storedModel.getParams().toRandomForestRegressor();
+        this.trained_rfEnsemble = storedModel.getEnsemble();
+        this.rmse = rmse;
+        this.r2 = r2;
+    }
+
+    /**
+     * @return The model trained by trainLocally() and its parameters, or null if the model was trained on Spark.
+     */
+    public ModelStore.LocalModel getLocalModel() {
+        return trained_rfEnsemble != null
+                ? new ModelStore.LocalModel(trained_rfEnsemble, TreeEnsembleParams.of(trained_rf)) : null;
+    }
+
+    public void setHyperparameterSearch(HyperparameterSearch hyperparameterSearch) {
+        this.hyperparameterSearch = hyperparameterSearch;
+    }
+
+    /**
+     * Sets the parameters a previous grid search selected, which are trained with once instead of searching the grid.
+     */
+    public void setTunedParameters(HyperparameterRegistry.Entry tunedParameters) {
+        this.tunedParameters = tunedParameters;
+    }
+
     public Double getMinInfoGain() {
         return minInfoGain;
     }
@@ -317,6 +391,12 @@ public class RFRegressionExhaustiveModel {
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("RF exhaustive " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
 
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
@@ -344,7 +424,7 @@ public class RFRegressionExhaustiveModel {
 
 
         Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit , 1.0d - trainSplit});
-        Dataset<Row> trainrdd = rds[0].persist(StorageLevel.MEMORY_ONLY());
+        Dataset<Row> trainrdd = scope.persist(rds[0], StorageLevel.MEMORY_ONLY());
         Dataset<Row> testrdd = rds[1];
 
         FancyLogger.write_out(fancy_logging("Data Manipulation completed in "+calc_interval(startTime)+" secs\nData Size: "+gisDataset.count()), filename);
@@ -359,10 +439,10 @@ public class RFRegressionExhaustiveModel {
         // With 3 values for tolerance, 3 values for regularization param, and 3 values for epsilon,
         // this grid will have 3 x 4 x 3 = 36 parameter settings for CrossValidator to choose from.
         ParamMap[] paramGrid = new ParamGridBuilder()
-                .addGrid(rf.maxBins(), new int[]{32, 50, 100})
-                .addGrid(rf.maxDepth(), new int[]{3, 4, 5})
-                .addGrid(rf.subsamplingRate(), new double[]{0.25, 0.5, 1.0})
-                .addGrid(rf.minWeightFractionPerNode(), new double[]{0.1, 0.25, 0.45})
+                .addGrid(rf.maxBins(), maxBinsGrid())
+                .addGrid(rf.maxDepth(), maxDepthGrid())
+                .addGrid(rf.subsamplingRate(), subsamplingRateGrid())
+                .addGrid(rf.minWeightFractionPerNode(), minWeightFractionPerNodeGrid())
                 .build();
 
         // Establish a Regression Evaluator for RMSE
@@ -373,21 +453,28 @@ public class RFRegressionExhaustiveModel {
         // A CrossValidator requires an Estimator, a set of Estimator ParamMaps, and an Evaluator.
         // Note that the evaluator here is a BinaryClassificationEvaluator and its default metric
         // is areaUnderROC.
-        CrossValidator crossValidator = new CrossValidator()
-                .setEstimator(rf)
-                .setEvaluator(evaluator)
-                .setEstimatorParamMaps(paramGrid)
-                .setNumFolds(3)     // Use 3+ in practice
-                .setParallelism(2);
-
-        CrossValidatorModel crossValidatorModel = crossValidator.fit(trainrdd);
-        RandomForestRegressionModel bestrfModel = (RandomForestRegressionModel) crossValidatorModel.bestModel();
+        RandomForestRegressionModel bestrfModel;
+        if (tunedParameters != null) {
+            bestrfModel = tunedParameters.applyTo(rf).fit(trainrdd);
+        } else if (SuccessiveHalving.isSelected(hyperparameterSearch)) {
+            bestrfModel = SuccessiveHalving.of(hyperparameterSearch).fit(rf, paramGrid, trainrdd, evaluator);
+        } else {
+            CrossValidator crossValidator = new CrossValidator()
+                    .setEstimator(rf)
+                    .setEvaluator(evaluator)
+                    .setEstimatorParamMaps(paramGrid)
+                    .setNumFolds(3)     // Use 3+ in practice
+                    .setParallelism(2);
+
+            CrossValidatorModel crossValidatorModel = crossValidator.fit(trainrdd);
+            bestrfModel = (RandomForestRegressionModel) crossValidatorModel.bestModel();
+        }
 
-        FancyLogger.write_out(fancy_logging("Exhaustive Model Training For "+gisJoin+" completed in "+calc_interval(startTime)), filename);
+        FancyLogger.write_out(fancy_logging("Exhaustive Model Training For "+gisJoin+(tunedParameters != null ? " With Stored Parameters" : "")+" completed in "+calc_interval(startTime)), filename);
 
         startTime = System.currentTimeMillis();
 
-        Dataset<Row> pred_pair = bestrfModel.transform(testrdd).select("label", "prediction").cache();
+        Dataset<Row> pred_pair = scope.cache(bestrfModel.transform(testrdd).select("label", "prediction"));
 
         RegressionMetrics metrics = new RegressionMetrics(pred_pair);
 
@@ -398,9 +485,85 @@ public class RFRegressionExhaustiveModel {
         logModelResults();
         this.trained_rf = rf;
         this.trained_rfModel = bestrfModel;
+        this.trained_rfEnsemble = null;
         return true;
     }
 
+    /**
+     * Trains the model in-process on data loaded through the MongoDB driver, with the same train/test split,
+     * parameter grid and search strategy as train(). Used for GISJoins too small to be worth Spark jobs.
+     */
+    public Boolean trainLocally(LocalDataset data) {
+        double startTime = System.currentTimeMillis();
+        FancyLogger.write_out(fancy_logging("Initiating Local Random Forest Modelling..."), filename);
+
+        if (data.numRows() == 0) {
+            log.info("Dataset for GISJoin {} is empty!", gisJoin);
+            return false;
+        }
+
+        Random random = new Random();
+        LocalDataset[] split = data.randomSplit(trainSplit, random);
+
+        RandomForestRegressor rf = new RandomForestRegressor().setFeaturesCol("features").setLabelCol("label");
+        ingestParameters(rf);
+        TreeEnsembleParams base = TreeEnsembleParams.of(rf);
+
+        List<TreeEnsembleParams> paramGrid = new ArrayList<>();
+        for (int maxBins: maxBinsGrid()) {
+            for (int maxDepth: maxDepthGrid()) {
+                for (double subsamplingRate: subsamplingRateGrid()) {
+                    for (double minWeightFractionPerNode: minWeightFractionPerNodeGrid()) {
+                        TreeEnsembleParams params = base.copy();
+                        params.maxBins = maxBins;
+                        params.maxDepth = maxDepth;
+                        params.subsamplingRate = subsamplingRate;
+                        params.minWeightFractionPerNode = minWeightFractionPerNode;
+                        paramGrid.add(params);
+                    }
+                }
+            }
+        }
+
+        TreeEnsembleParams bestParams;
+        if (tunedParameters != null) {
+            bestParams = TreeEnsembleParams.of(tunedParameters.applyTo(rf));
+        } else if (SuccessiveHalving.isSelected(hyperparameterSearch)) {
+            bestParams = SuccessiveHalving.of(hyperparameterSearch).selectBest(paramGrid, LocalRandomForest::new, split[0], random);
+        } else {
+            bestParams = LocalCrossValidator.selectBest(paramGrid, LocalRandomForest::new, split[0], 3, random);
+        }
+        TreeEnsemble bestModel = new LocalRandomForest(bestParams).fit(split[0], random);
+
+        FancyLogger.write_out(fancy_logging("Local Exhaustive Model Training For "+gisJoin+(tunedParameters != null ? " With Stored Parameters" : "")+" completed in "+calc_interval(startTime)), filename);
+
+        LocalRegressionMetrics metrics = new LocalRegressionMetrics(bestModel, split[1]);
+        this.rmse = metrics.rootMeanSquaredError();
+        this.r2 = metrics.r2();
+
+        logModelResults();
+        this.trained_rf = bestParams.toRandomForestRegressor();
+        this.trained_rfModel = null;
+        this.trained_rfEnsemble = bestModel;
+        return true;
+    }
+
+    private int[] maxBinsGrid() {
+        return SuccessiveHalving.intGrid(hyperparameterSearch.getMaxBinsList(), 32, 50, 100);
+    }
+
+    private int[] maxDepthGrid() {
+        return SuccessiveHalving.intGrid(hyperparameterSearch.getMaxDepthList(), 3, 4, 5);
+    }
+
+    private double[] subsamplingRateGrid() {
+        return SuccessiveHalving.doubleGrid(hyperparameterSearch.getSubsamplingRateList(), 0.25, 0.5, 1.0);
+    }
+
+    private double[] minWeightFractionPerNodeGrid() {
+        return SuccessiveHalving.doubleGrid(hyperparameterSearch.getMinWeightFractionPerNodeList(), 0.1, 0.25, 0.45);
+    }
+
     /**
      * Injecting user-defined parameters into model
      * @param rf - Random Forest Regression model Object
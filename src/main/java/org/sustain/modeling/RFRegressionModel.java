@@ -341,6 +341,12 @@ public class RFRegressionModel{
      * Creates Spark context and trains the distributed model
      */
     public Boolean train() {
+        try (CacheScope scope = CacheScope.open("RF " + gisJoin)) {
+            return train(scope);
+        }
+    }
+
+    private Boolean train(CacheScope scope) {
 
         //addClusterDependencyJars(sparkContext);
         double startTime = System.currentTimeMillis();
@@ -368,7 +374,7 @@ public class RFRegressionModel{
 
 
         Dataset<Row>[] rds = mergedDataset.randomSplit(new double[]{trainSplit , 1.0d - trainSplit});
-        Dataset<Row> trainrdd = rds[0].persist(StorageLevel.MEMORY_ONLY());
+        Dataset<Row> trainrdd = scope.persist(rds[0], StorageLevel.MEMORY_ONLY());
         Dataset<Row> testrdd = rds[1];
 
         fancy_logging("Data Manipulation completed in "+calc_interval(startTime)+" secs\nData Size: "+gisDataset.count());
@@ -384,7 +390,7 @@ public class RFRegressionModel{
         fancy_logging("Model Training completed in "+calc_interval(startTime));
         startTime = System.currentTimeMillis();
 
-        Dataset<Row> pred_pair = rmodel.transform(testrdd).select("label", "prediction").cache();
+        Dataset<Row> pred_pair = scope.cache(rmodel.transform(testrdd).select("label", "prediction"));
 
         RegressionMetrics metrics = new RegressionMetrics(pred_pair);
 
@@ -0,0 +1,143 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * RFTransfer.java -
+ *      Builds a child GISJoin's random forest from the parent's trees that fit the child's data,
+ *      plus a few replacement trees trained on the child's data.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.ml.evaluation.RegressionEvaluator;
+import org.apache.spark.ml.linalg.Vector;
+import org.apache.spark.ml.param.ParamMap;
+import org.apache.spark.ml.regression.DecisionTreeRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressor;
+import org.apache.spark.ml.util.Identifiable;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The parent's trees are ranked by their RMSE on a small sample of the child's training data. The best half
+ * is kept, and only as many replacement trees as were dropped are trained on the child's data, so the merged
+ * forest has as many trees as the parent's. While the merged forest's RMSE on the held-out split is not below
+ * the target, half as many parent trees are kept and more replacements are trained, down to an entirely new
+ * forest in the worst case.
+ */
+public class RFTransfer {
+
+    protected static final Logger log = LogManager.getLogger(RFTransfer.class);
+
+    // Rows of the child's training data the parent's trees are ranked on
+    private static final int SCORING_SAMPLE_ROWS = 2000;
+
+    private RandomForestRegressionModel model;
+    private double rmse, r2;
+    private int keptTrees, trainedTrees;
+
+    /**
+     * @param parentModel The parent's trained model.
+     * @param parameters The parent's estimator; replacement trees are trained with its parameters.
+     * @param train Child training data with "features" and "label" columns.
+     * @param test Child held-out data with "features" and "label" columns.
+     * @param targetRmse RMSE on the held-out data at which no more parent trees are dropped.
+     */
+    public RFTransfer fit(RandomForestRegressionModel parentModel, RandomForestRegressor parameters,
+                          Dataset<Row> train, Dataset<Row> test, double targetRmse) {
+        DecisionTreeRegressionModel[] parentTrees = parentModel.trees();
+        int numTrees = parentTrees.length;
+        Integer[] order = rankTrees(parentTrees, train.select("features", "label").limit(SCORING_SAMPLE_ROWS)
+                .collectAsList());
+
+        RandomForestRegressor replacementLearner = parameters.copy(new ParamMap());
+        if ("auto".equalsIgnoreCase(parameters.getFeatureSubsetStrategy()) && numTrees > 1) {
+            // Keeps the per-node feature sampling of the parent's forest, even for a single replacement
+            replacementLearner.setFeatureSubsetStrategy("onethird");
+        }
+
+        List<DecisionTreeRegressionModel> replacements = new ArrayList<>();
+        this.keptTrees = (int) Math.round(numTrees * 0.5);
+        while (true) {
+            int needed = numTrees - keptTrees - replacements.size();
+            if (needed > 0) {
+                replacements.addAll(Arrays.asList(replacementLearner.setNumTrees(needed).fit(train).trees()));
+            }
+
+            List<DecisionTreeRegressionModel> trees = new ArrayList<>();
+            for (int k = 0; k < keptTrees; k++) {
+                trees.add(parentTrees[order[k]]);
+            }
+            trees.addAll(replacements);
+            this.model = new RandomForestRegressionModel(Identifiable.randomUID("rfr"),
+                    trees.toArray(new DecisionTreeRegressionModel[0]), parentModel.numFeatures());
+            evaluate(model.transform(test));
+            log.info("Forest transfer kept {} parent trees and trained {}: RMSE {}, target: {}",
+                    keptTrees, replacements.size(), rmse, targetRmse);
+
+            if (keptTrees == 0 || rmse < targetRmse) {
+                break;
+            }
+            keptTrees /= 2;
+        }
+        this.trainedTrees = replacements.size();
+        return this;
+    }
+
+    /**
+     * @return Tree indices, from the lowest to the highest RMSE on the sample.
+     */
+    private static Integer[] rankTrees(DecisionTreeRegressionModel[] trees, List<Row> sample) {
+        double[] squaredErrors = new double[trees.length];
+        Integer[] order = new Integer[trees.length];
+        for (int t = 0; t < trees.length; t++) {
+            order[t] = t;
+            for (Row row: sample) {
+                double error = ((Number) row.get(1)).doubleValue() - trees[t].predict((Vector) row.get(0));
+                squaredErrors[t] += error * error;
+            }
+        }
+        Arrays.sort(order, Comparator.comparingDouble(t -> squaredErrors[t]));
+        return order;
+    }
+
+    private void evaluate(Dataset<Row> predictions) {
+        RegressionEvaluator evaluator = new RegressionEvaluator();
+        this.rmse = evaluator.setMetricName("rmse").evaluate(predictions);
+        this.r2 = evaluator.setMetricName("r2").evaluate(predictions);
+    }
+
+    /**
+     * @return The kept parent trees followed by the replacement trees.
+     */
+    public RandomForestRegressionModel getModel() {
+        return model;
+    }
+
+    public double getRmse() {
+        return rmse;
+    }
+
+    public double getR2() {
+        return r2;
+    }
+
+    /**
+     * @return Number of the parent's trees in the merged forest.
+     */
+    public int getKeptTrees() {
+        return keptTrees;
+    }
+
+    /**
+     * @return Number of trees trained on the child's data.
+     */
+    public int getTrainedTrees() {
+        return trainedTrees;
+    }
+}
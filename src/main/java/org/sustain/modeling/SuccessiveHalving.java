@@ -0,0 +1,210 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * SuccessiveHalving.java -
+ *      Successive-halving hyperparameter search, an alternative to exhaustive k-fold
+ *      cross-validation for the exhaustive ensemble models.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.ml.Estimator;
+import org.apache.spark.ml.Model;
+import org.apache.spark.ml.evaluation.Evaluator;
+import org.apache.spark.ml.param.ParamMap;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.sustain.HyperparameterSearch;
+import org.sustain.modeling.local.LocalDataset;
+import org.sustain.modeling.local.LocalRegressionMetrics;
+import org.sustain.modeling.local.LocalRegressor;
+import org.sustain.modeling.local.TreeEnsembleParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Every candidate is trained on a small sample of the training data and scored on a shared validation split.
+ * Only the best 1/reductionFactor of the candidates are promoted to the next rung, which trains on a
+ * reductionFactor times larger sample, until a single candidate remains. By default the first sample
+ * is sized so the last rung uses all the data. An 81-point grid with a reduction factor of 3 then costs
+ * about 12 full-data fits, instead of the 243 of a 3-fold cross-validation.
+ */
+public class SuccessiveHalving {
+
+    protected static final Logger log = LogManager.getLogger(SuccessiveHalving.class);
+
+    public static final String STRATEGY = "successiveHalving";
+
+    // Share of the training data held out to score the candidates of every rung
+    private static final double VALIDATION_FRACTION = 0.2;
+
+    private final int    reductionFactor;
+    private final double minSampleFraction;
+    private final int    parallelism;
+
+    /**
+     * @param reductionFactor Keeps 1/reductionFactor of the candidates per rung, and grows the sample by as much.
+     * @param minSampleFraction Sample fraction of the first rung, or 0 to size it so the last rung uses all data.
+     * @param parallelism Number of candidates trained at once within a rung.
+     */
+    public SuccessiveHalving(int reductionFactor, double minSampleFraction, int parallelism) {
+        this.reductionFactor = reductionFactor;
+        this.minSampleFraction = minSampleFraction;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return true if the request asks for successive halving instead of exhaustive cross-validation.
+     */
+    public static boolean isSelected(HyperparameterSearch search) {
+        return STRATEGY.equals(search.getStrategy());
+    }
+
+    public static SuccessiveHalving of(HyperparameterSearch search) {
+        int reductionFactor = search.getReductionFactor() >= 2 ? search.getReductionFactor() : 3;
+        double minSampleFraction = search.getMinSampleFraction() > 0.0 && search.getMinSampleFraction() <= 1.0
+            ? search.getMinSampleFraction() : 0.0;
+        return new SuccessiveHalving(reductionFactor, minSampleFraction, 2);
+    }
+
+    /**
+     * Searches the grid with Spark and fits the winning candidate on all of the training data.
+     * @param estimator The estimator, with the user's parameters already set.
+     * @param grid Candidate parameters.
+     * @param training Training data.
+     * @param evaluator Scores a candidate's predictions on the validation split.
+     * @return The winning candidate's model; its parent is the estimator configured with the winning parameters.
+     */
+    public <M extends Model<M>> M fit(Estimator<M> estimator, ParamMap[] grid, Dataset<Row> training,
+                                      Evaluator evaluator) {
+        Dataset<Row>[] split = training.randomSplit(new double[]{1.0 - VALIDATION_FRACTION, VALIDATION_FRACTION});
+        int numRungs = numRungs(grid.length);
+        List<ParamMap> candidates = new ArrayList<>(Arrays.asList(grid));
+
+        // Threads created here inherit this thread's Spark job group and scheduler pool
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (CacheScope scope = CacheScope.open("successive halving")) {
+            Dataset<Row> validation = scope.cache(split[1]);
+            for (int rung = 0; candidates.size() > 1; rung++) {
+                double fraction = sampleFraction(rung, numRungs);
+                Dataset<Row> sample = scope.cache(fraction < 1.0 ? split[0].sample(fraction) : split[0]);
+
+                List<Future<Double>> futures = new ArrayList<>();
+                for (ParamMap candidate: candidates) {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            return evaluator.evaluate(estimator.fit(sample, candidate).transform(validation));
+                        } catch (RuntimeException e) {
+                            log.warn("Candidate {} failed on a {} sample: {}", candidate, fraction, e.getMessage());
+                            return evaluator.isLargerBetter() ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+                        }
+                    }));
+                }
+                double[] metrics = new double[candidates.size()];
+                for (int i = 0; i < metrics.length; i++) {
+                    metrics[i] = futures.get(i).get();
+                }
+                scope.release(sample);
+
+                candidates = promote(candidates, metrics, evaluator.isLargerBetter());
+                log.info("Successive halving rung {} trained on a {} sample, {} candidates promoted",
+                    rung, fraction, candidates.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Successive halving interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Successive halving failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Successive halving selected {}", candidates.get(0));
+        return estimator.fit(training, candidates.get(0));
+    }
+
+    /**
+     * Searches the grid in the calling thread, for GISJoins trained in-process.
+     * @param grid Candidate parameters.
+     * @param learner Creates the learner for a set of candidate parameters.
+     * @param training Training data.
+     * @return The winning parameters.
+     */
+    public TreeEnsembleParams selectBest(List<TreeEnsembleParams> grid,
+                                         Function<TreeEnsembleParams, LocalRegressor> learner,
+                                         LocalDataset training, Random random) {
+        LocalDataset[] split = training.randomSplit(1.0 - VALIDATION_FRACTION, random);
+        int numRungs = numRungs(grid.size());
+        List<TreeEnsembleParams> candidates = new ArrayList<>(grid);
+
+        for (int rung = 0; candidates.size() > 1; rung++) {
+            double fraction = sampleFraction(rung, numRungs);
+            LocalDataset sample = fraction < 1.0 ? split[0].sample(fraction, random) : split[0];
+
+            double[] metrics = new double[candidates.size()];
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = sample.numRows() == 0 || split[1].numRows() == 0
+                    ? Double.POSITIVE_INFINITY
+                    : new LocalRegressionMetrics(learner.apply(candidates.get(i)).fit(sample, random), split[1])
+                        .rootMeanSquaredError();
+            }
+            candidates = promote(candidates, metrics, false);
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * @return The requested grid values, or the defaults if none were requested.
+     */
+    static int[] intGrid(List<Integer> values, int... defaults) {
+        return values.isEmpty() ? defaults : values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static double[] doubleGrid(List<Double> values, double... defaults) {
+        return values.isEmpty() ? defaults : values.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * @return Number of rungs needed to narrow numCandidates down to one.
+     */
+    int numRungs(int numCandidates) {
+        int rungs = 0;
+        for (int remaining = numCandidates; remaining > 1; remaining = keep(remaining)) {
+            rungs++;
+        }
+        return Math.max(rungs, 1);
+    }
+
+    double sampleFraction(int rung, int numRungs) {
+        double first = minSampleFraction > 0.0 ? minSampleFraction : Math.pow(reductionFactor, -(numRungs - 1));
+        return Math.min(1.0, first * Math.pow(reductionFactor, rung));
+    }
+
+    private int keep(int numCandidates) {
+        return Math.max(1, (int) Math.ceil((double) numCandidates / reductionFactor));
+    }
+
+    private <P> List<P> promote(List<P> candidates, double[] metrics, boolean largerIsBetter) {
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Comparator<Integer> byMetric = Comparator.comparingDouble(i -> metrics[i]);
+        Arrays.sort(order, largerIsBetter ? byMetric.reversed() : byMetric);
+
+        List<P> promoted = new ArrayList<>();
+        for (int i = 0; i < keep(candidates.size()); i++) {
+            promoted.add(candidates.get(order[i]));
+        }
+        return promoted;
+    }
+}
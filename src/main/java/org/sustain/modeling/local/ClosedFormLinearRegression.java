@@ -0,0 +1,115 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * ClosedFormLinearRegression.java -
+ *      Fits a linear regression per GISJoin from sufficient statistics computed by one
+ *      Spark SQL aggregation, solving each GISJoin's normal equations on the driver.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.sum;
+
+/**
+ * Computes n, sum(x), sum(y), sum(x x^T), sum(x y) and sum(y^2) for every GISJoin in a single
+ * groupBy().agg() over the collection. The aggregation is partially combined map-side, so only
+ * one small row per GISJoin and partition is shuffled, and no rows are held in memory per group.
+ * Supports the same configurations as GroupedLinearRegression.
+ */
+public class ClosedFormLinearRegression {
+
+    private static final Logger log = LogManager.getLogger(ClosedFormLinearRegression.class);
+
+    private final List<String> features;
+    private final String       label;
+    private final double       regParam;
+    private final boolean      fitIntercept, standardization;
+
+    public ClosedFormLinearRegression(List<String> features, String label, double regParam, boolean fitIntercept,
+                                      boolean standardization) {
+        this.features = features;
+        this.label = label;
+        this.regParam = regParam;
+        this.fitIntercept = fitIntercept;
+        this.standardization = standardization;
+    }
+
+    /**
+     * Fits one model per GISJoin present in the collection.
+     * @param collection Documents with the GISJoin, feature and label columns.
+     * @param gisJoinField Name of the GISJoin column.
+     * @return One fit per GISJoin that had at least one complete row and a solvable system.
+     */
+    public List<LinearRegressionFit> fitAll(Dataset<Row> collection, String gisJoinField) {
+        int p = features.size();
+
+        List<String> columns = new ArrayList<>(features);
+        columns.add(label);
+        Dataset<Row> complete = collection.na().drop(columns.toArray(new String[0]));
+
+        Column y = col(label).cast("double");
+        Column[] x = new Column[p];
+        for (int j = 0; j < p; j++) {
+            x[j] = col(features.get(j)).cast("double");
+        }
+
+        // Aggregate column order: n, sum(y), sum(y^2), sum(x_j), sum(x_j y), sum(x_j x_k)
+        List<Column> aggregates = new ArrayList<>();
+        aggregates.add(sum(y).as("sum_y"));
+        aggregates.add(sum(y.multiply(y)).as("sum_yy"));
+        for (int j = 0; j < p; j++) {
+            aggregates.add(sum(x[j]).as("sum_x" + j));
+        }
+        for (int j = 0; j < p; j++) {
+            aggregates.add(sum(x[j].multiply(y)).as("sum_xy" + j));
+        }
+        for (int j = 0; j < p; j++) {
+            for (int k = 0; k < p; k++) {
+                aggregates.add(sum(x[j].multiply(x[k])).as("sum_xx" + j + "_" + k));
+            }
+        }
+
+        List<Row> sums = complete.groupBy(col(gisJoinField))
+            .agg(count(lit(1)).as("n"), aggregates.toArray(new Column[0]))
+            .collectAsList();
+
+        List<LinearRegressionFit> fits = new ArrayList<>();
+        for (Row row: sums) {
+            String gisJoin = row.getString(0);
+            int i = 1;
+            long n = row.getLong(i++);
+            double sumY = row.getDouble(i++);
+            double sumYY = row.getDouble(i++);
+            double[] sumX = new double[p];
+            double[] sumXY = new double[p];
+            double[] sumXX = new double[p * p];
+            for (int j = 0; j < p; j++) {
+                sumX[j] = row.getDouble(i++);
+            }
+            for (int j = 0; j < p; j++) {
+                sumXY[j] = row.getDouble(i++);
+            }
+            for (int jk = 0; jk < p * p; jk++) {
+                sumXX[jk] = row.getDouble(i++);
+            }
+
+            try {
+                fits.add(LinearRegressionStatistics.of(n, sumY, sumYY, sumX, sumXY, sumXX)
+                    .solve(gisJoin, regParam, fitIntercept, standardization));
+            } catch (IllegalStateException e) {
+                log.warn("Unable to fit GISJoin {}: {}", gisJoin, e.getMessage());
+            }
+        }
+        return fits;
+    }
+}
@@ -0,0 +1,110 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * GroupedLinearRegression.java -
+ *      Trains one linear regression model per GISJoin inside a single Spark job, with each
+ *      GISJoin's model fit locally on the executor that holds its rows.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.api.java.function.FlatMapGroupsFunction;
+import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Groups a batch of documents by GISJoin and fits every group's model with LinearRegressionStatistics,
+ * replacing a count() and a LinearRegression.fit() job per GISJoin with one shuffle and one result stage.
+ * Only the normal-equation solver and the squaredError loss with an L2 (or no) penalty are supported, see
+ * isSupported().
+ */
+public class GroupedLinearRegression implements FlatMapGroupsFunction<String, Row, LinearRegressionFit> {
+
+    private static final Logger log = LogManager.getLogger(GroupedLinearRegression.class);
+
+    private final List<String> features;
+    private final String       label;
+    private final double       regParam;
+    private final boolean      fitIntercept, standardization;
+
+    public GroupedLinearRegression(List<String> features, String label, double regParam, boolean fitIntercept,
+                                   boolean standardization) {
+        this.features = features;
+        this.label = label;
+        this.regParam = regParam;
+        this.fitIntercept = fitIntercept;
+        this.standardization = standardization;
+    }
+
+    /**
+     * @return true if the closed-form solution is the one Spark ML would produce for these parameters.
+     */
+    public static boolean isSupported(String solver, String loss, double elasticNetParam, double regParam) {
+        return ("auto".equals(solver) || "normal".equals(solver))
+                && "squaredError".equals(loss) && (elasticNetParam == 0.0 || regParam == 0.0);
+    }
+
+    /**
+     * Fits one model per GISJoin present in the collection.
+     * @param collection Documents of the batch, with the GISJoin, feature and label columns.
+     * @param gisJoinField Name of the GISJoin column.
+     * @return One fit per GISJoin that had at least one complete row and a solvable system.
+     */
+    public List<LinearRegressionFit> fitAll(Dataset<Row> collection, String gisJoinField) {
+        return collection
+            .groupByKey((MapFunction<Row, String>) row -> row.getAs(gisJoinField), Encoders.STRING())
+            .flatMapGroups(this, Encoders.bean(LinearRegressionFit.class))
+            .collectAsList();
+    }
+
+    @Override
+    public Iterator<LinearRegressionFit> call(String gisJoin, Iterator<Row> rows) {
+        int[] featureIndices = null;
+        int labelIndex = -1;
+        double[] x = new double[features.size()];
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(features.size());
+
+        rows:
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (featureIndices == null) {
+                featureIndices = new int[features.size()];
+                for (int j = 0; j < featureIndices.length; j++) {
+                    featureIndices[j] = row.fieldIndex(features.get(j));
+                }
+                labelIndex = row.fieldIndex(label);
+            }
+
+            // Documents missing a value can't be assembled into a feature vector, skip them
+            for (int j = 0; j < featureIndices.length; j++) {
+                if (row.isNullAt(featureIndices[j])) {
+                    continue rows;
+                }
+                x[j] = ((Number) row.get(featureIndices[j])).doubleValue();
+            }
+            if (row.isNullAt(labelIndex)) {
+                continue;
+            }
+            statistics.add(x, ((Number) row.get(labelIndex)).doubleValue());
+        }
+
+        if (statistics.getCount() == 0) {
+            log.info(">>> Dataset for GISJoin {} is empty!", gisJoin);
+            return Collections.emptyIterator();
+        }
+
+        try {
+            return Collections.singletonList(
+                statistics.solve(gisJoin, regParam, fitIntercept, standardization)).iterator();
+        } catch (IllegalStateException e) {
+            log.warn("Unable to fit GISJoin {}: {}", gisJoin, e.getMessage());
+            return Collections.emptyIterator();
+        }
+    }
+}
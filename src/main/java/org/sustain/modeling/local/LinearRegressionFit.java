@@ -0,0 +1,65 @@
+package org.sustain.modeling.local;
+
+import java.io.Serializable;
+
+/**
+ * Result of fitting a linear regression for one GISJoin outside of Spark ML. A plain Java bean,
+ * so it can be returned from executors with Encoders.bean().
+ */
+public class LinearRegressionFit implements Serializable {
+
+    private String   gisJoin;
+    private long     count;
+    private double   intercept, rmse, r2;
+    private double[] coefficients;
+
+    public LinearRegressionFit() {}
+
+    public String getGisJoin() {
+        return gisJoin;
+    }
+
+    public void setGisJoin(String gisJoin) {
+        this.gisJoin = gisJoin;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public double getIntercept() {
+        return intercept;
+    }
+
+    public void setIntercept(double intercept) {
+        this.intercept = intercept;
+    }
+
+    public double getRmse() {
+        return rmse;
+    }
+
+    public void setRmse(double rmse) {
+        this.rmse = rmse;
+    }
+
+    public double getR2() {
+        return r2;
+    }
+
+    public void setR2(double r2) {
+        this.r2 = r2;
+    }
+
+    public double[] getCoefficients() {
+        return coefficients;
+    }
+
+    public void setCoefficients(double[] coefficients) {
+        this.coefficients = coefficients;
+    }
+}
@@ -0,0 +1,228 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * LinearRegressionStatistics.java -
+ *      Sufficient statistics of a least-squares linear regression, accumulated one observation
+ *      at a time and solved in closed form without another pass over the data.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import java.io.Serializable;
+
+/**
+ * Holds n, sum(x), sum(y), sum(x x^T), sum(x y) and sum(y^2) for a single GISJoin. Two instances
+ * can be merged, so the statistics may be built row by row on an executor or combined across partitions.
+ *
+ * The solution matches Spark's normal-equation solver ("normal", and "auto" whenever no L1 penalty
+ * is in use) for the squaredError loss with an L2 penalty: the label is standardized so the effective
+ * penalty is regParam / std(y), and with standardization enabled each coefficient is penalized in the
+ * scale of its feature.
+ */
+public class LinearRegressionStatistics implements Serializable {
+
+    private final int numFeatures;
+    private long count;
+    private double sumY, sumYY;
+    private final double[] sumX, sumXY;
+    private final double[] sumXX; // row-major numFeatures x numFeatures
+
+    public LinearRegressionStatistics(int numFeatures) {
+        this.numFeatures = numFeatures;
+        this.sumX = new double[numFeatures];
+        this.sumXY = new double[numFeatures];
+        this.sumXX = new double[numFeatures * numFeatures];
+    }
+
+    /**
+     * Rebuilds statistics from sums that were aggregated elsewhere, e.g. by a Spark SQL groupBy.
+     * @param sumXX Row-major numFeatures x numFeatures sums of feature products.
+     */
+    public static LinearRegressionStatistics of(long count, double sumY, double sumYY, double[] sumX,
+                                                double[] sumXY, double[] sumXX) {
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(sumX.length);
+        statistics.count = count;
+        statistics.sumY = sumY;
+        statistics.sumYY = sumYY;
+        System.arraycopy(sumX, 0, statistics.sumX, 0, sumX.length);
+        System.arraycopy(sumXY, 0, statistics.sumXY, 0, sumXY.length);
+        System.arraycopy(sumXX, 0, statistics.sumXX, 0, sumXX.length);
+        return statistics;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * Adds a single observation.
+     * @param x Feature values, of length numFeatures.
+     * @param y Label value.
+     */
+    public LinearRegressionStatistics add(double[] x, double y) {
+        return add(x, 0, y);
+    }
+
+    /**
+     * Adds a single observation whose feature values start at offset, e.g. a row of a LocalDataset.
+     */
+    public LinearRegressionStatistics add(double[] x, int offset, double y) {
+        this.count++;
+        this.sumY += y;
+        this.sumYY += y * y;
+        for (int j = 0; j < numFeatures; j++) {
+            double xj = x[offset + j];
+            this.sumX[j] += xj;
+            this.sumXY[j] += xj * y;
+            for (int k = 0; k < numFeatures; k++) {
+                this.sumXX[j * numFeatures + k] += xj * x[offset + k];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds all observations summarized by another instance into this one.
+     */
+    public LinearRegressionStatistics merge(LinearRegressionStatistics other) {
+        this.count += other.count;
+        this.sumY += other.sumY;
+        this.sumYY += other.sumYY;
+        for (int j = 0; j < numFeatures; j++) {
+            this.sumX[j] += other.sumX[j];
+            this.sumXY[j] += other.sumXY[j];
+        }
+        for (int i = 0; i < sumXX.length; i++) {
+            this.sumXX[i] += other.sumXX[i];
+        }
+        return this;
+    }
+
+    /**
+     * Solves the regularized normal equations and evaluates the fit on the same statistics.
+     * @param gisJoin GISJoin the statistics were collected for.
+     * @param regParam L2 regularization parameter.
+     * @param fitIntercept Whether to fit an intercept term.
+     * @param standardization Whether to penalize coefficients in the scale of their features.
+     * @return The fitted coefficients, intercept, RMSE and R2.
+     */
+    public LinearRegressionFit solve(String gisJoin, double regParam, boolean fitIntercept, boolean standardization) {
+        if (this.count == 0) {
+            throw new IllegalStateException(String.format("No observations for GISJoin %s", gisJoin));
+        }
+
+        int p = numFeatures;
+        double n = this.count;
+        double meanY = sumY / n;
+        double stdY = Math.sqrt(Math.max(sumYY / n - meanY * meanY, 0.0));
+
+        double[] meanX = new double[p];
+        double[] stdX = new double[p];
+        for (int j = 0; j < p; j++) {
+            meanX[j] = sumX[j] / n;
+            stdX[j] = Math.sqrt(Math.max(sumXX[j * p + j] / n - meanX[j] * meanX[j], 0.0));
+        }
+
+        double[] coefficients = new double[p];
+        double intercept = 0.0;
+
+        if (stdY == 0.0 && fitIntercept) {
+            // Constant label: Spark returns all-zero coefficients and the mean as intercept
+            intercept = meanY;
+        } else {
+            double effectiveRegParam = stdY > 0.0 ? regParam / stdY : regParam;
+            double[][] a = new double[p][p];
+            double[] c = new double[p];
+            for (int j = 0; j < p; j++) {
+                for (int k = 0; k < p; k++) {
+                    a[j][k] = sumXX[j * p + k] / n - (fitIntercept ? meanX[j] * meanX[k] : 0.0);
+                }
+                c[j] = sumXY[j] / n - (fitIntercept ? meanX[j] * meanY : 0.0);
+
+                if (fitIntercept && stdX[j] == 0.0) {
+                    // Constant feature: it is absorbed by the intercept and keeps a zero coefficient
+                    for (int k = 0; k < p; k++) {
+                        a[j][k] = 0.0;
+                        a[k][j] = 0.0;
+                    }
+                    a[j][j] = 1.0;
+                    c[j] = 0.0;
+                } else {
+                    a[j][j] += standardization ? effectiveRegParam * stdX[j] * stdX[j] : effectiveRegParam;
+                }
+            }
+
+            coefficients = solveLinearSystem(a, c, gisJoin);
+            if (fitIntercept) {
+                intercept = meanY;
+                for (int j = 0; j < p; j++) {
+                    intercept -= coefficients[j] * meanX[j];
+                }
+            }
+        }
+
+        // Sum of squared residuals, expanded in terms of the accumulated sums
+        double sse = sumYY - 2 * intercept * sumY + n * intercept * intercept;
+        for (int j = 0; j < p; j++) {
+            sse += -2 * coefficients[j] * sumXY[j] + 2 * intercept * coefficients[j] * sumX[j];
+            for (int k = 0; k < p; k++) {
+                sse += coefficients[j] * coefficients[k] * sumXX[j * p + k];
+            }
+        }
+        sse = Math.max(sse, 0.0);
+
+        // Same definition as Spark's RegressionMetrics: regression through the origin when there is no intercept
+        double sst = fitIntercept ? sumYY - n * meanY * meanY : sumYY;
+
+        LinearRegressionFit fit = new LinearRegressionFit();
+        fit.setGisJoin(gisJoin);
+        fit.setCount(this.count);
+        fit.setIntercept(intercept);
+        fit.setCoefficients(coefficients);
+        fit.setRmse(Math.sqrt(sse / n));
+        fit.setR2(sst > 0.0 ? 1.0 - sse / sst : Double.NaN);
+        return fit;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting; the systems here are numFeatures x numFeatures.
+     */
+    private static double[] solveLinearSystem(double[][] a, double[] b, String gisJoin) {
+        int p = b.length;
+        for (int col = 0; col < p; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < p; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1E-12) {
+                throw new IllegalStateException(String.format(
+                    "Normal equations for GISJoin %s are singular, features are collinear", gisJoin));
+            }
+
+            double[] tmpRow = a[col]; a[col] = a[pivot]; a[pivot] = tmpRow;
+            double tmp = b[col]; b[col] = b[pivot]; b[pivot] = tmp;
+
+            for (int row = col + 1; row < p; row++) {
+                double factor = a[row][col] / a[col][col];
+                b[row] -= factor * b[col];
+                for (int k = col; k < p; k++) {
+                    a[row][k] -= factor * a[col][k];
+                }
+            }
+        }
+
+        double[] x = new double[p];
+        for (int row = p - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < p; k++) {
+                sum -= a[row][k] * x[k];
+            }
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,74 @@
+package org.sustain.modeling.local;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * k-fold cross-validation over a parameter grid in the calling thread, selecting the parameters with
+ * the lowest mean RMSE, like CrossValidator with a RegressionEvaluator("rmse").
+ */
+public class LocalCrossValidator {
+
+    private static final Logger log = LogManager.getLogger(LocalCrossValidator.class);
+
+    /**
+     * @param grid Candidate parameters.
+     * @param learner Creates the learner for a set of candidate parameters.
+     * @param data Training data to split into folds.
+     * @param numFolds Number of folds.
+     * @return The candidate with the lowest mean validation RMSE.
+     */
+    public static TreeEnsembleParams selectBest(List<TreeEnsembleParams> grid,
+                                                Function<TreeEnsembleParams, LocalRegressor> learner,
+                                                LocalDataset data, int numFolds, Random random) {
+        int n = data.numRows();
+        int[] fold = new int[n];
+        for (int i = 0; i < n; i++) {
+            fold[i] = random.nextInt(numFolds);
+        }
+
+        LocalDataset[] training = new LocalDataset[numFolds];
+        LocalDataset[] validation = new LocalDataset[numFolds];
+        for (int k = 0; k < numFolds; k++) {
+            int[] trainRows = new int[n], validationRows = new int[n];
+            int trainCount = 0, validationCount = 0;
+            for (int i = 0; i < n; i++) {
+                if (fold[i] == k) {
+                    validationRows[validationCount++] = i;
+                } else {
+                    trainRows[trainCount++] = i;
+                }
+            }
+            training[k] = data.select(Arrays.copyOf(trainRows, trainCount));
+            validation[k] = data.select(Arrays.copyOf(validationRows, validationCount));
+        }
+
+        TreeEnsembleParams best = grid.get(0);
+        double bestRmse = Double.POSITIVE_INFINITY;
+        for (TreeEnsembleParams params: grid) {
+            double rmseSum = 0.0;
+            int folds = 0;
+            for (int k = 0; k < numFolds; k++) {
+                if (training[k].numRows() == 0 || validation[k].numRows() == 0) {
+                    continue;
+                }
+                TreeEnsemble model = learner.apply(params).fit(training[k], random);
+                rmseSum += new LocalRegressionMetrics(model, validation[k]).rootMeanSquaredError();
+                folds++;
+            }
+            double meanRmse = folds > 0 ? rmseSum / folds : Double.POSITIVE_INFINITY;
+            if (meanRmse < bestRmse) {
+                bestRmse = meanRmse;
+                best = params;
+            }
+        }
+
+        log.info("Selected parameters out of {} candidates with cross-validated RMSE {}: {}", grid.size(), bestRmse, best);
+        return best;
+    }
+}
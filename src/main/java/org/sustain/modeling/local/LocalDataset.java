@@ -0,0 +1,177 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * LocalDataset.java -
+ *      A single GISJoin's training data held in primitive arrays on the driver, for models
+ *      that are small enough to be trained without Spark.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.sustain.mongodb.DBConnection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feature rows are stored row-major in one contiguous double[], labels in a second double[].
+ */
+public class LocalDataset {
+
+    private static final Logger log = LogManager.getLogger(LocalDataset.class);
+
+    private final int      numRows, numFeatures;
+    private final double[] features;
+    private final double[] labels;
+
+    public LocalDataset(double[] features, double[] labels, int numFeatures) {
+        this.numRows = labels.length;
+        this.numFeatures = numFeatures;
+        this.features = features;
+        this.labels = labels;
+    }
+
+    /**
+     * Reads one GISJoin's documents through the MongoDB driver, skipping documents with a missing
+     * or non-numeric feature or label, as Spark's VectorAssembler would reject them.
+     * @param collection Name of the collection.
+     * @param gisJoinField Name of the GISJoin field in the collection.
+     * @param gisJoin GISJoin to load.
+     * @param featureNames Feature fields, in model order.
+     * @param label Label field.
+     * @return The loaded dataset, possibly empty.
+     */
+    public static LocalDataset load(String collection, String gisJoinField, String gisJoin,
+                                    List<String> featureNames, String label) {
+        List<String> fields = new ArrayList<>(featureNames);
+        fields.add(label);
+
+        int p = featureNames.size();
+        double[] features = new double[1024 * p];
+        double[] labels = new double[1024];
+        int n = 0;
+
+        long startTime = System.currentTimeMillis();
+        documents:
+        for (Document document: DBConnection.getConnection().getCollection(collection)
+                .find(Filters.eq(gisJoinField, gisJoin))
+                .projection(Projections.include(fields))
+                .batchSize(4096)) {
+            if (n == labels.length) {
+                labels = Arrays.copyOf(labels, n * 2);
+                features = Arrays.copyOf(features, n * 2 * p);
+            }
+            for (int j = 0; j < p; j++) {
+                Object value = document.get(featureNames.get(j));
+                if (!(value instanceof Number)) {
+                    continue documents;
+                }
+                features[n * p + j] = ((Number) value).doubleValue();
+            }
+            Object value = document.get(label);
+            if (!(value instanceof Number)) {
+                continue;
+            }
+            labels[n++] = ((Number) value).doubleValue();
+        }
+
+        log.info("Loaded {} rows for GISJoin {} from {} in {} ms", n, gisJoin, collection,
+            System.currentTimeMillis() - startTime);
+        return new LocalDataset(Arrays.copyOf(features, n * p), Arrays.copyOf(labels, n), p);
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * @return The row-major feature matrix; row i starts at offset i * numFeatures().
+     */
+    public double[] features() {
+        return features;
+    }
+
+    public double[] labels() {
+        return labels;
+    }
+
+    public double feature(int row, int feature) {
+        return features[row * numFeatures + feature];
+    }
+
+    /**
+     * @return A new dataset with the given rows, in the given order.
+     */
+    public LocalDataset select(int[] rows) {
+        double[] selectedFeatures = new double[rows.length * numFeatures];
+        double[] selectedLabels = new double[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(features, rows[i] * numFeatures, selectedFeatures, i * numFeatures, numFeatures);
+            selectedLabels[i] = labels[rows[i]];
+        }
+        return new LocalDataset(selectedFeatures, selectedLabels, numFeatures);
+    }
+
+    /**
+     * Bernoulli sample without replacement, like Dataset.sample(fraction).
+     */
+    public LocalDataset sample(double fraction, Random random) {
+        return randomSplit(fraction, random)[0];
+    }
+
+    /**
+     * Draws one uniform key per row, for nested samples drawn with sample(keys, fraction).
+     */
+    public double[] sampleKeys(Random random) {
+        double[] keys = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            keys[i] = random.nextDouble();
+        }
+        return keys;
+    }
+
+    /**
+     * @return The rows keyed below fraction. With the same keys, the sample of a larger fraction is a superset
+     * of the sample of a smaller one.
+     */
+    public LocalDataset sample(double[] keys, double fraction) {
+        int[] rows = new int[numRows];
+        int count = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (keys[i] < fraction) {
+                rows[count++] = i;
+            }
+        }
+        return select(Arrays.copyOf(rows, count));
+    }
+
+    /**
+     * Splits rows into two datasets, each row going to the first with probability fraction,
+     * like Dataset.randomSplit(new double[]{fraction, 1 - fraction}).
+     */
+    public LocalDataset[] randomSplit(double fraction, Random random) {
+        int[] first = new int[numRows];
+        int[] second = new int[numRows];
+        int firstCount = 0, secondCount = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (random.nextDouble() < fraction) {
+                first[firstCount++] = i;
+            } else {
+                second[secondCount++] = i;
+            }
+        }
+        return new LocalDataset[]{
+            select(Arrays.copyOf(first, firstCount)),
+            select(Arrays.copyOf(second, secondCount))
+        };
+    }
+}
@@ -0,0 +1,173 @@
+package org.sustain.modeling.local;
+
+import java.util.Random;
+
+/**
+ * Gradient-boosted regression trees in the calling thread, following Spark's GradientBoostedTrees:
+ * the first tree is fit to the labels with weight 1.0, every later tree is fit to the negative
+ * gradient of the loss ("squared" or "absolute") with weight stepSize, on a Bernoulli(subsamplingRate)
+ * subsample of the rows.
+ */
+public class LocalGradientBoostedTrees implements LocalRegressor {
+
+    private final TreeEnsembleParams params;
+
+    public LocalGradientBoostedTrees(TreeEnsembleParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public TreeEnsemble fit(LocalDataset data, Random random) {
+        if (params.validationFraction > 0.0) {
+            LocalDataset[] split = data.randomSplit(1.0 - params.validationFraction, random);
+            if (split[0].numRows() > 0 && split[1].numRows() > 0) {
+                return fit(split[0], split[1], random);
+            }
+        }
+        return fit(data, null, random);
+    }
+
+    /**
+     * Boosts maxIter rounds, or with validation data, stops like Spark's GBTRegressor with a validation
+     * indicator column: once a round improves the validation loss by less than validationTol times the loss,
+     * and returns the ensemble with the best validation loss.
+     */
+    private TreeEnsemble fit(LocalDataset data, LocalDataset validation, Random random) {
+        int n = data.numRows();
+        boolean absolute = "absolute".equalsIgnoreCase(params.lossType);
+        RegressionTreeLearner learner = new RegressionTreeLearner(data, params,
+            params.featuresPerNode(data.numFeatures(), false));
+        TreeEnsemble.Builder builder = new TreeEnsemble.Builder(data.numFeatures());
+
+        double[] labels = data.labels();
+        double[] features = data.features();
+        double[] predictions = new double[n];
+        double[] targets = labels.clone();
+        double[] weights = new double[n];
+        double[] validationPredictions = validation != null ? new double[validation.numRows()] : null;
+        double bestValidationLoss = Double.POSITIVE_INFINITY;
+        int bestNumTrees = 0;
+
+        for (int m = 0; m < params.maxIter; m++) {
+            for (int i = 0; i < n; i++) {
+                weights[i] = params.subsamplingRate >= 1.0 || random.nextDouble() < params.subsamplingRate ? 1.0 : 0.0;
+            }
+
+            int root = learner.fit(targets, weights, random, builder);
+            if (root < 0) {
+                continue;
+            }
+            double treeWeight = m == 0 ? 1.0 : params.stepSize;
+            builder.addTree(root, treeWeight);
+            TreeEnsemble ensemble = builder.build();
+            int tree = ensemble.numTrees() - 1;
+
+            // Update predictions and pseudo-residuals for the next tree
+            for (int i = 0; i < n; i++) {
+                predictions[i] += treeWeight * ensemble.predictTree(tree, features, i * data.numFeatures());
+                double residual = labels[i] - predictions[i];
+                targets[i] = absolute ? (residual < 0 ? -1.0 : 1.0) : 2.0 * residual;
+            }
+
+            if (validation != null) {
+                for (int i = 0; i < validationPredictions.length; i++) {
+                    validationPredictions[i] += treeWeight * ensemble.predictTree(tree, validation.features(),
+                        i * validation.numFeatures());
+                }
+                double validationLoss = loss(validationPredictions, validation.labels(), absolute);
+                if (bestValidationLoss - validationLoss < params.validationTol * Math.max(validationLoss, 0.01)) {
+                    break;
+                }
+                if (validationLoss < bestValidationLoss) {
+                    bestValidationLoss = validationLoss;
+                    bestNumTrees = ensemble.numTrees();
+                }
+            }
+        }
+        TreeEnsemble ensemble = builder.build();
+        if (validation == null || bestNumTrees == ensemble.numTrees()) {
+            return ensemble;
+        }
+        // Drops the trees added after the best validation loss
+        TreeEnsemble.Builder best = new TreeEnsemble.Builder(data.numFeatures());
+        for (int t = 0; t < bestNumTrees; t++) {
+            best.copyTree(ensemble, t, ensemble.treeWeights()[t]);
+        }
+        return best.build();
+    }
+
+    /**
+     * Continues boosting an already trained ensemble, e.g. a parent GISJoin's model, on new data: each round
+     * fits one tree to the negative gradient at the current predictions and appends it with weight stepSize.
+     * Stops once the RMSE on the held-out data is below targetRmse, or after maxIter rounds.
+     * @param initial The ensemble to start from; it is not modified.
+     * @param train Data the additional trees are fit to.
+     * @param test Held-out data the stopping rule is evaluated on.
+     * @return The initial trees followed by the additional ones.
+     */
+    public TreeEnsemble warmStart(TreeEnsemble initial, LocalDataset train, LocalDataset test, double targetRmse,
+                                  Random random) {
+        int n = train.numRows();
+        boolean absolute = "absolute".equalsIgnoreCase(params.lossType);
+        RegressionTreeLearner learner = new RegressionTreeLearner(train, params,
+            params.featuresPerNode(train.numFeatures(), false));
+        TreeEnsemble.Builder builder = initial.toBuilder();
+
+        double[] labels = train.labels();
+        double[] features = train.features();
+        double[] predictions = new double[n];
+        for (int i = 0; i < n; i++) {
+            predictions[i] = initial.predict(features, i * train.numFeatures());
+        }
+        double[] testPredictions = new double[test.numRows()];
+        for (int i = 0; i < testPredictions.length; i++) {
+            testPredictions[i] = initial.predict(test.features(), i * test.numFeatures());
+        }
+        double[] targets = new double[n];
+        double[] weights = new double[n];
+
+        for (int m = 0; m < params.maxIter && rmse(testPredictions, test.labels()) >= targetRmse; m++) {
+            for (int i = 0; i < n; i++) {
+                double residual = labels[i] - predictions[i];
+                targets[i] = absolute ? (residual < 0 ? -1.0 : 1.0) : 2.0 * residual;
+                weights[i] = params.subsamplingRate >= 1.0 || random.nextDouble() < params.subsamplingRate ? 1.0 : 0.0;
+            }
+
+            int root = learner.fit(targets, weights, random, builder);
+            if (root < 0) {
+                continue;
+            }
+            builder.addTree(root, params.stepSize);
+            TreeEnsemble ensemble = builder.build();
+            int tree = ensemble.numTrees() - 1;
+            for (int i = 0; i < n; i++) {
+                predictions[i] += params.stepSize * ensemble.predictTree(tree, features, i * train.numFeatures());
+            }
+            for (int i = 0; i < testPredictions.length; i++) {
+                testPredictions[i] += params.stepSize * ensemble.predictTree(tree, test.features(),
+                    i * test.numFeatures());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return The mean loss, as Spark's SquaredError and AbsoluteError compute it.
+     */
+    private static double loss(double[] predictions, double[] labels, boolean absolute) {
+        double loss = 0.0;
+        for (int i = 0; i < labels.length; i++) {
+            double error = labels[i] - predictions[i];
+            loss += absolute ? Math.abs(error) : error * error;
+        }
+        return loss / labels.length;
+    }
+
+    private static double rmse(double[] predictions, double[] labels) {
+        double squaredError = 0.0;
+        for (int i = 0; i < labels.length; i++) {
+            squaredError += (labels[i] - predictions[i]) * (labels[i] - predictions[i]);
+        }
+        return Math.sqrt(squaredError / labels.length);
+    }
+}
@@ -0,0 +1,207 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * LocalKMeans.java -
+ *      k-means clustering of rows held in one contiguous double[] on the driver, for datasets small
+ *      enough that launching Spark jobs costs more than the clustering itself.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Each restart seeds its centers with k-means++ and runs Lloyd iterations until no center moves more than tol,
+ * or maxIterations, like Spark's KMeans. Restarts run in parallel on the common ForkJoinPool and the clustering
+ * with the lowest cost wins. Rows and centers are row-major double[]s; distances are computed with four
+ * independent accumulators, so the JIT can overlap them.
+ */
+public class LocalKMeans {
+
+    private final int    k, maxIterations, restarts;
+    private final double tol;
+
+    public LocalKMeans(int k, int maxIterations, double tol, int restarts) {
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.tol = tol;
+        this.restarts = restarts;
+    }
+
+    /**
+     * @param rows numRows rows of dims values each, one after another.
+     * @param seed Seed of the first restart; restart r uses seed + r.
+     * @return The clustering with the lowest cost of all restarts.
+     */
+    public Result fit(double[] rows, int numRows, int dims, long seed) {
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+        for (int r = 0; r < restarts; r++) {
+            Random random = new Random(seed + r);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> fitOnce(rows, numRows, dims, random)));
+        }
+        Result best = null;
+        for (ForkJoinTask<Result> task: tasks) {
+            Result result = task.join();
+            if (best == null || result.cost < best.cost) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    private Result fitOnce(double[] rows, int numRows, int dims, Random random) {
+        int clusters = Math.min(k, numRows);
+        double[] centers = initCenters(rows, numRows, dims, clusters, random);
+        int[] assignments = new int[numRows];
+        double[] sums = new double[clusters * dims];
+        long[] counts = new long[clusters];
+
+        int iteration = 0;
+        boolean converged = false;
+        while (!converged && iteration < maxIterations) {
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(counts, 0L);
+            for (int i = 0, offset = 0; i < numRows; i++, offset += dims) {
+                int c = nearest(rows, offset, centers, clusters, dims);
+                assignments[i] = c;
+                counts[c]++;
+                for (int d = 0; d < dims; d++) {
+                    sums[c * dims + d] += rows[offset + d];
+                }
+            }
+
+            // Empty clusters keep their center, as in Spark
+            converged = true;
+            for (int c = 0; c < clusters; c++) {
+                if (counts[c] == 0) {
+                    continue;
+                }
+                for (int d = 0; d < dims; d++) {
+                    sums[c * dims + d] /= counts[c];
+                }
+                if (squaredDistance(sums, c * dims, centers, c * dims, dims) > tol * tol) {
+                    converged = false;
+                }
+                System.arraycopy(sums, c * dims, centers, c * dims, dims);
+            }
+            iteration++;
+        }
+
+        double cost = 0.0;
+        for (int i = 0, offset = 0; i < numRows; i++, offset += dims) {
+            int c = nearest(rows, offset, centers, clusters, dims);
+            assignments[i] = c;
+            cost += squaredDistance(rows, offset, centers, c * dims, dims);
+        }
+        return new Result(centers, assignments, cost, iteration);
+    }
+
+    /**
+     * k-means++: the first center is a random row, each next one a row drawn with probability proportional to its
+     * squared distance to the nearest center chosen so far.
+     */
+    private static double[] initCenters(double[] rows, int numRows, int dims, int clusters, Random random) {
+        double[] centers = new double[clusters * dims];
+        System.arraycopy(rows, random.nextInt(numRows) * dims, centers, 0, dims);
+
+        double[] distances = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            distances[i] = squaredDistance(rows, i * dims, centers, 0, dims);
+        }
+        for (int c = 1; c < clusters; c++) {
+            double total = 0.0;
+            for (double distance: distances) {
+                total += distance;
+            }
+            int chosen = numRows - 1;
+            double target = random.nextDouble() * total;
+            for (int i = 0; i < numRows; i++) {
+                target -= distances[i];
+                if (target < 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+            System.arraycopy(rows, chosen * dims, centers, c * dims, dims);
+            for (int i = 0; i < numRows; i++) {
+                distances[i] = Math.min(distances[i], squaredDistance(rows, i * dims, centers, c * dims, dims));
+            }
+        }
+        return centers;
+    }
+
+    private static int nearest(double[] rows, int offset, double[] centers, int clusters, int dims) {
+        int nearest = 0;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < clusters; c++) {
+            double distance = squaredDistance(rows, offset, centers, c * dims, dims);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    static double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int dims) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int d = 0;
+        for (; d + 3 < dims; d += 4) {
+            double d0 = x[xOffset + d] - y[yOffset + d];
+            double d1 = x[xOffset + d + 1] - y[yOffset + d + 1];
+            double d2 = x[xOffset + d + 2] - y[yOffset + d + 2];
+            double d3 = x[xOffset + d + 3] - y[yOffset + d + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; d < dims; d++) {
+            double diff = x[xOffset + d] - y[yOffset + d];
+            s0 += diff * diff;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static class Result {
+        private final double[] centers;
+        private final int[]    assignments;
+        private final double   cost;
+        private final int      iterations;
+
+        private Result(double[] centers, int[] assignments, double cost, int iterations) {
+            this.centers = centers;
+            this.assignments = assignments;
+            this.cost = cost;
+            this.iterations = iterations;
+        }
+
+        /**
+         * @return The centers, row-major.
+         */
+        public double[] getCenters() {
+            return centers;
+        }
+
+        /**
+         * @return The cluster of each row.
+         */
+        public int[] getAssignments() {
+            return assignments;
+        }
+
+        /**
+         * @return Sum of the squared distances of the rows to their centers.
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+    }
+}
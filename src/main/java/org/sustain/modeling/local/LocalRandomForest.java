@@ -0,0 +1,140 @@
+package org.sustain.modeling.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random forest regression in the calling thread. Each tree is grown on a Poisson(subsamplingRate)
+ * bootstrap sample, or a Bernoulli(subsamplingRate) subsample without bootstrapping, and the
+ * forest predicts the mean of its trees, as RandomForestRegressor does.
+ */
+public class LocalRandomForest implements LocalRegressor {
+
+    private final TreeEnsembleParams params;
+
+    public LocalRandomForest(TreeEnsembleParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public TreeEnsemble fit(LocalDataset data, Random random) {
+        int n = data.numRows();
+        RegressionTreeLearner learner = new RegressionTreeLearner(data, params,
+            params.featuresPerNode(data.numFeatures(), params.numTrees > 1));
+        TreeEnsemble.Builder builder = new TreeEnsemble.Builder(data.numFeatures());
+
+        double[] weights = new double[n];
+        int numTrees = 0;
+        for (int t = 0; t < params.numTrees; t++) {
+            if (params.bootstrap) {
+                for (int i = 0; i < n; i++) {
+                    weights[i] = poisson(params.subsamplingRate, random);
+                }
+            } else if (params.subsamplingRate < 1.0) {
+                for (int i = 0; i < n; i++) {
+                    weights[i] = random.nextDouble() < params.subsamplingRate ? 1.0 : 0.0;
+                }
+            } else {
+                Arrays.fill(weights, 1.0);
+            }
+
+            int root = learner.fit(data.labels(), weights, random, builder);
+            if (root >= 0) {
+                builder.addTree(root, 1.0);
+                numTrees++;
+            }
+        }
+
+        // The forest predicts the mean of its trees
+        if (numTrees > 0) {
+            builder.scaleTreeWeights(1.0 / numTrees);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Forest transfer: ranks the trees of an already trained forest, e.g. a parent GISJoin's model, by their RMSE
+     * on the new training data, keeps the best half and grows replacements for the rest on the new data. While
+     * the held-out RMSE is not below targetRmse, half as many of the initial trees are kept and more replacements
+     * are grown, down to an entirely new forest.
+     * @param initial The forest to transfer from; it is not modified.
+     * @param train Data the trees are ranked on and the replacements are grown on.
+     * @param test Held-out data the stopping rule is evaluated on.
+     * @return A forest with as many trees as the initial one.
+     */
+    public TreeEnsemble transfer(TreeEnsemble initial, LocalDataset train, LocalDataset test, double targetRmse,
+                                 Random random) {
+        int numTrees = initial.numTrees();
+        Integer[] order = rankTrees(initial, train);
+
+        TreeEnsembleParams replacementParams = params.copy();
+        if ("auto".equalsIgnoreCase(params.featureSubsetStrategy) && numTrees > 1) {
+            replacementParams.featureSubsetStrategy = "onethird"; // as for the trees of the initial forest
+        }
+
+        List<TreeEnsemble> replacements = new ArrayList<>();
+        int numReplacements = 0;
+        int kept = (int) Math.round(numTrees * 0.5);
+        while (true) {
+            if (numTrees - kept > numReplacements) {
+                replacementParams.numTrees = numTrees - kept - numReplacements;
+                TreeEnsemble grown = new LocalRandomForest(replacementParams).fit(train, random);
+                replacements.add(grown);
+                numReplacements += replacementParams.numTrees;
+            }
+
+            TreeEnsemble.Builder builder = new TreeEnsemble.Builder(train.numFeatures());
+            for (int k = 0; k < kept; k++) {
+                builder.copyTree(initial, order[k], 1.0);
+            }
+            int merged = kept;
+            for (TreeEnsemble grown: replacements) {
+                for (int t = 0; t < grown.numTrees(); t++) {
+                    builder.copyTree(grown, t, 1.0);
+                    merged++;
+                }
+            }
+            builder.scaleTreeWeights(1.0 / Math.max(merged, 1));
+            TreeEnsemble forest = builder.build();
+
+            if (kept == 0 || new LocalRegressionMetrics(forest, test).rootMeanSquaredError() < targetRmse) {
+                return forest;
+            }
+            kept /= 2;
+        }
+    }
+
+    /**
+     * @return Tree indices, from the lowest to the highest RMSE on the data.
+     */
+    private static Integer[] rankTrees(TreeEnsemble forest, LocalDataset data) {
+        double[] squaredErrors = new double[forest.numTrees()];
+        Integer[] order = new Integer[forest.numTrees()];
+        for (int t = 0; t < order.length; t++) {
+            order[t] = t;
+            for (int i = 0; i < data.numRows(); i++) {
+                double error = data.labels()[i] - forest.predictTree(t, data.features(), i * data.numFeatures());
+                squaredErrors[t] += error * error;
+            }
+        }
+        Arrays.sort(order, Comparator.comparingDouble(t -> squaredErrors[t]));
+        return order;
+    }
+
+    /**
+     * Knuth's method, fine for the small means used as subsampling rates.
+     */
+    static int poisson(double mean, Random random) {
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            count++;
+            product *= random.nextDouble();
+        }
+        return count;
+    }
+}
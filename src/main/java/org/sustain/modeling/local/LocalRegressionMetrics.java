@@ -0,0 +1,39 @@
+package org.sustain.modeling.local;
+
+/**
+ * RMSE and R2 of a TreeEnsemble over a LocalDataset, defined as in Spark's RegressionMetrics.
+ */
+public class LocalRegressionMetrics {
+
+    private final double rmse, r2;
+
+    public LocalRegressionMetrics(TreeEnsemble model, LocalDataset data) {
+        int n = data.numRows();
+        double[] labels = data.labels();
+        double[] features = data.features();
+
+        double labelSum = 0.0;
+        for (int i = 0; i < n; i++) {
+            labelSum += labels[i];
+        }
+        double labelMean = labelSum / n;
+
+        double squaredError = 0.0, totalSquares = 0.0;
+        for (int i = 0; i < n; i++) {
+            double error = labels[i] - model.predict(features, i * data.numFeatures());
+            squaredError += error * error;
+            totalSquares += (labels[i] - labelMean) * (labels[i] - labelMean);
+        }
+
+        this.rmse = Math.sqrt(squaredError / n);
+        this.r2 = 1.0 - squaredError / totalSquares;
+    }
+
+    public double rootMeanSquaredError() {
+        return rmse;
+    }
+
+    public double r2() {
+        return r2;
+    }
+}
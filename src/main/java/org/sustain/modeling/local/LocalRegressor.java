@@ -0,0 +1,12 @@
+package org.sustain.modeling.local;
+
+import java.util.Random;
+
+/**
+ * A tree ensemble learner that trains on a LocalDataset in the calling thread.
+ */
+public interface LocalRegressor {
+
+    TreeEnsemble fit(LocalDataset data, Random random);
+
+}
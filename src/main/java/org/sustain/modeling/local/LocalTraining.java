@@ -0,0 +1,37 @@
+package org.sustain.modeling.local;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.sustain.mongodb.GisJoinRowCounts;
+import org.sustain.util.Constants;
+
+/**
+ * Size-aware dispatch between Spark and the in-process learners: GISJoins with fewer documents than
+ * LOCAL_TRAINING_MAX_ROWS are loaded through the MongoDB driver and trained on the driver, where a
+ * model takes milliseconds instead of several Spark jobs. A threshold of 0 disables local training.
+ */
+public class LocalTraining {
+
+    private static final Logger log = LogManager.getLogger(LocalTraining.class);
+
+    /**
+     * @param collection Name of the collection the GISJoin is modeled from.
+     * @param gisJoinField Name of the GISJoin field in the collection.
+     * @param gisJoin The GISJoin to be modeled.
+     * @return true if the GISJoin has data, but fewer documents than the local training threshold.
+     */
+    public static boolean shouldTrainLocally(String collection, String gisJoinField, String gisJoin) {
+        long maxRows = Constants.Spark.LOCAL_TRAINING_MAX_ROWS;
+        if (maxRows <= 0) {
+            return false;
+        }
+
+        try {
+            long count = GisJoinRowCounts.count(collection, gisJoinField, gisJoin);
+            return count > 0 && count < maxRows;
+        } catch (Exception e) {
+            log.warn("Unable to count documents of GISJoin {} in {}, training on Spark", gisJoin, collection, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * RegressionTreeLearner.java -
+ *      Grows variance-impurity regression trees over a LocalDataset, with the same stopping
+ *      rules as Spark ML's decision trees.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Every feature is discretized once into at most maxBins bins (midpoints between distinct values,
+ * or quantiles when there are more distinct values than bins), so each split search is a single pass
+ * over the node's rows into per-bin histograms. The learner is reused for every tree of an ensemble
+ * over the same data; only the targets and row weights change between trees.
+ */
+public class RegressionTreeLearner {
+
+    private final LocalDataset       data;
+    private final TreeEnsembleParams params;
+    private final int                numFeatures, featuresPerNode;
+    private final double[][]         thresholds;
+    private final int[]              bins; // row-major, like the dataset's features
+
+    // Scratch space reused by every split search
+    private final double[] binWeight, binSum, binSumSquares;
+    private final int[]    featureOrder;
+
+    public RegressionTreeLearner(LocalDataset data, TreeEnsembleParams params, int featuresPerNode) {
+        this.data = data;
+        this.params = params;
+        this.numFeatures = data.numFeatures();
+        this.featuresPerNode = featuresPerNode;
+        this.thresholds = new double[numFeatures][];
+        this.bins = new int[data.numRows() * numFeatures];
+
+        int maxNumBins = 1;
+        for (int j = 0; j < numFeatures; j++) {
+            thresholds[j] = findThresholds(j);
+            maxNumBins = Math.max(maxNumBins, thresholds[j].length + 1);
+            for (int i = 0; i < data.numRows(); i++) {
+                int bin = Arrays.binarySearch(thresholds[j], data.feature(i, j));
+                bins[i * numFeatures + j] = bin >= 0 ? bin : -bin - 1;
+            }
+        }
+
+        this.binWeight = new double[maxNumBins];
+        this.binSum = new double[maxNumBins];
+        this.binSumSquares = new double[maxNumBins];
+        this.featureOrder = new int[numFeatures];
+        for (int j = 0; j < numFeatures; j++) {
+            featureOrder[j] = j;
+        }
+    }
+
+    public LocalDataset data() {
+        return data;
+    }
+
+    /**
+     * Grows one tree and appends it to the builder, without registering it as a tree.
+     * @param targets Per-row regression targets, e.g. labels or pseudo-residuals.
+     * @param weights Per-row weights; rows with weight 0 are left out, as with bagging.
+     * @return Index of the tree's root node, or -1 if every weight is 0.
+     */
+    public int fit(double[] targets, double[] weights, Random random, TreeEnsemble.Builder builder) {
+        int[] rows = new int[data.numRows()];
+        int numRows = 0;
+        double totalWeight = 0.0;
+        for (int i = 0; i < data.numRows(); i++) {
+            if (weights[i] > 0.0) {
+                rows[numRows++] = i;
+                totalWeight += weights[i];
+            }
+        }
+        if (numRows == 0) {
+            return -1;
+        }
+        return grow(rows, 0, numRows, 0, targets, weights, params.minWeightFractionPerNode * totalWeight,
+            random, builder);
+    }
+
+    private int grow(int[] rows, int from, int to, int depth, double[] targets, double[] weights,
+                     double minWeightPerNode, Random random, TreeEnsemble.Builder builder) {
+        double weight = 0.0, sum = 0.0, sumSquares = 0.0;
+        for (int r = from; r < to; r++) {
+            int i = rows[r];
+            weight += weights[i];
+            sum += weights[i] * targets[i];
+            sumSquares += weights[i] * targets[i] * targets[i];
+        }
+        double prediction = sum / weight;
+        if (depth >= params.maxDepth || weight < 2 * params.minInstancesPerNode) {
+            return builder.addLeaf(prediction);
+        }
+
+        double impurity = variance(weight, sum, sumSquares);
+        double bestGain = 0.0;
+        int bestFeature = -1, bestBin = -1;
+
+        // Random subset of candidate features, a partial Fisher-Yates shuffle
+        for (int k = 0; k < featuresPerNode; k++) {
+            int swap = k + random.nextInt(numFeatures - k);
+            int tmp = featureOrder[k]; featureOrder[k] = featureOrder[swap]; featureOrder[swap] = tmp;
+        }
+
+        for (int k = 0; k < featuresPerNode; k++) {
+            int j = featureOrder[k];
+            int numBins = thresholds[j].length + 1;
+            if (numBins < 2) {
+                continue;
+            }
+            Arrays.fill(binWeight, 0, numBins, 0.0);
+            Arrays.fill(binSum, 0, numBins, 0.0);
+            Arrays.fill(binSumSquares, 0, numBins, 0.0);
+            for (int r = from; r < to; r++) {
+                int i = rows[r];
+                int bin = bins[i * numFeatures + j];
+                binWeight[bin] += weights[i];
+                binSum[bin] += weights[i] * targets[i];
+                binSumSquares[bin] += weights[i] * targets[i] * targets[i];
+            }
+
+            double leftWeight = 0.0, leftSum = 0.0, leftSumSquares = 0.0;
+            for (int b = 0; b < numBins - 1; b++) {
+                leftWeight += binWeight[b];
+                leftSum += binSum[b];
+                leftSumSquares += binSumSquares[b];
+                double rightWeight = weight - leftWeight;
+                if (leftWeight < params.minInstancesPerNode || rightWeight < params.minInstancesPerNode
+                        || leftWeight < minWeightPerNode || rightWeight < minWeightPerNode) {
+                    continue;
+                }
+                double gain = impurity
+                    - leftWeight / weight * variance(leftWeight, leftSum, leftSumSquares)
+                    - rightWeight / weight * variance(rightWeight, sum - leftSum, sumSquares - leftSumSquares);
+                if (gain > bestGain) {
+                    bestGain = gain;
+                    bestFeature = j;
+                    bestBin = b;
+                }
+            }
+        }
+
+        if (bestFeature < 0 || bestGain < params.minInfoGain) {
+            return builder.addLeaf(prediction);
+        }
+
+        // Partition rows in place: bins <= bestBin go left
+        int mid = from;
+        for (int r = from; r < to; r++) {
+            if (bins[rows[r] * numFeatures + bestFeature] <= bestBin) {
+                int tmp = rows[mid]; rows[mid] = rows[r]; rows[r] = tmp;
+                mid++;
+            }
+        }
+
+        int node = builder.addSplit(bestFeature, thresholds[bestFeature][bestBin], prediction);
+        int leftChild = grow(rows, from, mid, depth + 1, targets, weights, minWeightPerNode, random, builder);
+        int rightChild = grow(rows, mid, to, depth + 1, targets, weights, minWeightPerNode, random, builder);
+        builder.setChildren(node, leftChild, rightChild);
+        return node;
+    }
+
+    private static double variance(double weight, double sum, double sumSquares) {
+        double mean = sum / weight;
+        return Math.max(sumSquares / weight - mean * mean, 0.0);
+    }
+
+    private double[] findThresholds(int feature) {
+        int n = data.numRows();
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = data.feature(i, feature);
+        }
+        Arrays.sort(values);
+
+        double[] distinct = new double[n];
+        int numDistinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (numDistinct == 0 || values[i] != distinct[numDistinct - 1]) {
+                distinct[numDistinct++] = values[i];
+            }
+        }
+
+        if (numDistinct <= params.maxBins) {
+            double[] midpoints = new double[Math.max(numDistinct - 1, 0)];
+            for (int i = 0; i < midpoints.length; i++) {
+                midpoints[i] = (distinct[i] + distinct[i + 1]) / 2.0;
+            }
+            return midpoints;
+        }
+
+        double[] quantiles = new double[params.maxBins - 1];
+        int numQuantiles = 0;
+        for (int q = 1; q < params.maxBins; q++) {
+            double value = values[(int) ((long) q * n / params.maxBins)];
+            if (numQuantiles == 0 || value > quantiles[numQuantiles - 1]) {
+                quantiles[numQuantiles++] = value;
+            }
+        }
+        return Arrays.copyOf(quantiles, numQuantiles);
+    }
+}
@@ -0,0 +1,67 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * SparkTreeCompiler.java -
+ *      Converts trained Spark ML tree models into a TreeEnsemble, whose flat node arrays are evaluated
+ *      without allocating and take a fraction of the heap of Spark's node objects.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import org.apache.spark.ml.regression.DecisionTreeRegressionModel;
+import org.apache.spark.ml.regression.GBTRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressionModel;
+import org.apache.spark.ml.tree.ContinuousSplit;
+import org.apache.spark.ml.tree.InternalNode;
+import org.apache.spark.ml.tree.Node;
+
+import java.util.Arrays;
+
+/**
+ * Nodes are laid out in pre-order, so every split's left child is the node after it. Only continuous splits are
+ * supported, which is all the regression models of this server train, since their features are numeric.
+ */
+public class SparkTreeCompiler {
+
+    private SparkTreeCompiler() {
+    }
+
+    /**
+     * @return An ensemble predicting the average of the forest's trees, like the forest does.
+     */
+    public static TreeEnsemble compile(RandomForestRegressionModel forest) {
+        double[] weights = new double[forest.getNumTrees()];
+        Arrays.fill(weights, 1.0 / weights.length);
+        return compile(forest.trees(), weights, forest.numFeatures());
+    }
+
+    /**
+     * @return An ensemble predicting the weighted sum of the boosted trees, like the model does.
+     */
+    public static TreeEnsemble compile(GBTRegressionModel boosted) {
+        return compile(boosted.trees(), boosted.treeWeights(), boosted.numFeatures());
+    }
+
+    public static TreeEnsemble compile(DecisionTreeRegressionModel[] trees, double[] weights, int numFeatures) {
+        TreeEnsemble.Builder builder = new TreeEnsemble.Builder(numFeatures);
+        for (int t = 0; t < trees.length; t++) {
+            builder.addTree(compileNode(builder, trees[t].rootNode()), weights[t]);
+        }
+        return builder.build();
+    }
+
+    private static int compileNode(TreeEnsemble.Builder builder, Node node) {
+        if (!(node instanceof InternalNode)) {
+            return builder.addLeaf(node.prediction());
+        }
+        InternalNode internal = (InternalNode) node;
+        if (!(internal.split() instanceof ContinuousSplit)) {
+            throw new IllegalArgumentException("Only trees with continuous splits can be compiled, found a "
+                    + internal.split().getClass().getSimpleName());
+        }
+        ContinuousSplit split = (ContinuousSplit) internal.split();
+        int compiled = builder.addSplit(split.featureIndex(), split.threshold(), internal.prediction());
+        int leftChild = compileNode(builder, internal.leftChild());
+        int rightChild = compileNode(builder, internal.rightChild());
+        builder.setChildren(compiled, leftChild, rightChild);
+        return compiled;
+    }
+}
@@ -0,0 +1,205 @@
+/* ---------------------------------------------------------------------------------------------------------------------
+ * TreeEnsemble.java -
+ *      A weighted sum of regression trees stored in flat primitive arrays, covering single
+ *      decision trees, random forests and gradient-boosted trees.
+ * ------------------------------------------------------------------------------------------------------------------ */
+
+package org.sustain.modeling.local;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * All trees share one set of node arrays. A node is a leaf when its feature is -1, otherwise rows
+ * with x[feature] <= threshold go to its left child, as with Spark's continuous splits.
+ * prediction(x) = sum over trees t of treeWeights[t] * tree_t(x): a random forest uses weights of
+ * 1 / numTrees, gradient-boosted trees use Spark's tree weights.
+ */
+public class TreeEnsemble implements Serializable {
+
+    private final int      numFeatures;
+    private final int[]    feature, left, right;
+    private final double[] threshold, value;
+    private final int[]    roots;
+    private final double[] treeWeights;
+
+    private TreeEnsemble(Builder builder) {
+        this.numFeatures = builder.numFeatures;
+        this.feature = Arrays.copyOf(builder.feature, builder.numNodes);
+        this.left = Arrays.copyOf(builder.left, builder.numNodes);
+        this.right = Arrays.copyOf(builder.right, builder.numNodes);
+        this.threshold = Arrays.copyOf(builder.threshold, builder.numNodes);
+        this.value = Arrays.copyOf(builder.value, builder.numNodes);
+        this.roots = Arrays.copyOf(builder.roots, builder.numTrees);
+        this.treeWeights = Arrays.copyOf(builder.treeWeights, builder.numTrees);
+    }
+
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    public int numTrees() {
+        return roots.length;
+    }
+
+    public int numNodes() {
+        return feature.length;
+    }
+
+    public double[] treeWeights() {
+        return treeWeights;
+    }
+
+    /**
+     * @param x Feature values; the row starts at offset.
+     * @return The weighted sum of the trees' predictions.
+     */
+    public double predict(double[] x, int offset) {
+        double prediction = 0.0;
+        for (int t = 0; t < roots.length; t++) {
+            prediction += treeWeights[t] * predictTree(t, x, offset);
+        }
+        return prediction;
+    }
+
+    /**
+     * Scores a batch of rows without allocating. Trees are evaluated one at a time over every row, so each tree's
+     * nodes stay in cache for the whole batch.
+     * @param rows numRows rows of numFeatures() values each, one after another.
+     * @param predictions Receives the prediction of each row.
+     */
+    public void predict(double[] rows, int numRows, double[] predictions) {
+        Arrays.fill(predictions, 0, numRows, 0.0);
+        for (int t = 0; t < roots.length; t++) {
+            double weight = treeWeights[t];
+            for (int r = 0, offset = 0; r < numRows; r++, offset += numFeatures) {
+                predictions[r] += weight * predictTree(t, rows, offset);
+            }
+        }
+    }
+
+    /**
+     * @return The unweighted prediction of a single tree.
+     */
+    public double predictTree(int tree, double[] x, int offset) {
+        int node = roots[tree];
+        while (feature[node] >= 0) {
+            node = x[offset + feature[node]] <= threshold[node] ? left[node] : right[node];
+        }
+        return value[node];
+    }
+
+    /**
+     * @return A builder holding this ensemble's trees, to append more trees to, e.g. to warm-start boosting.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder(numFeatures);
+        builder.numNodes = feature.length;
+        builder.numTrees = roots.length;
+        int nodeCapacity = Math.max(feature.length, 64), treeCapacity = Math.max(roots.length, 8);
+        builder.feature = Arrays.copyOf(feature, nodeCapacity);
+        builder.left = Arrays.copyOf(left, nodeCapacity);
+        builder.right = Arrays.copyOf(right, nodeCapacity);
+        builder.threshold = Arrays.copyOf(threshold, nodeCapacity);
+        builder.value = Arrays.copyOf(value, nodeCapacity);
+        builder.roots = Arrays.copyOf(roots, treeCapacity);
+        builder.treeWeights = Arrays.copyOf(treeWeights, treeCapacity);
+        return builder;
+    }
+
+    /**
+     * Appends the nodes of each tree, then registers the tree's root and weight with addTree().
+     */
+    public static class Builder {
+
+        private final int numFeatures;
+        private int       numNodes, numTrees;
+        private int[]     feature = new int[64], left = new int[64], right = new int[64];
+        private double[]  threshold = new double[64], value = new double[64];
+        private int[]     roots = new int[8];
+        private double[]  treeWeights = new double[8];
+
+        public Builder(int numFeatures) {
+            this.numFeatures = numFeatures;
+        }
+
+        /**
+         * @return Index of the new leaf node.
+         */
+        public int addLeaf(double prediction) {
+            return addNode(-1, Double.NaN, -1, -1, prediction);
+        }
+
+        /**
+         * @return Index of the new internal node; its children are set with setChildren().
+         */
+        public int addSplit(int splitFeature, double splitThreshold, double prediction) {
+            return addNode(splitFeature, splitThreshold, -1, -1, prediction);
+        }
+
+        public void setChildren(int node, int leftChild, int rightChild) {
+            this.left[node] = leftChild;
+            this.right[node] = rightChild;
+        }
+
+        /**
+         * Marks a node as the root of the next tree.
+         */
+        public void addTree(int root, double weight) {
+            if (numTrees == roots.length) {
+                roots = Arrays.copyOf(roots, numTrees * 2);
+                treeWeights = Arrays.copyOf(treeWeights, numTrees * 2);
+            }
+            roots[numTrees] = root;
+            treeWeights[numTrees++] = weight;
+        }
+
+        /**
+         * Copies one tree of another ensemble into this one and registers it, e.g. to merge two forests.
+         */
+        public void copyTree(TreeEnsemble source, int tree, double weight) {
+            addTree(copyNode(source, source.roots[tree]), weight);
+        }
+
+        private int copyNode(TreeEnsemble source, int node) {
+            if (source.feature[node] < 0) {
+                return addLeaf(source.value[node]);
+            }
+            int copy = addSplit(source.feature[node], source.threshold[node], source.value[node]);
+            int leftChild = copyNode(source, source.left[node]);
+            int rightChild = copyNode(source, source.right[node]);
+            setChildren(copy, leftChild, rightChild);
+            return copy;
+        }
+
+        /**
+         * Rescales every tree weight added so far, e.g. to average a forest.
+         */
+        public void scaleTreeWeights(double factor) {
+            for (int t = 0; t < numTrees; t++) {
+                treeWeights[t] *= factor;
+            }
+        }
+
+        public TreeEnsemble build() {
+            return new TreeEnsemble(this);
+        }
+
+        private int addNode(int splitFeature, double splitThreshold, int leftChild, int rightChild, double prediction) {
+            if (numNodes == feature.length) {
+                int capacity = numNodes * 2;
+                feature = Arrays.copyOf(feature, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                threshold = Arrays.copyOf(threshold, capacity);
+                value = Arrays.copyOf(value, capacity);
+            }
+            feature[numNodes] = splitFeature;
+            threshold[numNodes] = splitThreshold;
+            left[numNodes] = leftChild;
+            right[numNodes] = rightChild;
+            value[numNodes] = prediction;
+            return numNodes++;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.sustain.modeling.local;
+
+import org.apache.spark.ml.regression.GBTRegressor;
+import org.apache.spark.ml.regression.RandomForestRegressor;
+
+import java.io.Serializable;
+
+/**
+ * Hyperparameters of the local tree learners, with Spark ML's defaults. Conversions to and from
+ * RandomForestRegressor / GBTRegressor let locally and Spark-trained models hand the same
+ * configuration to each other.
+ */
+public class TreeEnsembleParams implements Serializable {
+
+    // Shared tree parameters
+    public int     maxDepth = 5;
+    public int     maxBins = 32;
+    public int     minInstancesPerNode = 1;
+    public double  minInfoGain = 0.0;
+    public double  minWeightFractionPerNode = 0.0;
+    public double  subsamplingRate = 1.0;
+    public String  featureSubsetStrategy = "auto";
+
+    // Random forest parameters
+    public int     numTrees = 20;
+    public boolean bootstrap = true;
+
+    // Gradient boosting parameters
+    public int     maxIter = 20;
+    public double  stepSize = 0.1;
+    public String  lossType = "squared";
+    // Share of the training rows held out for early stopping, 0 to always boost maxIter rounds
+    public double  validationFraction = 0.0;
+    public double  validationTol = 0.01;
+
+    public TreeEnsembleParams copy() {
+        TreeEnsembleParams copy = new TreeEnsembleParams();
+        copy.maxDepth = maxDepth;
+        copy.maxBins = maxBins;
+        copy.minInstancesPerNode = minInstancesPerNode;
+        copy.minInfoGain = minInfoGain;
+        copy.minWeightFractionPerNode = minWeightFractionPerNode;
+        copy.subsamplingRate = subsamplingRate;
+        copy.featureSubsetStrategy = featureSubsetStrategy;
+        copy.numTrees = numTrees;
+        copy.bootstrap = bootstrap;
+        copy.maxIter = maxIter;
+        copy.stepSize = stepSize;
+        copy.lossType = lossType;
+        copy.validationFraction = validationFraction;
+        copy.validationTol = validationTol;
+        return copy;
+    }
+
+    /**
+     * Number of features considered at each split, resolved the way Spark resolves featureSubsetStrategy.
+     * @param numFeatures Total number of features.
+     * @param forest True for a random forest of more than one tree, where "auto" means "onethird".
+     */
+    public int featuresPerNode(int numFeatures, boolean forest) {
+        String strategy = featureSubsetStrategy.toLowerCase();
+        switch (strategy) {
+            case "auto":
+                return forest ? (int) Math.ceil(numFeatures / 3.0) : numFeatures;
+            case "all":
+                return numFeatures;
+            case "sqrt":
+                return (int) Math.ceil(Math.sqrt(numFeatures));
+            case "log2":
+                return Math.max(1, (int) Math.ceil(Math.log(numFeatures) / Math.log(2)));
+            case "onethird":
+                return (int) Math.ceil(numFeatures / 3.0);
+            default:
+                // A fraction in (0, 1] or an absolute number of features
+                double number = Double.parseDouble(strategy);
+                int count = strategy.contains(".") ? (int) Math.ceil(number * numFeatures) : (int) number;
+                return Math.max(1, Math.min(count, numFeatures));
+        }
+    }
+
+    public static TreeEnsembleParams of(RandomForestRegressor rf) {
+        TreeEnsembleParams params = new TreeEnsembleParams();
+        params.maxDepth = rf.getMaxDepth();
+        params.maxBins = rf.getMaxBins();
+        params.minInstancesPerNode = rf.getMinInstancesPerNode();
+        params.minInfoGain = rf.getMinInfoGain();
+        params.minWeightFractionPerNode = rf.getMinWeightFractionPerNode();
+        params.subsamplingRate = rf.getSubsamplingRate();
+        params.featureSubsetStrategy = rf.getFeatureSubsetStrategy();
+        params.numTrees = rf.getNumTrees();
+        params.bootstrap = rf.getBootstrap();
+        return params;
+    }
+
+    public static TreeEnsembleParams of(GBTRegressor gb) {
+        TreeEnsembleParams params = new TreeEnsembleParams();
+        params.maxDepth = gb.getMaxDepth();
+        params.maxBins = gb.getMaxBins();
+        params.minInstancesPerNode = gb.getMinInstancesPerNode();
+        params.minInfoGain = gb.getMinInfoGain();
+        params.minWeightFractionPerNode = gb.getMinWeightFractionPerNode();
+        params.subsamplingRate = gb.getSubsamplingRate();
+        params.featureSubsetStrategy = gb.getFeatureSubsetStrategy();
+        params.maxIter = gb.getMaxIter();
+        params.stepSize = gb.getStepSize();
+        params.lossType = gb.getLossType();
+        params.validationTol = gb.getValidationTol();
+        return params;
+    }
+
+    public RandomForestRegressor toRandomForestRegressor() {
+        return new RandomForestRegressor()
+            .setFeaturesCol("features")
+            .setLabelCol("label")
+            .setMaxDepth(maxDepth)
+            .setMaxBins(maxBins)
+            .setMinInstancesPerNode(minInstancesPerNode)
+            .setMinInfoGain(minInfoGain)
+            .setMinWeightFractionPerNode(minWeightFractionPerNode)
+            .setSubsamplingRate(subsamplingRate)
+            .setFeatureSubsetStrategy(featureSubsetStrategy)
+            .setNumTrees(numTrees)
+            .setBootstrap(bootstrap);
+    }
+
+    public GBTRegressor toGBTRegressor() {
+        return new GBTRegressor()
+            .setFeaturesCol("features")
+            .setLabelCol("label")
+            .setMaxDepth(maxDepth)
+            .setMaxBins(maxBins)
+            .setMinInstancesPerNode(minInstancesPerNode)
+            .setMinInfoGain(minInfoGain)
+            .setMinWeightFractionPerNode(minWeightFractionPerNode)
+            .setSubsamplingRate(subsamplingRate)
+            .setFeatureSubsetStrategy(featureSubsetStrategy)
+            .setMaxIter(maxIter)
+            .setStepSize(stepSize)
+            .setLossType(lossType)
+            .setValidationTol(validationTol);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("maxDepth=%d, maxBins=%d, minInstancesPerNode=%d, minInfoGain=%s, " +
+                "minWeightFractionPerNode=%s, subsamplingRate=%s, featureSubsetStrategy=%s, numTrees=%d, " +
+                "bootstrap=%s, maxIter=%d, stepSize=%s, lossType=%s, validationFraction=%s, validationTol=%s", maxDepth,
+            maxBins, minInstancesPerNode, minInfoGain, minWeightFractionPerNode, subsamplingRate, featureSubsetStrategy,
+            numTrees, bootstrap, maxIter, stepSize, lossType, validationFraction, validationTol);
+    }
+}
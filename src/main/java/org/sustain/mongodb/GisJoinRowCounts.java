@@ -0,0 +1,129 @@
+package org.sustain.mongodb;
+
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalog of per-GISJoin document counts, used to decide whether a GISJoin is small enough to be
+ * trained in-process instead of on Spark, and to estimate its training cost when scheduling. Counts are
+ * fetched from MongoDB and cached per collection, along with a fingerprint of the collection: its document
+ * count and data size from collStats. At most every GISJOIN_COUNT_RECHECK_SECONDS (default 60) the
+ * fingerprint is fetched again, and a changed collection drops its cached counts.
+ */
+public class GisJoinRowCounts {
+
+    private static final Logger log = LogManager.getLogger(GisJoinRowCounts.class);
+
+    private static final long RECHECK_NANOS = TimeUnit.SECONDS.toNanos(Long.parseLong(
+            System.getenv().getOrDefault("GISJOIN_COUNT_RECHECK_SECONDS", "60")));
+
+    private static final Map<String, CollectionCounts> collections = new ConcurrentHashMap<>();
+
+    /**
+     * @param collection Name of the collection.
+     * @param gisJoinField Name of the GISJoin field in the collection.
+     * @param gisJoin The GISJoin to count documents for.
+     * @return Number of documents of the GISJoin in the collection.
+     */
+    public static long count(String collection, String gisJoinField, String gisJoin) {
+        return countsOf(collection).computeIfAbsent(gisJoin, key -> {
+            long count = DBConnection.getConnection()
+                .getCollection(collection)
+                .countDocuments(Filters.eq(gisJoinField, gisJoin));
+            log.debug("Collection {} has {} documents for GISJoin {}", collection, count, gisJoin);
+            return count;
+        });
+    }
+
+    /**
+     * Counts every uncached GISJoin in a single $match/$group aggregation, instead of one count per GISJoin.
+     * @param collection Name of the collection.
+     * @param gisJoinField Name of the GISJoin field in the collection.
+     * @param gisJoins The GISJoins to count documents for.
+     * @return Number of documents of each GISJoin in the collection; GISJoins without documents map to 0.
+     */
+    public static Map<String, Long> countAll(String collection, String gisJoinField, List<String> gisJoins) {
+        Map<String, Long> counts = countsOf(collection);
+        List<String> uncached = new ArrayList<>();
+        for (String gisJoin: gisJoins) {
+            if (!counts.containsKey(gisJoin)) {
+                uncached.add(gisJoin);
+            }
+        }
+
+        if (!uncached.isEmpty()) {
+            Map<String, Long> fetched = new HashMap<>();
+            for (Document group: DBConnection.getConnection().getCollection(collection).aggregate(Arrays.asList(
+                    Aggregates.match(Filters.in(gisJoinField, uncached)),
+                    Aggregates.group("$" + gisJoinField, Accumulators.sum("count", 1))))) {
+                fetched.put(group.getString("_id"), ((Number) group.get("count")).longValue());
+            }
+            for (String gisJoin: uncached) {
+                counts.putIfAbsent(gisJoin, fetched.getOrDefault(gisJoin, 0L));
+            }
+            log.debug("Counted documents of {} GISJoins in collection {}", uncached.size(), collection);
+        }
+
+        Map<String, Long> result = new HashMap<>();
+        for (String gisJoin: gisJoins) {
+            result.put(gisJoin, counts.get(gisJoin));
+        }
+        return result;
+    }
+
+    /**
+     * @return The cached counts of the collection, emptied first if its fingerprint changed since the last check.
+     */
+    private static Map<String, Long> countsOf(String collection) {
+        CollectionCounts cached = collections.get(collection);
+        long now = System.nanoTime();
+        if (cached != null && now - cached.checkedAt < RECHECK_NANOS) {
+            return cached.counts;
+        }
+
+        String fingerprint = fingerprint(collection);
+        return collections.compute(collection, (key, current) -> {
+            if (current != null && current.fingerprint.equals(fingerprint)) {
+                current.checkedAt = now;
+                return current;
+            }
+            if (current != null) {
+                log.info("Collection {} changed, dropping its {} cached GISJoin counts", collection,
+                        current.counts.size());
+            }
+            return new CollectionCounts(fingerprint, now);
+        }).counts;
+    }
+
+    /**
+     * @return The collection's document count and data size, which change with nearly every write to it.
+     */
+    private static String fingerprint(String collection) {
+        Document stats = DBConnection.getConnection().runCommand(new Document("collStats", collection));
+        return ((Number) stats.get("count")).longValue() + ":" + ((Number) stats.get("size")).longValue();
+    }
+
+    private static class CollectionCounts {
+        private final String            fingerprint;
+        private final Map<String, Long> counts = new ConcurrentHashMap<>();
+        private volatile long           checkedAt;
+
+        private CollectionCounts(String fingerprint, long checkedAt) {
+            this.fingerprint = fingerprint;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.sustain.mongodb;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.spark.MongoSpark;
+import com.mongodb.spark.config.ReadConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Builds aggregation pipelines that are pushed down to MongoDB through the Mongo-Spark connector,
+ * so only the documents and fields a model needs leave the database.
+ */
+public class PushdownPipeline {
+
+    private static final Logger log = LogManager.getLogger(PushdownPipeline.class);
+
+    /**
+     * Builds a $match on the GISJoin field (a plain equality for one GISJoin, $in for several),
+     * followed by a $project of only the requested columns.
+     * @param gisJoinField Name of the GISJoin field in the collection, e.g. "gis_join".
+     * @param gisJoins GISJoins whose documents should be returned.
+     * @param columns Feature and label fields to keep; the GISJoin field and _id are always kept.
+     * @return The aggregation pipeline stages.
+     */
+    public static List<Bson> forGisJoins(String gisJoinField, List<String> gisJoins, List<String> columns) {
+        Bson match = gisJoins.size() == 1
+            ? Filters.eq(gisJoinField, gisJoins.get(0))
+            : Filters.in(gisJoinField, gisJoins);
+
+        LinkedHashSet<String> fields = new LinkedHashSet<>();
+        fields.add(gisJoinField);
+        fields.addAll(columns);
+
+        return Arrays.asList(
+            Aggregates.match(match),
+            Aggregates.project(Projections.include(new ArrayList<>(fields)))
+        );
+    }
+
+    /**
+     * Lazily loads only the documents of the given GISJoins, with only the given columns, as a DataFrame.
+     * @param sparkContext The JavaSparkContext of the running task.
+     * @param readConfig ReadConfig pointing at the source collection.
+     * @param gisJoinField Name of the GISJoin field in the collection.
+     * @param gisJoins GISJoins whose documents should be loaded.
+     * @param columns Feature and label fields to keep.
+     * @return A DataFrame backed by the pushed-down aggregation.
+     */
+    public static Dataset<Row> load(JavaSparkContext sparkContext, ReadConfig readConfig, String gisJoinField,
+                                    List<String> gisJoins, List<String> columns) {
+        List<Bson> pipeline = forGisJoins(gisJoinField, gisJoins, columns);
+        log.info("Pushing down pipeline for {} GISJoins and columns {} to collection {}",
+            gisJoins.size(), columns, readConfig.collectionName());
+        return MongoSpark.load(sparkContext, readConfig).withPipeline(pipeline).toDF();
+    }
+}
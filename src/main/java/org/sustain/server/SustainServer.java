@@ -19,7 +19,8 @@ public class SustainServer {
         "build/libs/spark-mllib_2.12-3.0.1.jar",
         "build/libs/spark-sql_2.12-3.0.1.jar",
         "build/libs/bson-4.0.5.jar",
-        "build/libs/mongo-java-driver-3.12.5.jar"
+        "build/libs/mongo-java-driver-3.12.5.jar",
+        "build/libs/sustain-census-grpc-1.0-SNAPSHOT.jar" // executor-side training code
     };
 
     private Server server;
@@ -58,6 +59,13 @@ public class SustainServer {
             sparkManager.addJar(jar);
         }
 
+        // create and warm the shared SparkSession before accepting requests
+        try {
+            sparkManager.initialize();
+        } catch (Exception e) {
+            log.error("Failed to initialize the shared SparkSession, it will be created on first use", e);
+        }
+
         final int port = Constants.Server.PORT;
         server = ServerBuilder.forPort(port)
             .addService(new JsonProxyService(sparkManager))
@@ -83,6 +91,9 @@ public class SustainServer {
         if (server != null) {
             server.awaitTermination(2, TimeUnit.SECONDS);
         }
+        if (sparkManager != null) {
+            sparkManager.shutdown();
+        }
     }
 
     public void blockUntilShutdown() throws InterruptedException {
@@ -1,5 +1,8 @@
 package org.sustain.server;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.logging.log4j.LogManager;
@@ -13,14 +16,19 @@ import org.sustain.DirectResponse;
 import org.sustain.ModelRequest;
 import org.sustain.ModelResponse;
 import org.sustain.ModelType;
+import org.sustain.PredictRequest;
+import org.sustain.PredictResponse;
 import org.sustain.SlidingWindowRequest;
 import org.sustain.SlidingWindowResponse;
 import org.sustain.SparkManager;
 import org.sustain.SustainGrpc;
+import org.sustain.handlers.BatchPredictQueryHandler;
 import org.sustain.handlers.ClusteringQueryHandler;
 import org.sustain.handlers.CompoundQueryHandler;
 import org.sustain.handlers.CountQueryHandler;
 import org.sustain.handlers.GrpcHandler;
+import org.sustain.handlers.GrpcSparkHandler;
+import org.sustain.handlers.PredictQueryHandler;
 import org.sustain.handlers.RegressionQueryHandler;
 import org.sustain.handlers.DirectQueryHandler;
 import org.sustain.handlers.EnsembleQueryHandler;
@@ -47,7 +55,7 @@ public class SustainService extends SustainGrpc.SustainImplBase {
     @Override
     public void modelQuery(ModelRequest request, StreamObserver<ModelResponse> responseObserver) {
 
-        GrpcHandler handler;
+        GrpcSparkHandler<ModelRequest, ModelResponse> handler;
         ModelType type = request.getType();
         switch (type) {
             case LINEAR_REGRESSION:
@@ -78,12 +86,22 @@ public class SustainService extends SustainGrpc.SustainImplBase {
                 log.info("Received a Latent Dirichlet Allocation Request");
                 handler = new ClusteringQueryHandler(request, responseObserver, this.sparkManager);
                 break;
+            case BATCH_PREDICT:
+                log.info("Received a Batch Predict Request");
+                handler = new BatchPredictQueryHandler(request, responseObserver, this.sparkManager);
+                break;
             default:
                 responseObserver.onError(new Exception("Invalid Model Type"));
                 return;
         }
 
-        handler.handleRequest();
+        Context.CancellationListener cancellationListener = cancelOnDisconnect(responseObserver, handler);
+        try {
+            handler.handleRequest();
+        } finally {
+            Context.current().removeListener(cancellationListener);
+            handler.logCacheUsage();
+        }
         responseObserver.onCompleted();
     }
 
@@ -96,9 +114,15 @@ public class SustainService extends SustainGrpc.SustainImplBase {
 
     @Override
     public void countQuery(CountRequest request, StreamObserver<CountResponse> responseObserver) {
-        GrpcHandler<CountRequest, CountResponse> handler =
+        GrpcSparkHandler<CountRequest, CountResponse> handler =
             new CountQueryHandler(request, responseObserver, this.sparkManager);
-        handler.handleRequest();
+        Context.CancellationListener cancellationListener = cancelOnDisconnect(responseObserver, handler);
+        try {
+            handler.handleRequest();
+        } finally {
+            Context.current().removeListener(cancellationListener);
+            handler.logCacheUsage();
+        }
     }
 
     @Override
@@ -107,6 +131,38 @@ public class SustainService extends SustainGrpc.SustainImplBase {
         handler.handleRequest();
     }
 
+    @Override
+    public void predictQuery(PredictRequest request, StreamObserver<PredictResponse> responseObserver) {
+        GrpcHandler<PredictRequest, PredictResponse> handler = new PredictQueryHandler(request, responseObserver);
+        handler.handleRequest();
+    }
+
+    /**
+     * Cancels a handler's Spark job group, and interrupts its pending tasks, as soon as the
+     * client cancels the call or disconnects. The call's Context is cancelled by the server on
+     * its own executor, while the call's serializing executor, which would run an on-cancel
+     * handler, is blocked in handleRequest() until the request finishes.
+     *
+     * @param responseObserver Response Stream of the call being serviced.
+     * @param handler          The handler servicing the call.
+     * @return The listener, to be removed once the request has been handled, since the server
+     * also cancels the Context when the call completes normally.
+     */
+    private Context.CancellationListener cancelOnDisconnect(StreamObserver<?> responseObserver,
+                                                            GrpcSparkHandler<?, ?> handler) {
+        // Without an on-cancel handler, onCompleted() throws on a call the client has cancelled
+        ServerCallStreamObserver<?> serverCallStreamObserver = (ServerCallStreamObserver<?>) responseObserver;
+        serverCallStreamObserver.setOnCancelHandler(() -> log.debug("Call to {} cancelled",
+            handler.getClass().getSimpleName()));
+
+        Context.CancellationListener cancellationListener = context -> {
+            log.info("Client cancelled the call, cancelling {}", handler.getClass().getSimpleName());
+            handler.cancel();
+        };
+        Context.current().addListener(cancellationListener, MoreExecutors.directExecutor());
+        return cancellationListener;
+    }
+
     /**
      * An example RPC method used to sanity-test the gRPC server manually, or unit-test it with JUnit.
      *
@@ -25,5 +25,8 @@ public class Constants {
         public static final String MAX_EXECUTORS = System.getenv("SPARK_MAX_EXECUTORS");
         public static final String BACKLOG_TIMEOUT = System.getenv("SPARK_BACKLOG_TIMEOUT");
         public static final String IDLE_TIMEOUT = System.getenv("SPARK_IDLE_TIMEOUT");
+        public static final String SCHEDULER_ALLOCATION_FILE = System.getenv("SPARK_SCHEDULER_ALLOCATION_FILE");
+        public static final Long   LOCAL_TRAINING_MAX_ROWS = Long.parseLong(
+            System.getenv().getOrDefault("LOCAL_TRAINING_MAX_ROWS", "5000"));
     }
 }
@@ -0,0 +1,213 @@
+package org.sustain.handlers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that balancedBatches() splits GISJoins into batches of similar total row counts, and drives run() with
+ * stub trainers on a thread pool to check work stealing and speculative re-execution.
+ */
+public class GisJoinSchedulerTest {
+
+    // Short enough for a test, long enough that only the blocked GISJoin becomes a straggler
+    private static final long MIN_SPECULATION_MILLIS = 200;
+    private static final long SPECULATION_CHECK_MILLIS = 20;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    public void testLongestProcessingTimeFirst() {
+        Map<String, Long> costs = new HashMap<>();
+        costs.put("a", 10L);
+        costs.put("b", 7L);
+        costs.put("c", 5L);
+        costs.put("d", 4L);
+        costs.put("e", 3L);
+        costs.put("f", 1L);
+
+        // Each GISJoin, most expensive first, goes to the batch with the least cost so far
+        List<List<String>> batches = GisJoinScheduler.balancedBatches(Arrays.asList("f", "e", "d", "c", "b", "a"),
+                costs, 2);
+        assertEquals(Arrays.asList(Arrays.asList("a", "d", "f"), Arrays.asList("b", "c", "e")), batches);
+    }
+
+    @Test
+    public void testEveryGisJoinIsBatchedOnce() {
+        Map<String, Long> costs = new HashMap<>();
+        List<String> gisJoins = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            gisJoins.add("G" + i);
+            costs.put("G" + i, (long) (i * i % 97));
+        }
+        List<List<String>> batches = GisJoinScheduler.balancedBatches(gisJoins, costs, 7);
+
+        assertEquals(7, batches.size());
+        List<String> batched = new ArrayList<>();
+        long maxLoad = 0, minLoad = Long.MAX_VALUE;
+        for (List<String> batch: batches) {
+            batched.addAll(batch);
+            long load = 0;
+            for (String gisJoin: batch) {
+                load += Math.max(1L, costs.get(gisJoin));
+            }
+            maxLoad = Math.max(maxLoad, load);
+            minLoad = Math.min(minLoad, load);
+        }
+        Collections.sort(batched);
+        List<String> expected = new ArrayList<>(gisJoins);
+        Collections.sort(expected);
+        assertEquals(expected, batched);
+        // The greedy assignment keeps every batch within the largest single cost of the others
+        assertTrue(maxLoad - minLoad <= 96, "loads " + minLoad + " to " + maxLoad);
+    }
+
+    @Test
+    public void testNoMoreBatchesThanGisJoins() {
+        List<List<String>> batches = GisJoinScheduler.balancedBatches(Arrays.asList("a", "b"), new HashMap<>(), 5);
+
+        // Unknown GISJoins count as one row each
+        assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("b")), batches);
+        assertEquals(Collections.singletonList(Collections.emptyList()),
+                GisJoinScheduler.balancedBatches(Collections.emptyList(), new HashMap<>(), 5));
+    }
+
+    @Test
+    public void testIdleWorkerStealsCheapestFirst() throws Exception {
+        Map<String, Long> costs = new HashMap<>();
+        costs.put("b", 10L);
+        costs.put("a", 5L);
+        costs.put("c", 3L);
+        costs.put("d", 1L);
+        List<String> gisJoins = Arrays.asList("a", "b", "c", "d");
+        // Worker 0 is seeded with b, worker 1 with a, c and d
+        assertEquals(Arrays.asList(Collections.singletonList("b"), Arrays.asList("a", "c", "d")),
+                GisJoinScheduler.balancedBatches(gisJoins, costs, 2));
+
+        // b waits for a to start, then a holds up its worker until c and d are done, which only the other
+        // worker can do by stealing them
+        CountDownLatch started = new CountDownLatch(1), stolen = new CountDownLatch(2);
+        Map<String, Thread> trainedBy = new ConcurrentHashMap<>();
+        List<String> trainingOrder = new CopyOnWriteArrayList<>();
+        List<String> results = run(new GisJoinScheduler(gisJoins, costs, 2, MIN_SPECULATION_MILLIS,
+                SPECULATION_CHECK_MILLIS), (sparkContext, gisJoin) -> {
+            trainedBy.put(gisJoin, Thread.currentThread());
+            trainingOrder.add(gisJoin);
+            if (gisJoin.equals("a")) {
+                started.countDown();
+                assertTrue(stolen.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "c and d weren't stolen");
+            } else if (gisJoin.equals("b")) {
+                assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "a didn't start");
+            } else {
+                stolen.countDown();
+            }
+            return Collections.singletonList(gisJoin);
+        });
+
+        Collections.sort(results);
+        assertEquals(gisJoins, results);
+        assertEquals(trainedBy.get("b"), trainedBy.get("c"));
+        assertEquals(trainedBy.get("b"), trainedBy.get("d"));
+        assertNotEquals(trainedBy.get("a"), trainedBy.get("d"));
+        // Stolen from the back of the queue, the cheapest first
+        assertTrue(trainingOrder.indexOf("d") < trainingOrder.indexOf("c"), "order " + trainingOrder);
+    }
+
+    @Test
+    public void testSpeculativeAttemptWins() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch firstAttemptInterrupted = new CountDownLatch(1);
+        List<String> results = run(new GisJoinScheduler(Arrays.asList("a", "b"), new HashMap<>(), 2,
+                MIN_SPECULATION_MILLIS, SPECULATION_CHECK_MILLIS), (sparkContext, gisJoin) -> {
+            if (gisJoin.equals("b")) {
+                Thread.sleep(10);
+                return Collections.singletonList("b");
+            }
+            int attempt = attempts.incrementAndGet();
+            if (attempt == 1) {
+                // A straggler that only ends when it is interrupted
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                } catch (InterruptedException e) {
+                    firstAttemptInterrupted.countDown();
+                    throw e;
+                }
+            }
+            return Collections.singletonList("a" + attempt);
+        });
+
+        Collections.sort(results);
+        assertEquals(Arrays.asList("a2", "b"), results);
+        assertEquals(2, attempts.get());
+        assertTrue(firstAttemptInterrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                "The slower first attempt wasn't cancelled");
+    }
+
+    @Test
+    public void testFirstAttemptWinsOverSpeculativeAttempt() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch speculativeAttemptStarted = new CountDownLatch(1);
+        CountDownLatch speculativeAttemptInterrupted = new CountDownLatch(1);
+        // Three workers: once b and c are done, only one speculative attempt of the straggler a is submitted
+        List<String> results = run(new GisJoinScheduler(Arrays.asList("a", "b", "c"), new HashMap<>(), 3,
+                MIN_SPECULATION_MILLIS, SPECULATION_CHECK_MILLIS), (sparkContext, gisJoin) -> {
+            if (!gisJoin.equals("a")) {
+                Thread.sleep(10);
+                return Collections.singletonList(gisJoin);
+            }
+            int attempt = attempts.incrementAndGet();
+            if (attempt == 1) {
+                // Finishes well after the speculative attempt started, over many speculation checks
+                assertTrue(speculativeAttemptStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                        "a wasn't re-executed");
+                Thread.sleep(10 * SPECULATION_CHECK_MILLIS);
+            } else {
+                speculativeAttemptStarted.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                } catch (InterruptedException e) {
+                    speculativeAttemptInterrupted.countDown();
+                    throw e;
+                }
+            }
+            return Collections.singletonList("a" + attempt);
+        });
+
+        Collections.sort(results);
+        assertEquals(Arrays.asList("a1", "b", "c"), results);
+        assertEquals(2, attempts.get());
+        assertTrue(speculativeAttemptInterrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                "The slower speculative attempt wasn't cancelled");
+    }
+
+    /**
+     * Runs the scheduler's workers on a thread pool of their own.
+     * @return The results handed to onResult, in order.
+     */
+    private static List<String> run(GisJoinScheduler scheduler, GisJoinScheduler.GisJoinTrainer<String> trainer)
+            throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> results = new ArrayList<>();
+        try {
+            scheduler.run(task -> executor.submit(() -> task.execute(null)), trainer, results::add, () -> false);
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,78 @@
+package org.sustain.modeling;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Extrapolates errors that follow a power law exactly, so the fitted curve can be checked by hand.
+ */
+public class LearningCurveTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testTooFewSizes() {
+        LearningCurve curve = new LearningCurve();
+        assertTrue(Double.isNaN(curve.extrapolate(16.0)));
+
+        curve.add(1.0, 2.0);
+        curve.add(1.0, 1.5);
+        // Two errors at the same size give no slope
+        assertTrue(Double.isNaN(curve.extrapolate(16.0)));
+        assertFalse(curve.unreachable(0.0, 16.0));
+    }
+
+    @Test
+    public void testPowerLawIsExtrapolated() {
+        // error = 2 / sqrt(size)
+        LearningCurve curve = new LearningCurve();
+        curve.add(1.0, 2.0);
+        curve.add(4.0, 1.0);
+        curve.add(9.0, 2.0 / 3.0);
+
+        assertEquals(0.5, curve.extrapolate(16.0), DELTA);
+        assertEquals(0.2, curve.extrapolate(100.0), DELTA);
+        // Never worse than the best error seen
+        assertEquals(2.0 / 3.0, curve.extrapolate(1.0), DELTA);
+    }
+
+    @Test
+    public void testNoImprovementKeepsTheBestError() {
+        LearningCurve curve = new LearningCurve();
+        curve.add(0.25, 1.0);
+        curve.add(0.5, 1.2);
+        curve.add(1.0, 1.1);
+
+        assertEquals(1.0, curve.extrapolate(10.0), DELTA);
+    }
+
+    @Test
+    public void testUnreachableTarget() {
+        LearningCurve curve = new LearningCurve();
+        curve.add(1.0, 2.0);
+        curve.add(4.0, 1.0);
+
+        // Extrapolates to 0.5 at 16, and allows 5% on the target
+        assertTrue(curve.unreachable(0.45, 16.0));
+        assertFalse(curve.unreachable(0.48, 16.0));
+        assertFalse(curve.unreachable(0.5, 16.0));
+    }
+
+    @Test
+    public void testInvalidObservationsAreIgnored() {
+        LearningCurve curve = new LearningCurve();
+        curve.add(1.0, 2.0);
+        curve.add(0.0, 5.0);
+        curve.add(-1.0, 5.0);
+        curve.add(2.0, 0.0);
+        curve.add(2.0, Double.NaN);
+        curve.add(2.0, Double.POSITIVE_INFINITY);
+        assertTrue(Double.isNaN(curve.extrapolate(16.0)));
+
+        curve.add(4.0, 1.0);
+        assertEquals(0.5, curve.extrapolate(16.0), DELTA);
+    }
+}
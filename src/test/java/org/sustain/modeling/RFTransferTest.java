@@ -0,0 +1,108 @@
+package org.sustain.modeling;
+
+import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.regression.DecisionTreeRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressor;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Transfers a parent forest to a child's data in a local Spark session, and checks how many of the parent's
+ * trees the merged forest keeps for reachable and unreachable targets.
+ */
+public class RFTransferTest {
+
+    private static final int NUM_TREES = 6;
+
+    private static SparkSession                sparkSession;
+    private static RandomForestRegressor       parameters;
+    private static RandomForestRegressionModel parentModel;
+    private static Dataset<Row>                childTrain, childTest;
+
+    @BeforeAll
+    public static void beforeAllTests() {
+        sparkSession = SparkSession.builder()
+                .master("local[1]")
+                .appName("RFTransferTest")
+                .config("spark.ui.enabled", "false")
+                .getOrCreate();
+
+        parameters = new RandomForestRegressor()
+                .setFeaturesCol("features")
+                .setLabelCol("label")
+                .setNumTrees(NUM_TREES)
+                .setMaxDepth(3)
+                .setSeed(1L);
+        parentModel = parameters.fit(dataset(new Random(1), 200, 1.0));
+        Dataset<Row>[] split = dataset(new Random(2), 100, 1.2).randomSplit(new double[]{0.8, 0.2}, 3L);
+        childTrain = split[0];
+        childTest = split[1];
+    }
+
+    @AfterAll
+    public static void afterAllTests() {
+        sparkSession.stop();
+    }
+
+    @Test
+    public void testReachableTargetKeepsHalfOfTheParent() {
+        RFTransfer transfer = new RFTransfer().fit(parentModel, parameters, childTrain, childTest,
+                Double.MAX_VALUE);
+
+        assertEquals(NUM_TREES / 2, transfer.getKeptTrees());
+        assertEquals(NUM_TREES - NUM_TREES / 2, transfer.getTrainedTrees());
+        assertEquals(NUM_TREES, transfer.getModel().getNumTrees());
+        assertEquals(parentModel.numFeatures(), transfer.getModel().numFeatures());
+
+        // The kept parent trees come first
+        List<DecisionTreeRegressionModel> parentTrees = Arrays.asList(parentModel.trees());
+        for (int t = 0; t < transfer.getKeptTrees(); t++) {
+            assertTrue(parentTrees.contains(transfer.getModel().trees()[t]));
+        }
+        assertTrue(transfer.getRmse() > 0.0);
+    }
+
+    @Test
+    public void testUnreachableTargetReplacesTheParent() {
+        RFTransfer transfer = new RFTransfer().fit(parentModel, parameters, childTrain, childTest, 0.0);
+
+        assertEquals(0, transfer.getKeptTrees());
+        assertEquals(NUM_TREES, transfer.getTrainedTrees());
+        assertEquals(NUM_TREES, transfer.getModel().getNumTrees());
+    }
+
+    /**
+     * @return Rows whose label is slope * (x1 + 2 x2) plus noise, with "features" and "label" columns.
+     */
+    private static Dataset<Row> dataset(Random random, int numRows, double slope) {
+        StructType schema = new StructType()
+                .add("x1", DataTypes.DoubleType)
+                .add("x2", DataTypes.DoubleType)
+                .add("label", DataTypes.DoubleType);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < numRows; i++) {
+            double x1 = random.nextDouble() * 10.0, x2 = random.nextDouble() * 10.0;
+            rows.add(RowFactory.create(x1, x2, slope * (x1 + 2.0 * x2) + random.nextGaussian()));
+        }
+        return new VectorAssembler()
+                .setInputCols(new String[]{"x1", "x2"})
+                .setOutputCol("features")
+                .transform(sparkSession.createDataFrame(rows, schema));
+    }
+}
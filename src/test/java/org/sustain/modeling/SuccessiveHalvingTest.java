@@ -0,0 +1,79 @@
+package org.sustain.modeling;
+
+import org.junit.jupiter.api.Test;
+import org.sustain.HyperparameterSearch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the rung schedule: how many rungs a grid takes, and the sample each rung trains on.
+ */
+public class SuccessiveHalvingTest {
+
+    private static final double DELTA = 1e-12;
+
+    @Test
+    public void testNumRungs() {
+        SuccessiveHalving halving = new SuccessiveHalving(3, 0.0, 1);
+
+        // 81 -> 27 -> 9 -> 3 -> 1
+        assertEquals(4, halving.numRungs(81));
+        // 10 -> 4 -> 2 -> 1
+        assertEquals(3, halving.numRungs(10));
+        assertEquals(1, halving.numRungs(2));
+        assertEquals(1, halving.numRungs(1));
+        assertEquals(3, new SuccessiveHalving(2, 0.0, 1).numRungs(8));
+    }
+
+    @Test
+    public void testLastRungUsesAllData() {
+        SuccessiveHalving halving = new SuccessiveHalving(3, 0.0, 1);
+        int numRungs = halving.numRungs(81);
+
+        assertArrayEquals(new double[]{1.0 / 27, 1.0 / 9, 1.0 / 3, 1.0}, sampleFractions(halving, numRungs), DELTA);
+        assertEquals(1.0, halving.sampleFraction(0, halving.numRungs(1)), DELTA);
+    }
+
+    @Test
+    public void testMinSampleFraction() {
+        SuccessiveHalving halving = new SuccessiveHalving(3, 0.1, 1);
+
+        // Grows by the reduction factor from the requested first sample, capped at all of the data
+        assertArrayEquals(new double[]{0.1, 0.3, 0.9, 1.0}, sampleFractions(halving, halving.numRungs(81)), DELTA);
+    }
+
+    @Test
+    public void testRequestDefaults() {
+        HyperparameterSearch search = HyperparameterSearch.newBuilder()
+                .setStrategy(SuccessiveHalving.STRATEGY)
+                .setReductionFactor(1)
+                .setMinSampleFraction(1.5)
+                .build();
+        SuccessiveHalving halving = SuccessiveHalving.of(search);
+
+        assertTrue(SuccessiveHalving.isSelected(search));
+        assertFalse(SuccessiveHalving.isSelected(HyperparameterSearch.getDefaultInstance()));
+        // Invalid values fall back to a reduction factor of 3 and a first sample sized for the grid
+        assertEquals(4, halving.numRungs(81));
+        assertEquals(1.0 / 27, halving.sampleFraction(0, 4), DELTA);
+    }
+
+    @Test
+    public void testGridDefaults() {
+        assertArrayEquals(new int[]{3, 4, 5}, SuccessiveHalving.intGrid(HyperparameterSearch.getDefaultInstance()
+                .getMaxDepthList(), 3, 4, 5));
+        assertArrayEquals(new int[]{8}, SuccessiveHalving.intGrid(HyperparameterSearch.newBuilder()
+                .addMaxDepth(8).build().getMaxDepthList(), 3, 4, 5));
+    }
+
+    private static double[] sampleFractions(SuccessiveHalving halving, int numRungs) {
+        double[] fractions = new double[numRungs];
+        for (int rung = 0; rung < numRungs; rung++) {
+            fractions[rung] = halving.sampleFraction(rung, numRungs);
+        }
+        return fractions;
+    }
+}
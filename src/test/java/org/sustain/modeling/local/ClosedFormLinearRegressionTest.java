@@ -0,0 +1,110 @@
+package org.sustain.modeling.local;
+
+import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.regression.LinearRegression;
+import org.apache.spark.ml.regression.LinearRegressionModel;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.apache.spark.sql.functions.col;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Fits two GISJoins with ClosedFormLinearRegression and compares every fit with Spark ML's LinearRegression,
+ * trained with the normal-equation solver on the same GISJoin's rows, in a local Spark session.
+ */
+public class ClosedFormLinearRegressionTest {
+
+    private static final double       DELTA = 1e-6;
+    private static final List<String> FEATURES = Arrays.asList("x1", "x2");
+
+    private static SparkSession sparkSession;
+    private static Dataset<Row> collection;
+
+    @BeforeAll
+    public static void beforeAllTests() {
+        sparkSession = SparkSession.builder()
+                .master("local[1]")
+                .appName("ClosedFormLinearRegressionTest")
+                .config("spark.ui.enabled", "false")
+                .config("spark.sql.shuffle.partitions", "2")
+                .getOrCreate();
+
+        StructType schema = new StructType()
+                .add("gis_join", DataTypes.StringType)
+                .add("x1", DataTypes.DoubleType, true)
+                .add("x2", DataTypes.DoubleType, true)
+                .add("y", DataTypes.DoubleType, true);
+        List<Row> rows = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            double x1 = random.nextDouble() * 10.0, x2 = random.nextDouble() * 100.0;
+            rows.add(RowFactory.create("G0100010", x1, x2, 3.0 + 1.5 * x1 - 0.2 * x2 + random.nextGaussian()));
+            x1 = random.nextDouble() * 5.0;
+            x2 = random.nextDouble() * 20.0;
+            rows.add(RowFactory.create("G0100030", x1, x2, -1.0 + 0.5 * x1 + 2.0 * x2 + random.nextGaussian()));
+        }
+        // Incomplete rows are skipped
+        rows.add(RowFactory.create("G0100010", null, 1.0, 2.0));
+        collection = sparkSession.createDataFrame(rows, schema);
+    }
+
+    @AfterAll
+    public static void afterAllTests() {
+        sparkSession.stop();
+    }
+
+    @Test
+    public void testMatchesSparkNormalSolver() {
+        for (boolean standardization: new boolean[]{true, false}) {
+            for (double regParam: new double[]{0.0, 0.3}) {
+                assertMatchesSpark(regParam, true, standardization);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesSparkNormalSolverWithoutIntercept() {
+        assertMatchesSpark(0.0, false, true);
+    }
+
+    private static void assertMatchesSpark(double regParam, boolean fitIntercept, boolean standardization) {
+        List<LinearRegressionFit> fits = new ClosedFormLinearRegression(FEATURES, "y", regParam, fitIntercept,
+                standardization).fitAll(collection, "gis_join");
+        assertEquals(2, fits.size());
+
+        Dataset<Row> assembled = new VectorAssembler()
+                .setInputCols(FEATURES.toArray(new String[0]))
+                .setOutputCol("features")
+                .transform(collection.na().drop());
+        for (LinearRegressionFit fit: fits) {
+            LinearRegressionModel expected = new LinearRegression()
+                    .setSolver("normal")
+                    .setRegParam(regParam)
+                    .setElasticNetParam(0.0)
+                    .setFitIntercept(fitIntercept)
+                    .setStandardization(standardization)
+                    .setLabelCol("y")
+                    .fit(assembled.filter(col("gis_join").equalTo(fit.getGisJoin())));
+
+            assertEquals(40, fit.getCount());
+            assertArrayEquals(expected.coefficients().toArray(), fit.getCoefficients(), DELTA);
+            assertEquals(expected.intercept(), fit.getIntercept(), DELTA);
+            assertEquals(expected.summary().rootMeanSquaredError(), fit.getRmse(), DELTA);
+            assertEquals(expected.summary().r2(), fit.getR2(), DELTA);
+        }
+    }
+}
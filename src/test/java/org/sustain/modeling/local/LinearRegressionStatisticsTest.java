@@ -0,0 +1,139 @@
+package org.sustain.modeling.local;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks the closed-form solution against exact fits and against the normal equations of Spark's
+ * weighted least squares solver, worked out by hand for a single feature.
+ */
+public class LinearRegressionStatisticsTest {
+
+    private static final double DELTA = 1e-9;
+
+    // x = {0, 1, 2, 3}, y = {1, 3, 2, 5}: mean(x) = 1.5, var(x) = 1.25, mean(y) = 2.75, var(y) = 2.1875,
+    // cov(x, y) = 1.375, all population moments as in Spark's WLS
+    private static final double[][] X = {{0.0}, {1.0}, {2.0}, {3.0}};
+    private static final double[]   Y = {1.0, 3.0, 2.0, 5.0};
+
+    @Test
+    public void testExactLineIsRecovered() {
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(2);
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            double[] x = {random.nextDouble() * 10.0, random.nextDouble() * 5.0};
+            statistics.add(x, 1.5 + 2.0 * x[0] - 3.0 * x[1]);
+        }
+
+        LinearRegressionFit fit = statistics.solve("G0100010", 0.0, true, true);
+        assertArrayEquals(new double[]{2.0, -3.0}, fit.getCoefficients(), 1e-8);
+        assertEquals(1.5, fit.getIntercept(), 1e-8);
+        assertEquals(0.0, fit.getRmse(), 1e-6);
+        assertEquals(1.0, fit.getR2(), 1e-9);
+        assertEquals(50, fit.getCount());
+    }
+
+    @Test
+    public void testOrdinaryLeastSquares() {
+        LinearRegressionFit fit = statistics().solve("G0100010", 0.0, true, true);
+
+        // slope = cov(x, y) / var(x), intercept = mean(y) - slope * mean(x)
+        assertEquals(1.1, fit.getCoefficients()[0], DELTA);
+        assertEquals(1.1, fit.getIntercept(), DELTA);
+        // residuals -0.1, 0.8, -1.3, 0.6
+        assertEquals(Math.sqrt(2.7 / 4), fit.getRmse(), DELTA);
+        assertEquals(1.0 - 2.7 / 8.75, fit.getR2(), DELTA);
+    }
+
+    @Test
+    public void testRidgeWithStandardization() {
+        double regParam = 0.5;
+        LinearRegressionFit fit = statistics().solve("G0100010", regParam, true, true);
+
+        // The label is standardized, so the penalty is regParam / std(y), in the scale of the feature
+        double effectiveRegParam = regParam / Math.sqrt(2.1875);
+        double slope = 1.375 / (1.25 + effectiveRegParam * 1.25);
+        assertEquals(slope, fit.getCoefficients()[0], DELTA);
+        assertEquals(2.75 - slope * 1.5, fit.getIntercept(), DELTA);
+    }
+
+    @Test
+    public void testRidgeWithoutStandardization() {
+        double regParam = 0.5;
+        LinearRegressionFit fit = statistics().solve("G0100010", regParam, true, false);
+
+        double effectiveRegParam = regParam / Math.sqrt(2.1875);
+        double slope = 1.375 / (1.25 + effectiveRegParam);
+        assertEquals(slope, fit.getCoefficients()[0], DELTA);
+        assertEquals(2.75 - slope * 1.5, fit.getIntercept(), DELTA);
+    }
+
+    @Test
+    public void testWithoutIntercept() {
+        LinearRegressionFit fit = statistics().solve("G0100010", 0.0, false, true);
+
+        // slope = sum(x y) / sum(x^2), R2 of a regression through the origin
+        double slope = 22.0 / 14.0;
+        assertEquals(slope, fit.getCoefficients()[0], DELTA);
+        assertEquals(0.0, fit.getIntercept(), DELTA);
+        double sse = 0.0;
+        for (int i = 0; i < Y.length; i++) {
+            sse += Math.pow(Y[i] - slope * X[i][0], 2);
+        }
+        assertEquals(1.0 - sse / 39.0, fit.getR2(), DELTA);
+    }
+
+    @Test
+    public void testMergeMatchesAddingEveryRow() {
+        LinearRegressionStatistics first = new LinearRegressionStatistics(1).add(X[0], Y[0]).add(X[1], Y[1]);
+        LinearRegressionStatistics second = new LinearRegressionStatistics(1).add(X[2], Y[2]).add(X[3], Y[3]);
+        LinearRegressionFit merged = first.merge(second).solve("G0100010", 0.5, true, true);
+        LinearRegressionFit whole = statistics().solve("G0100010", 0.5, true, true);
+
+        assertEquals(4, merged.getCount());
+        assertArrayEquals(whole.getCoefficients(), merged.getCoefficients(), DELTA);
+        assertEquals(whole.getIntercept(), merged.getIntercept(), DELTA);
+        assertEquals(whole.getRmse(), merged.getRmse(), DELTA);
+    }
+
+    @Test
+    public void testConstantLabelFitsItsMean() {
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(1);
+        for (double[] x: X) {
+            statistics.add(x, 4.0);
+        }
+        LinearRegressionFit fit = statistics.solve("G0100010", 0.5, true, true);
+
+        assertArrayEquals(new double[]{0.0}, fit.getCoefficients(), DELTA);
+        assertEquals(4.0, fit.getIntercept(), DELTA);
+        assertEquals(0.0, fit.getRmse(), DELTA);
+    }
+
+    @Test
+    public void testCollinearFeaturesAreRejected() {
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(2);
+        for (int i = 0; i < X.length; i++) {
+            statistics.add(new double[]{X[i][0], 2.0 * X[i][0]}, Y[i]);
+        }
+        assertThrows(IllegalStateException.class, () -> statistics.solve("G0100010", 0.0, true, true));
+    }
+
+    @Test
+    public void testNoObservationsAreRejected() {
+        assertThrows(IllegalStateException.class,
+                () -> new LinearRegressionStatistics(1).solve("G0100010", 0.0, true, true));
+    }
+
+    private static LinearRegressionStatistics statistics() {
+        LinearRegressionStatistics statistics = new LinearRegressionStatistics(1);
+        for (int i = 0; i < Y.length; i++) {
+            statistics.add(X[i], Y[i]);
+        }
+        return statistics;
+    }
+}
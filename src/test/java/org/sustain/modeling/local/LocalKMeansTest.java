@@ -0,0 +1,114 @@
+package org.sustain.modeling.local;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Clusters rows drawn around well-separated centers, where every restart should find the same clustering.
+ */
+public class LocalKMeansTest {
+
+    private static final double DELTA = 1e-9;
+
+    private static final double[][] CENTERS = {{0.0, 0.0, 0.0}, {10.0, 10.0, 0.0}, {-10.0, 5.0, 20.0}};
+
+    @Test
+    public void testSeparatedClustersAreRecovered() {
+        int rowsPerCluster = 50, dims = 3;
+        double[] rows = rowsAround(CENTERS, rowsPerCluster, new Random(11));
+        LocalKMeans.Result result = new LocalKMeans(3, 50, 1e-6, 4).fit(rows, 3 * rowsPerCluster, dims, 5L);
+
+        int[] assignments = result.getAssignments();
+        for (int c = 0; c < CENTERS.length; c++) {
+            int cluster = assignments[c * rowsPerCluster];
+            for (int i = c * rowsPerCluster; i < (c + 1) * rowsPerCluster; i++) {
+                assertEquals(cluster, assignments[i]);
+            }
+            for (int other = 0; other < c; other++) {
+                assertNotEquals(assignments[other * rowsPerCluster], cluster);
+            }
+            // The center is the mean of its rows, which were drawn within 0.5 of the true center
+            for (int d = 0; d < dims; d++) {
+                assertEquals(CENTERS[c][d], result.getCenters()[cluster * dims + d], 0.5);
+            }
+        }
+        assertTrue(result.getIterations() < 50);
+        assertEquals(cost(rows, dims, result), result.getCost(), DELTA);
+    }
+
+    @Test
+    public void testMoreClustersThanRows() {
+        double[] rows = {1.0, 2.0, 3.0, 4.0};
+        LocalKMeans.Result result = new LocalKMeans(5, 10, 1e-6, 1).fit(rows, 2, 2, 1L);
+
+        assertEquals(4, result.getCenters().length);
+        assertNotEquals(result.getAssignments()[0], result.getAssignments()[1]);
+        assertEquals(0.0, result.getCost(), DELTA);
+    }
+
+    @Test
+    public void testRestartsKeepTheLowestCost() {
+        int dims = 3;
+        double[] rows = rowsAround(CENTERS, 20, new Random(3));
+        double best = Double.POSITIVE_INFINITY;
+        for (long seed = 0; seed < 4; seed++) {
+            best = Math.min(best, new LocalKMeans(3, 1, 1e-6, 1).fit(rows, 60, dims, seed).getCost());
+        }
+
+        // Restart r is seeded with seed + r, so four restarts from seed 0 repeat the single runs above
+        assertEquals(best, new LocalKMeans(3, 1, 1e-6, 4).fit(rows, 60, dims, 0L).getCost(), DELTA);
+    }
+
+    @Test
+    public void testSquaredDistance() {
+        Random random = new Random(9);
+        for (int dims = 1; dims <= 9; dims++) {
+            double[] x = new double[dims + 2], y = new double[dims + 1];
+            for (int d = 0; d < x.length; d++) {
+                x[d] = random.nextGaussian();
+            }
+            for (int d = 0; d < y.length; d++) {
+                y[d] = random.nextGaussian();
+            }
+            double expected = 0.0;
+            for (int d = 0; d < dims; d++) {
+                expected += Math.pow(x[d + 2] - y[d + 1], 2);
+            }
+            assertEquals(expected, LocalKMeans.squaredDistance(x, 2, y, 1, dims), DELTA);
+        }
+        assertEquals(0.0, LocalKMeans.squaredDistance(new double[0], 0, new double[0], 0, 0), DELTA);
+    }
+
+    /**
+     * @return rowsPerCluster rows within 0.5 of each center in every dimension, one center after another.
+     */
+    private static double[] rowsAround(double[][] centers, int rowsPerCluster, Random random) {
+        int dims = centers[0].length;
+        double[] rows = new double[centers.length * rowsPerCluster * dims];
+        int offset = 0;
+        for (double[] center: centers) {
+            for (int i = 0; i < rowsPerCluster; i++) {
+                for (int d = 0; d < dims; d++) {
+                    rows[offset++] = center[d] + random.nextDouble() - 0.5;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static double cost(double[] rows, int dims, LocalKMeans.Result result) {
+        double cost = 0.0;
+        for (int i = 0; i < result.getAssignments().length; i++) {
+            int c = result.getAssignments()[i];
+            for (int d = 0; d < dims; d++) {
+                cost += Math.pow(rows[i * dims + d] - result.getCenters()[c * dims + d], 2);
+            }
+        }
+        return cost;
+    }
+}
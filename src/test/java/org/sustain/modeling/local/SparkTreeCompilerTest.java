@@ -0,0 +1,144 @@
+package org.sustain.modeling.local;
+
+import org.apache.spark.ml.feature.StringIndexer;
+import org.apache.spark.ml.feature.VectorAssembler;
+import org.apache.spark.ml.linalg.Vector;
+import org.apache.spark.ml.regression.DecisionTreeRegressionModel;
+import org.apache.spark.ml.regression.DecisionTreeRegressor;
+import org.apache.spark.ml.regression.GBTRegressionModel;
+import org.apache.spark.ml.regression.GBTRegressor;
+import org.apache.spark.ml.regression.RandomForestRegressionModel;
+import org.apache.spark.ml.regression.RandomForestRegressor;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Trains small forests and boosted ensembles in a local Spark session, and checks that the compiled ensembles
+ * predict what the Spark models predict for every training row.
+ */
+public class SparkTreeCompilerTest {
+
+    private static final double DELTA = 1e-9;
+
+    private static SparkSession sparkSession;
+    private static Dataset<Row> training;
+    private static List<Row>    features;
+
+    @BeforeAll
+    public static void beforeAllTests() {
+        sparkSession = SparkSession.builder()
+                .master("local[1]")
+                .appName("SparkTreeCompilerTest")
+                .config("spark.ui.enabled", "false")
+                .getOrCreate();
+
+        StructType schema = new StructType()
+                .add("x1", DataTypes.DoubleType)
+                .add("x2", DataTypes.DoubleType)
+                .add("x3", DataTypes.DoubleType)
+                .add("region", DataTypes.StringType)
+                .add("label", DataTypes.DoubleType);
+        List<Row> rows = new ArrayList<>();
+        Random random = new Random(17);
+        String[] regions = {"north", "south", "east"};
+        for (int i = 0; i < 200; i++) {
+            double x1 = random.nextDouble() * 10.0, x2 = random.nextDouble() * 5.0, x3 = random.nextGaussian();
+            int region = random.nextInt(regions.length);
+            double label = (x1 > 5.0 ? 4.0 : 0.0) + x2 * x2 - 2.0 * x3 + 3.0 * region + random.nextGaussian() * 0.1;
+            rows.add(RowFactory.create(x1, x2, x3, regions[region], label));
+        }
+        training = new VectorAssembler()
+                .setInputCols(new String[]{"x1", "x2", "x3"})
+                .setOutputCol("features")
+                .transform(sparkSession.createDataFrame(rows, schema))
+                .cache();
+        features = training.select("features").collectAsList();
+    }
+
+    @AfterAll
+    public static void afterAllTests() {
+        sparkSession.stop();
+    }
+
+    @Test
+    public void testRandomForest() {
+        RandomForestRegressionModel forest = new RandomForestRegressor()
+                .setNumTrees(8)
+                .setMaxDepth(5)
+                .setSeed(1L)
+                .fit(training);
+        TreeEnsemble ensemble = SparkTreeCompiler.compile(forest);
+
+        assertEquals(8, ensemble.numTrees());
+        assertEquals(forest.numFeatures(), ensemble.numFeatures());
+        for (Row row: features) {
+            Vector x = row.getAs(0);
+            assertEquals(forest.predict(x), ensemble.predict(x.toArray(), 0), DELTA);
+        }
+    }
+
+    @Test
+    public void testGradientBoostedTrees() {
+        GBTRegressionModel boosted = new GBTRegressor()
+                .setMaxIter(10)
+                .setMaxDepth(3)
+                .setSeed(1L)
+                .fit(training);
+        TreeEnsemble ensemble = SparkTreeCompiler.compile(boosted);
+
+        assertEquals(boosted.getNumTrees(), ensemble.numTrees());
+        for (Row row: features) {
+            Vector x = row.getAs(0);
+            assertEquals(boosted.predict(x), ensemble.predict(x.toArray(), 0), DELTA);
+        }
+    }
+
+    @Test
+    public void testSingleTree() {
+        DecisionTreeRegressionModel tree = new DecisionTreeRegressor()
+                .setMaxDepth(4)
+                .fit(training);
+        TreeEnsemble ensemble = SparkTreeCompiler.compile(new DecisionTreeRegressionModel[]{tree},
+                new double[]{1.0}, tree.numFeatures());
+
+        assertEquals(tree.numNodes(), ensemble.numNodes());
+        for (Row row: features) {
+            Vector x = row.getAs(0);
+            assertEquals(tree.predict(x), ensemble.predict(x.toArray(), 0), DELTA);
+        }
+    }
+
+    @Test
+    public void testCategoricalSplitsAreRejected() {
+        // The indexed region is a nominal attribute, which trees split on by category
+        Dataset<Row> indexed = new StringIndexer()
+                .setInputCol("region")
+                .setOutputCol("regionIndex")
+                .fit(training)
+                .transform(training.drop("features"));
+        Dataset<Row> categorical = new VectorAssembler()
+                .setInputCols(new String[]{"regionIndex"})
+                .setOutputCol("features")
+                .transform(indexed);
+        DecisionTreeRegressionModel tree = new DecisionTreeRegressor()
+                .setMaxDepth(2)
+                .fit(categorical);
+
+        assertThrows(IllegalArgumentException.class, () -> SparkTreeCompiler.compile(
+                new DecisionTreeRegressionModel[]{tree}, new double[]{1.0}, tree.numFeatures()));
+    }
+}
@@ -0,0 +1,124 @@
+package org.sustain.modeling.local;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Evaluates small hand-built ensembles, whose predictions can be read off their trees.
+ */
+public class TreeEnsembleTest {
+
+    private static final double DELTA = 1e-12;
+
+    // Rows of two features, one after another
+    private static final double[] ROWS = {
+            0.0, 0.0,
+            0.5, 3.0,
+            1.0, 2.0,
+            1.0, 2.5
+    };
+
+    @Test
+    public void testSingleTree() {
+        TreeEnsemble ensemble = twoTrees(1.0, 0.0);
+
+        assertEquals(2, ensemble.numFeatures());
+        assertEquals(2, ensemble.numTrees());
+        assertEquals(8, ensemble.numNodes());
+        assertArrayEquals(new double[]{10.0, 10.0, 20.0, 30.0}, predictEach(ensemble), DELTA);
+    }
+
+    @Test
+    public void testWeightedSumOfTrees() {
+        TreeEnsemble ensemble = twoTrees(0.5, 2.0);
+
+        // The second tree predicts -1 if x[1] <= 2.5, else 1
+        assertArrayEquals(new double[]{3.0, 7.0, 8.0, 13.0}, predictEach(ensemble), DELTA);
+        assertEquals(-1.0, ensemble.predictTree(1, ROWS, 6), DELTA);
+    }
+
+    @Test
+    public void testBatchMatchesSingleRows() {
+        TreeEnsemble ensemble = twoTrees(0.5, 2.0);
+        double[] predictions = new double[ROWS.length];
+        ensemble.predict(ROWS, 4, predictions);
+
+        assertArrayEquals(predictEach(ensemble), Arrays.copyOf(predictions, 4), DELTA);
+    }
+
+    @Test
+    public void testCopiedTreesPredictTheSame() {
+        TreeEnsemble source = twoTrees(0.5, 2.0);
+        TreeEnsemble.Builder builder = new TreeEnsemble.Builder(2);
+        builder.copyTree(source, 1, 2.0);
+        builder.copyTree(source, 0, 0.5);
+        TreeEnsemble copy = builder.build();
+
+        assertArrayEquals(predictEach(source), predictEach(copy), DELTA);
+
+        // Appending to the builder of an ensemble keeps its trees
+        TreeEnsemble.Builder extended = copy.toBuilder();
+        extended.addTree(extended.addLeaf(100.0), 0.01);
+        TreeEnsemble extendedCopy = extended.build();
+        assertEquals(3, extendedCopy.numTrees());
+        assertEquals(predictEach(copy)[2] + 1.0, predictEach(extendedCopy)[2], DELTA);
+    }
+
+    @Test
+    public void testScaleTreeWeights() {
+        TreeEnsemble.Builder builder = twoTrees(1.0, 1.0).toBuilder();
+        builder.scaleTreeWeights(0.5);
+
+        assertArrayEquals(new double[]{0.5, 0.5}, builder.build().treeWeights(), DELTA);
+    }
+
+    @Test
+    public void testSerializedEnsemblePredictsTheSame() throws Exception {
+        TreeEnsemble ensemble = twoTrees(0.5, 2.0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(ensemble);
+        }
+        TreeEnsemble restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored = (TreeEnsemble) in.readObject();
+        }
+
+        assertArrayEquals(predictEach(ensemble), predictEach(restored), DELTA);
+    }
+
+    /**
+     * The first tree predicts 10 if x[0] <= 0.5, else 20 if x[1] <= 2, else 30; the second -1 if x[1] <= 2.5,
+     * else 1.
+     */
+    private static TreeEnsemble twoTrees(double firstWeight, double secondWeight) {
+        TreeEnsemble.Builder builder = new TreeEnsemble.Builder(2);
+        int root = builder.addSplit(0, 0.5, 20.0);
+        int low = builder.addLeaf(10.0);
+        int high = builder.addSplit(1, 2.0, 25.0);
+        builder.setChildren(high, builder.addLeaf(20.0), builder.addLeaf(30.0));
+        builder.setChildren(root, low, high);
+        builder.addTree(root, firstWeight);
+
+        int secondRoot = builder.addSplit(1, 2.5, 0.0);
+        builder.setChildren(secondRoot, builder.addLeaf(-1.0), builder.addLeaf(1.0));
+        builder.addTree(secondRoot, secondWeight);
+        return builder.build();
+    }
+
+    private static double[] predictEach(TreeEnsemble ensemble) {
+        double[] predictions = new double[ROWS.length / 2];
+        for (int r = 0; r < predictions.length; r++) {
+            predictions[r] = ensemble.predict(ROWS, r * 2);
+        }
+        return predictions;
+    }
+}